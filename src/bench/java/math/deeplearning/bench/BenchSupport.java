@@ -0,0 +1,129 @@
+package math.deeplearning.bench;
+
+import math.deeplearning.common.ByteDataset;
+import org.apache.commons.math3.linear.MatrixUtils;
+import org.apache.commons.math3.linear.RealMatrix;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * ベンチマークで使う合成データなど.
+ * <p>
+ * ネットワークにつながっていなくても実行できるように、データセットは実物と同じ形の乱数で作る。
+ */
+public final class BenchSupport {
+    // MNISTの画素数と分類クラス数
+    public static final int MNIST_COLS = 784;
+    public static final int MNIST_CLASSES = 10;
+
+    private BenchSupport() {
+    }
+
+    /**
+     * The Boston Housing Datasetと同じ14列のデータを作る.
+     * 物件価格(13列目)は部屋数(5列目)と低所得者率(12列目)の1次式に雑音を加えたもの.
+     *
+     * @param rows 行数
+     * @param seed 乱数のシード
+     * @return データ
+     */
+    public static RealMatrix boston(int rows, long seed) {
+        Random rand = new Random(seed);
+        double[][] aA2 = new double[rows][14];
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < 13; j++) aA2[i][j] = rand.nextDouble() * 10;
+            aA2[i][5] = 4 + rand.nextDouble() * 4.5;
+            aA2[i][12] = 2 + rand.nextDouble() * 33;
+            aA2[i][13] = -30 + 8.5 * aA2[i][5] - 0.6 * aA2[i][12] + rand.nextGaussian() * 4;
+        }
+        return MatrixUtils.createRealMatrix(aA2);
+    }
+
+    /**
+     * Iris Data Setと同じ5列(4列目がクラス番号)のデータを作る. クラスごとに平均の違う正規分布から作る.
+     *
+     * @param classes     クラス数
+     * @param rowsPerClass クラスごとの行数
+     * @param seed        乱数のシード
+     * @return データ(クラス番号の順に並ぶ)
+     */
+    public static RealMatrix iris(int classes, int rowsPerClass, long seed) {
+        Random rand = new Random(seed);
+        double[][] aA2 = new double[classes * rowsPerClass][5];
+        for (int c = 0; c < classes; c++) {
+            for (int i = 0; i < rowsPerClass; i++) {
+                double[] row = aA2[c * rowsPerClass + i];
+                for (int j = 0; j < 4; j++) row[j] = 1 + c * 1.5 + j * 0.5 + rand.nextGaussian() * 0.4;
+                row[4] = c;
+            }
+        }
+        return MatrixUtils.createRealMatrix(aA2);
+    }
+
+    /**
+     * MNISTと同じ形(784画素, 10クラス)のデータセットを作る. 画素の8割は0にする.
+     *
+     * @param rows 行数
+     * @param seed 乱数のシード
+     * @return データセット
+     */
+    public static ByteDataset mnist(int rows, long seed) {
+        Random rand = new Random(seed);
+        byte[] pixels = randomPixels(rows, rand);
+        byte[] labels = new byte[rows];
+        for (int i = 0; i < rows; i++) labels[i] = (byte) rand.nextInt(MNIST_CLASSES);
+        return new ByteDataset(ByteBuffer.wrap(pixels), labels, MNIST_COLS, MNIST_CLASSES, 1.0 / 255);
+    }
+
+    /**
+     * MNISTと同じIDX形式(gzip圧縮)の画像ファイルを書き出す.
+     *
+     * @param file 書き出すファイル
+     * @param rows 画像数
+     * @param seed 乱数のシード
+     */
+    public static void writeMnistImages(Path file, int rows, long seed) throws IOException {
+        try (DataOutputStream dos = new DataOutputStream(new GZIPOutputStream(Files.newOutputStream(file)))) {
+            dos.writeInt(0x00000803);
+            dos.writeInt(rows);
+            dos.writeInt(28);
+            dos.writeInt(28);
+            dos.write(randomPixels(rows, new Random(seed)));
+        }
+    }
+
+    private static byte[] randomPixels(int rows, Random rand) {
+        byte[] pixels = new byte[rows * MNIST_COLS];
+        for (int i = 0; i < pixels.length; i++) {
+            if (rand.nextInt(5) == 0) pixels[i] = (byte) rand.nextInt(256);
+        }
+        return pixels;
+    }
+
+    /**
+     * 学習中の途中経過の表示を捨てるようにSystem.outを差し替える.
+     *
+     * @return 元のSystem.out(終わったら {@link System#setOut} で戻す)
+     */
+    public static PrintStream silence() {
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+        return out;
+    }
+}
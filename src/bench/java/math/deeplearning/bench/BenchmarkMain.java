@@ -0,0 +1,49 @@
+package math.deeplearning.bench;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * ベンチマークを実行して結果をJSONで書き出す.
+ * <p>
+ * 引数はJMHのコマンドラインと同じ(実行するベンチマークの正規表現, -f, -wi, -i など)。
+ * 結果ファイルを -rff で指定しなければ target/jmh/result-日時.json に書き出すので、
+ * 変更の前後で実行して2つのJSONを比べればよい。
+ * <pre>
+ * mvn -Pbench package
+ * java -jar target/benchmarks.jar                 # すべて
+ * java -jar target/benchmarks.jar UtilBenchmark   # Utilの関数だけ
+ * </pre>
+ */
+public class BenchmarkMain {
+    // 結果ファイルを書き出すディレクトリ
+    private static final String RESULT_DIR = "target/jmh";
+
+    public static void main(String... args) throws Exception {
+        CommandLineOptions cmd = new CommandLineOptions(args);
+        if (cmd.shouldHelp()) {
+            cmd.showHelp();
+            return;
+        }
+        ChainedOptionsBuilder builder = new OptionsBuilder().parent(cmd);
+        if (!cmd.getResultFormat().hasValue()) builder.resultFormat(ResultFormatType.JSON);
+        if (!cmd.getResult().hasValue()) {
+            new File(RESULT_DIR).mkdirs();
+            String time = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+            builder.result(RESULT_DIR + "/result-" + time + ".json");
+        }
+        Runner runner = new Runner(builder.build());
+        if (cmd.shouldList()) {
+            runner.list();
+        } else {
+            runner.run();
+        }
+    }
+}
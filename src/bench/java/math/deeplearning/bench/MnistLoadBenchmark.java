@@ -0,0 +1,53 @@
+package math.deeplearning.bench;
+
+import math.deeplearning.common.MnistCache;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static math.deeplearning.common.Util.loadMnistImage;
+
+/**
+ * MNISTの画像の読み込み({@link math.deeplearning.common.Util#loadMnistImage})のベンチマーク.
+ * <p>
+ * 一時ディレクトリにMNISTの学習データと同じ60000枚の合成画像を書き出し、最初に作られたキャッシュファイルを
+ * 開いてRealMatrixに読み込むまでを測る(ダウンロードとgzipの展開は含まない)。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class MnistLoadBenchmark {
+    private static final String FILE_NAME = "train-images-idx3-ubyte.gz";
+    private static final int ROWS = 60000;
+
+    private Path dir;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("mnist-bench");
+        BenchSupport.writeMnistImages(dir.resolve(FILE_NAME), ROWS, 1);
+        // キャッシュファイルを作っておく
+        MnistCache.open(dir.toString(), FILE_NAME);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public RealMatrix loadMnistImageCached() throws IOException {
+        return loadMnistImage(MnistCache.open(dir.toString(), FILE_NAME));
+    }
+}
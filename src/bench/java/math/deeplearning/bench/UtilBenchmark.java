@@ -0,0 +1,152 @@
+package math.deeplearning.bench;
+
+import math.deeplearning.common.ByteDataset;
+import math.deeplearning.common.Matrix;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static math.deeplearning.common.Util.*;
+
+/**
+ * Utilの関数のベンチマーク.
+ * <p>
+ * 行列の形は ch10 のMNISTの学習と同じ(バッチサイズ512, 画素数784, 隠れ層128, 10クラス)。
+ * RealMatrixの関数(書籍どおりの書き方)とMatrixの関数(書き込み先を使い回す書き方)の両方を測る。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilBenchmark {
+    private static final int ROWS = 60000;
+    private static final int BATCH = 512;
+    private static final int COLS = BenchSupport.MNIST_COLS;
+    private static final int HIDDEN = 128;
+    private static final int CLASSES = BenchSupport.MNIST_CLASSES;
+
+    // 学習データとサンプリングのindex
+    private ByteDataset train;
+    private List<Integer> indexes;
+    private List<Integer> indexList;
+    private int[] index;
+
+    // RealMatrix (xbRはダミー変数1の列を付加したもの)
+    private RealMatrix xR;
+    private RealMatrix xbR;
+    private RealMatrix vR;
+    private RealMatrix aR;
+    private RealMatrix uR;
+
+    // Matrixと書き込み先
+    private Matrix x;
+    private Matrix xb;
+    private Matrix v;
+    private Matrix a;
+    private Matrix u;
+    private Matrix xBuf;
+    private Matrix aBuf;
+    private Matrix uBuf;
+
+    @Setup
+    public void setup() {
+        setSeed(1);
+        train = BenchSupport.mnist(ROWS, 1);
+        indexes = new ArrayList<>(ROWS);
+        for (int i = 0; i < ROWS; i++) indexes.add(i);
+        indexList = randIndex(indexes, ROWS, BATCH);
+        index = new int[BATCH];
+        for (int i = 0; i < BATCH; i++) index[i] = indexList.get(i);
+
+        x = sampling(train, indexList);
+        xb = addBiasCol(x);
+        v = Matrix.of(initW(COLS + 1, HIDDEN));
+        a = dot(xb, v);
+        u = dot(a.rows(0, BATCH), Matrix.of(initW(HIDDEN, CLASSES)));
+        xBuf = new Matrix(BATCH, COLS);
+        aBuf = new Matrix(BATCH, HIDDEN);
+        uBuf = new Matrix(BATCH, CLASSES);
+
+        xR = x.toRealMatrix();
+        xbR = xb.toRealMatrix();
+        vR = v.toRealMatrix();
+        aR = a.toRealMatrix();
+        uR = u.toRealMatrix();
+    }
+
+    @Benchmark
+    public RealMatrix dotRealMatrix() {
+        return dot(xbR, vR);
+    }
+
+    @Benchmark
+    public Matrix dotMatrix() {
+        return dot(xb, v, aBuf);
+    }
+
+    @Benchmark
+    public Matrix dotBiasMatrix() {
+        return dotBias(x, v, aBuf);
+    }
+
+    @Benchmark
+    public RealMatrix sigmoidRealMatrix() {
+        return sigmoid(aR);
+    }
+
+    @Benchmark
+    public Matrix sigmoidMatrix() {
+        return sigmoid(a, aBuf);
+    }
+
+    @Benchmark
+    public RealMatrix softmaxRealMatrix() {
+        return softmax(uR);
+    }
+
+    @Benchmark
+    public Matrix softmaxMatrix() {
+        return softmax(u, uBuf);
+    }
+
+    @Benchmark
+    public RealMatrix reLURealMatrix() {
+        return reLU(aR);
+    }
+
+    @Benchmark
+    public Matrix reLUMatrix() {
+        return reLU(a, aBuf);
+    }
+
+    @Benchmark
+    public RealMatrix addBiasColRealMatrix() {
+        return addBiasCol(xR);
+    }
+
+    @Benchmark
+    public Matrix addBiasColMatrix() {
+        return addBiasCol(x);
+    }
+
+    @Benchmark
+    public Matrix samplingList() {
+        return sampling(train, indexList);
+    }
+
+    @Benchmark
+    public Matrix samplingInto() {
+        return sampling(train, index, xBuf);
+    }
+
+    @Benchmark
+    public List<Integer> randIndexBatch() {
+        return randIndex(indexes, ROWS, BATCH);
+    }
+}
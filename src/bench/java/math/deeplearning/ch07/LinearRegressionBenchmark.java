@@ -0,0 +1,52 @@
+package math.deeplearning.ch07;
+
+import math.deeplearning.bench.BenchSupport;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 線形回帰モデルの学習1回分(learnの1反復)と、正規方程式で直接解くときのベンチマーク.
+ * データはThe Boston Housing Datasetと同じ形(506行)の合成データ.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LinearRegressionBenchmark {
+    private LinearSingleRegression single;
+    private LinearMultipleRegression multiple;
+    private PrintStream out;
+
+    @Setup
+    public void setup() {
+        RealMatrix boston = BenchSupport.boston(506, 1);
+        single = new LinearSingleRegression(boston, 1, 0.01);
+        multiple = new LinearMultipleRegression(boston, 1, 0.001);
+        out = BenchSupport.silence();
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(out);
+    }
+
+    @Benchmark
+    public void singleLearn() {
+        single.learn();
+    }
+
+    @Benchmark
+    public void multipleLearn() {
+        multiple.learn();
+    }
+
+    @Benchmark
+    public void multipleSolve() {
+        multiple.solve();
+    }
+}
@@ -0,0 +1,38 @@
+package math.deeplearning.ch08;
+
+import math.deeplearning.bench.BenchSupport;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ロジスティック回帰モデル(2値分類)の学習1回分(learnの1反復)のベンチマーク.
+ * データはIris Data Setの2クラス分(100行)と同じ形の合成データ.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BinaryLogisticRegressionBenchmark {
+    private BinaryLogisticRegression blr;
+    private PrintStream out;
+
+    @Setup
+    public void setup() {
+        blr = new BinaryLogisticRegression(BenchSupport.iris(2, 50, 1), 1, 0.01);
+        out = BenchSupport.silence();
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(out);
+    }
+
+    @Benchmark
+    public void learn() {
+        blr.learn();
+    }
+}
@@ -0,0 +1,38 @@
+package math.deeplearning.ch09;
+
+import math.deeplearning.bench.BenchSupport;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ロジスティック回帰モデル(多クラス分類)の学習1回分(learnの1反復)のベンチマーク.
+ * データはIris Data Set(3クラス150行)と同じ形の合成データ.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MultipleLogisticRegressionBenchmark {
+    private MultipleLogisticRegression mlr;
+    private PrintStream out;
+
+    @Setup
+    public void setup() {
+        mlr = new MultipleLogisticRegression(BenchSupport.iris(3, 50, 1), 1, 0.01);
+        out = BenchSupport.silence();
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(out);
+    }
+
+    @Benchmark
+    public void learn() {
+        mlr.learn();
+    }
+}
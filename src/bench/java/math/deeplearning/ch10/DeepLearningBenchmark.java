@@ -0,0 +1,70 @@
+package math.deeplearning.ch10;
+
+import math.deeplearning.bench.BenchSupport;
+import math.deeplearning.common.ByteDataset;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+import static math.deeplearning.common.Util.setSeed;
+
+/**
+ * ディープラーニングの学習1回分のベンチマーク.
+ * <p>
+ * learnの1反復(書籍どおりの書き方)と、作業領域を使い回す1ステップ(Workspace.learnStep)を測る。
+ * データはMNISTと同じ形(60000行, 784画素, 10クラス)の合成データで、
+ * 隠れ層128、バッチサイズ512はmainと同じ。途中の評価はしない。
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Dmath.deeplearning.eval.iters=0", "-Dmath.deeplearning.prefetch=0"})
+public class DeepLearningBenchmark {
+    private static final int ROWS = 60000;
+
+    private DeepLearning dl;
+    private DeepLearning2 dl2;
+    private DeepLearning.Workspace ws;
+    private DeepLearning2.Workspace ws2;
+    private PrintStream out;
+
+    @Setup
+    public void setup() {
+        setSeed(1);
+        ByteDataset train = BenchSupport.mnist(ROWS, 1);
+        ByteDataset test = BenchSupport.mnist(1000, 2);
+        dl = new DeepLearning(train, test, 1, 128, 512, 0.01);
+        dl2 = new DeepLearning2(train, test, 1, 128, 512, 0.01);
+        ws = dl.new Workspace();
+        ws2 = dl2.new Workspace();
+        out = BenchSupport.silence();
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(out);
+    }
+
+    @Benchmark
+    public void learn() {
+        dl.learn();
+    }
+
+    @Benchmark
+    public void learnStep() {
+        ws.learnStep();
+    }
+
+    @Benchmark
+    public void learn2() {
+        dl2.learn();
+    }
+
+    @Benchmark
+    public void learnStep2() {
+        ws2.learnStep();
+    }
+}
@@ -1,5 +1,7 @@
 package math.deeplearning.ch07;
 
+import math.deeplearning.common.LeastSquares;
+import math.deeplearning.common.Optimizer;
 import org.apache.commons.math3.linear.*;
 import java.io.IOException;
 import static math.deeplearning.common.Util.*;
@@ -22,6 +24,8 @@ public class LinearSingleRegression {
     private int D;
     // 重みベクトル
     private RealVector W;
+    // 重みの更新方法(math.deeplearning.optimizer, 既定は確率的勾配降下法)
+    private Optimizer optimizer;
 
     /**
      * 初期化処理.
@@ -30,11 +34,21 @@ public class LinearSingleRegression {
      * @param alpha 学習率
      */
     public LinearSingleRegression(int iters, double alpha) throws IOException {
+        // The Boston Housing Datasetを読み込む
+        this(loadBoston(), iters, alpha);
+    }
+
+    /**
+     * 読み込み済みのデータで初期化する.
+     *
+     * @param boston The Boston Housing Dataset(14列)
+     * @param iters  学習回数
+     * @param alpha  学習率
+     */
+    LinearSingleRegression(RealMatrix boston, int iters, double alpha) {
         this.iters = iters;
         this.alpha = alpha;
 
-        // The Boston Housing Datasetを読み込む
-        RealMatrix boston = loadBoston();
         // 学習データとして部屋数(RM)列を抽出し、ダミー変数1を付加する
         x = addBiasCol(extractCol(boston, new int[]{5}));
         // 正解データとして物件価格を抽出する
@@ -46,13 +60,25 @@ public class LinearSingleRegression {
 
         // 重みベクトルを1で初期化する
         W = add(MatrixUtils.createRealVector(new double[D]), 1.0);
+        optimizer = Optimizer.of(alpha).init(D);
     }
 
     public static void main(String[] args) throws Exception {
         // 学習回数を5000、学習率を0.01に設定する
         LinearSingleRegression lsr = new LinearSingleRegression(50000, 0.01);
         // 学習する
-        lsr.learn();
+        // システムプロパティ math.deeplearning.solver で解き方を選ぶ
+        // (gd: 勾配降下法で学習する(既定), direct: 正規方程式を解く, stream: データを読みながら正規方程式を解く)
+        switch (System.getProperty("math.deeplearning.solver", "gd")) {
+            case "direct":
+                lsr.solve();
+                break;
+            case "stream":
+                lsr.solveStreaming();
+                break;
+            default:
+                lsr.learn();
+        }
     }
 
     /**
@@ -64,12 +90,42 @@ public class LinearSingleRegression {
             RealVector yp = dot(x, W);
             // 誤差ydを計算
             RealVector yd = sub(yp, yt);
-            // 勾配に学習率を掛けて重みを更新
-            W = sub(W, mult(div(dot(trans(x), yd), M), alpha));
+            // 勾配をデータ数で割り、最適化手法で重みをその場で更新
+            optimizer.begin();
+            optimizer.update(0, W, transDot(x, yd), 1.0 / M);
 
             // 一定回数学習するごとに誤差を表示する
             if (i % 100 == 0)
                 System.out.println(i + " " + mean(pow(yd, 2)) / 2);
         }
     }
+
+    /**
+     * 正規方程式 X^T・X・W = X^T・yt を解いて重みを直接求める.
+     */
+    public void solve() {
+        long start = System.nanoTime();
+        W = LeastSquares.solve(x, yt);
+        long nanos = System.nanoTime() - start;
+        RealVector yd = sub(dot(x, W), yt);
+        System.out.println(W + " " + mean(pow(yd, 2)) / 2 + " (" + nanos / 1000 + " us)");
+    }
+
+    /**
+     * The Boston Housing Datasetを1行ずつ読みながら正規方程式の係数を足し込み、重みを求める.
+     * 学習データ全体の行列は作らない.
+     */
+    public void solveStreaming() throws IOException {
+        long start = System.nanoTime();
+        // ダミー変数1と説明変数の行(使い回す)
+        double[] row = new double[D];
+        row[0] = 1.0;
+        LeastSquares ls = LeastSquares.accumulate(r -> scanBoston(b -> {
+            row[1] = b[5];
+            r.accept(row, b[13]);
+        }), D);
+        W = ls.solve();
+        long nanos = System.nanoTime() - start;
+        System.out.println(W + " " + ls.loss(W) + " (" + ls.rows() + " rows, " + nanos / 1000 + " us)");
+    }
 }
@@ -1,5 +1,8 @@
 package math.deeplearning.ch08;
 
+import math.deeplearning.common.LogisticLoss;
+import math.deeplearning.common.Minimizer;
+import math.deeplearning.common.Optimizer;
 import org.apache.commons.math3.linear.*;
 import java.io.IOException;
 import static math.deeplearning.common.Util.*;
@@ -26,6 +29,8 @@ public class BinaryLogisticRegression {
     private int D;
     // 重みベクトル
     private RealVector W;
+    // 重みの更新方法(math.deeplearning.optimizer, 既定は確率的勾配降下法)
+    private Optimizer optimizer;
 
     /**
      * 初期化処理.
@@ -34,11 +39,23 @@ public class BinaryLogisticRegression {
      * @param alpha 学習率
      */
     public BinaryLogisticRegression(int iters, double alpha) throws IOException {
+        // Iris Data SetからSetosaとVersicolourの2種類のアヤメのデータを読み込む
+        this(loadIris(0, 100), iters, alpha);
+    }
+
+    /**
+     * 読み込み済みのデータで初期化する.
+     *
+     * @param iris  Iris Data Set(5列目がクラス番号0か1の100行)
+     * @param iters 学習回数
+     * @param alpha 学習率
+     */
+    BinaryLogisticRegression(RealMatrix iris, int iters, double alpha) {
         this.iters = iters;
         this.alpha = alpha;
 
-        // Iris Data SetからSetosaとVersicolourの2種類のアヤメのデータを読み込む
-        RealMatrix iris = shuffle(loadIris(0, 100));
+        // 行の順序をシャッフルする
+        iris = shuffle(iris);
         // 学習データとしてがく片の長さの列とがく片の幅の列を抽出し、ダミー変数1を付加する
         x = addBiasCol(extractRowCol(iris, 0, 69, 0, 1));
         // テストデータとしてがく片の長さの列とがく片の幅の列を抽出し、ダミー変数1を付加する
@@ -54,13 +71,21 @@ public class BinaryLogisticRegression {
 
         // 重みベクトルを1で初期化する
         W = add(MatrixUtils.createRealVector(new double[D]), 1.0);
+        optimizer = Optimizer.of(alpha).init(D);
     }
 
     public static void main(String[] args) throws Exception {
         // 学習回数を10000、学習率を0.01に設定する
         BinaryLogisticRegression blr = new BinaryLogisticRegression(10000, 0.01);
         // 学習する
-        blr.learn();
+        // システムプロパティ math.deeplearning.solver で解き方を選ぶ(指定しなければ学習回数だけ勾配降下法で学習する.
+        // gd: 損失が収束したら止める勾配降下法, lbfgs: 準ニュートン法, newton: ニュートン法(IRLS))
+        String solver = System.getProperty("math.deeplearning.solver");
+        if (solver == null) {
+            blr.learn();
+        } else {
+            blr.learn(Minimizer.of(solver, blr.optimizer));
+        }
     }
 
     /**
@@ -73,8 +98,9 @@ public class BinaryLogisticRegression {
             RealVector yp = sigmoid(dot(x, W));
             // 誤差ydを計算
             RealVector yd = sub(yp, yt);
-            // 勾配に学習率を掛けて重みを更新
-            W = sub(W, mult(div(dot(trans(x), yd), M), alpha));
+            // 勾配をデータ数で割り、最適化手法で重みをその場で更新
+            optimizer.begin();
+            optimizer.update(0, W, transDot(x, yd), 1.0 / M);
 
             // 一定回数学習するごとに誤差と精度を表示する
             if (i % 10 == 0) {
@@ -84,4 +110,27 @@ public class BinaryLogisticRegression {
             }
         }
     }
+
+    /**
+     * 解き方を指定して、損失が収束するまで学習する. 繰り返しの回数の上限は学習回数にする.
+     * math.deeplearning.patience を指定すると、学習データの後ろ2割を検証用データにして残りで学習し、
+     * 検証用データの損失が良くならなくなったところでも止める. 評価用データは最後の誤差と精度の表示にだけ使う.
+     *
+     * @param minimizer 解き方
+     * @return 繰り返した回数やかかった時間
+     */
+    public Minimizer.Result learn(Minimizer minimizer) {
+        int fit = minimizer.patience() > 0 ? M - M / 5 : M;
+        Minimizer.Objective heldOut = fit == M ? null
+                : LogisticLoss.binary(x.getSubMatrix(fit, M - 1, 0, D - 1), yt.getSubVector(fit, M - fit));
+        double[] w = W.toArray();
+        Minimizer.Result result = minimizer.maxIterations(iters)
+                .minimize(LogisticLoss.binary(x.getSubMatrix(0, fit - 1, 0, D - 1), yt.getSubVector(0, fit)),
+                        heldOut, w);
+        W = new ArrayRealVector(w, false);
+        // (線形分離できるデータでは確率が1に丸められてcrossEntropyがNaNになるので、損失は損失関数で計算する)
+        System.out.print(result + "\tloss = " + LogisticLoss.binary(xTest, ytTest).value(w, null));
+        System.out.println("\tscore = " + calcAccuracy(ytTest, sigmoid(dot(xTest, W))));
+        return result;
+    }
 }
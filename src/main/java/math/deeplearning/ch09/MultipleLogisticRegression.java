@@ -1,7 +1,11 @@
 package math.deeplearning.ch09;
 
+import math.deeplearning.common.LogisticLoss;
+import math.deeplearning.common.Minimizer;
+import math.deeplearning.common.Optimizer;
 import org.apache.commons.math3.linear.*;
 import java.io.IOException;
+import java.util.Arrays;
 import static math.deeplearning.common.Util.*;
 
 /**
@@ -16,16 +20,18 @@ public class MultipleLogisticRegression {
     private RealMatrix x;
     // 評価用学習データ
     private RealMatrix xTest;
-    // 正解データ
-    private RealMatrix yt;
-    // 評価用正解データ
-    private RealMatrix ytTest;
+    // 正解データ(クラス番号)
+    private int[] t;
+    // 評価用正解データ(クラス番号)
+    private int[] tTest;
     // 入力データ行数
     private int M;
     // 入力データ列数
     private int D;
     // 重み行列
     private RealMatrix W;
+    // 重みの更新方法(math.deeplearning.optimizer, 既定は確率的勾配降下法)
+    private Optimizer optimizer;
 
     /**
      * 初期化処理.
@@ -34,11 +40,23 @@ public class MultipleLogisticRegression {
      * @param alpha 学習率
      */
     public MultipleLogisticRegression(int iters, double alpha) throws IOException {
+        // Iris Data Setを読み込む
+        this(loadIris(), iters, alpha);
+    }
+
+    /**
+     * 読み込み済みのデータで初期化する.
+     *
+     * @param iris  Iris Data Set(150行, 5列目がクラス番号)
+     * @param iters 学習回数
+     * @param alpha 学習率
+     */
+    MultipleLogisticRegression(RealMatrix iris, int iters, double alpha) {
         this.iters = iters;
         this.alpha = alpha;
 
-        // Iris Data SetからSetosaとVersicolourの2種類のアヤメのデータを読み込む
-        RealMatrix iris = shuffle(loadIris());
+        // 行の順序をシャッフルする
+        iris = shuffle(iris);
         // 学習データとしてがく片の長さの列と花弁の長さの列を抽出し、ダミー変数1を付加する
         x = addBiasCol(extractRowCol(iris, 0, 74, new int[]{0, 2}));
         // テストデータとしてがく片の長さの列と花弁の長さの列を抽出し、ダミー変数1を付加する
@@ -46,10 +64,10 @@ public class MultipleLogisticRegression {
         // 4変数すべてを使う場合
         // x = addBiasCol(extractRowCol(iris, 0, 74, 0, 3));
         // xTest = addBiasCol(extractRowCol(iris, 75, 149, 0, 3));
-        // 学習の正解データとしてアヤメの種類を抽出し、OneHotVector形式に変換する
-        yt = oneHotEncode(extractRowCol(iris, 0, 74, 4), 3);
-        // テストの正解データとしてアヤメの種類を抽出し、OneHotVector形式に変換する
-        ytTest = oneHotEncode(extractRowCol(iris, 75, 149, 4), 3);
+        // 学習の正解データとしてアヤメの種類をクラス番号で抽出する(OneHotVector形式には変換しない)
+        t = toLabels(extractRowCol(iris, 0, 74, 4));
+        // テストの正解データとしてアヤメの種類をクラス番号で抽出する
+        tTest = toLabels(extractRowCol(iris, 75, 149, 4));
         // 正解データの行数
         M = x.getRowDimension();
         // 正解データの列数
@@ -57,13 +75,21 @@ public class MultipleLogisticRegression {
 
         // 重み行列を1で初期化する
         W = add(MatrixUtils.createRealMatrix(D, 3), 1.0);
+        optimizer = Optimizer.of(alpha).init(D * 3);
     }
 
     public static void main(String[] args) throws Exception {
         // 学習回数を10000、学習率を0.01に設定する
         MultipleLogisticRegression mlr = new MultipleLogisticRegression(10000, 0.01);
         // 学習する
-        mlr.learn();
+        // システムプロパティ math.deeplearning.solver で解き方を選ぶ(指定しなければ学習回数だけ勾配降下法で学習する.
+        // gd: 損失が収束したら止める勾配降下法, lbfgs: 準ニュートン法, newton: ニュートン法)
+        String solver = System.getProperty("math.deeplearning.solver");
+        if (solver == null) {
+            mlr.learn();
+        } else {
+            mlr.learn(Minimizer.of(solver, mlr.optimizer));
+        }
     }
 
     /**
@@ -72,19 +98,51 @@ public class MultipleLogisticRegression {
     public void learn() {
         // 学習する
         for (int i = 0; i < iters; i++) {
-            // 予測値ypを計算
-            RealMatrix yp = softmax(dot(x, W));
-            // 誤差ydを計算
-            RealMatrix yd = sub(yp, yt);
-            // 勾配に学習率を掛けて重みを更新
-            W = sub(W, mult(div(dot(trans(x), yd), M), alpha));
+            // 予測値ypと誤差ydを1回の走査で計算(ypは作らずに誤差を上書きする)
+            RealMatrix u = dot(x, W);
+            RealMatrix yd = softmaxCrossEntropy(u, t, u, null);
+            // 勾配をデータ数で割り、最適化手法で重みをその場で更新
+            optimizer.begin();
+            optimizer.update(0, W, transDot(x, yd), 1.0 / M);
 
             // 一定回数学習するごとに誤差と精度を表示する
             if (i % 10 == 0) {
-                RealMatrix p = softmax(dot(xTest, W));
-                System.out.print("iter = " + i + "\tloss = " + crossEntropy(ytTest, p));
-                System.out.println("\tscore = " + calcAccuracy(ytTest, p));
+                double[] stats = new double[2];
+                softmaxCrossEntropy(dot(xTest, W), tTest, null, stats);
+                System.out.print("iter = " + i + "\tloss = " + stats[0] / tTest.length);
+                System.out.println("\tscore = " + stats[1] / tTest.length);
             }
         }
     }
+
+    /**
+     * 解き方を指定して、損失が収束するまで学習する. 繰り返しの回数の上限は学習回数にする.
+     * math.deeplearning.patience を指定すると、学習データの後ろ2割を検証用データにして残りで学習し、
+     * 検証用データの損失が良くならなくなったところでも止める. 評価用データは最後の誤差と精度の表示にだけ使う.
+     *
+     * @param minimizer 解き方
+     * @return 繰り返した回数やかかった時間
+     */
+    public Minimizer.Result learn(Minimizer minimizer) {
+        int K = W.getColumnDimension();
+        // 重み行列を行の順に並べる
+        double[] w = new double[D * K];
+        for (int j = 0; j < D; j++) {
+            for (int k = 0; k < K; k++) w[j * K + k] = W.getEntry(j, k);
+        }
+        int fit = minimizer.patience() > 0 ? M - M / 5 : M;
+        Minimizer.Objective heldOut = fit == M ? null
+                : LogisticLoss.multinomial(x.getSubMatrix(fit, M - 1, 0, D - 1), Arrays.copyOfRange(t, fit, M), K);
+        Minimizer.Result result = minimizer.maxIterations(iters)
+                .minimize(LogisticLoss.multinomial(x.getSubMatrix(0, fit - 1, 0, D - 1), Arrays.copyOf(t, fit), K),
+                        heldOut, w);
+        for (int j = 0; j < D; j++) {
+            for (int k = 0; k < K; k++) W.setEntry(j, k, w[j * K + k]);
+        }
+        double[] stats = new double[2];
+        softmaxCrossEntropy(dot(xTest, W), tTest, null, stats);
+        System.out.print(result + "\tloss = " + stats[0] / tTest.length);
+        System.out.println("\tscore = " + stats[1] / tTest.length);
+        return result;
+    }
 }
@@ -0,0 +1,63 @@
+package math.deeplearning.ch10;
+
+import math.deeplearning.common.ByteDataset;
+import java.nio.ByteBuffer;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import static math.deeplearning.common.Util.setSeed;
+
+/**
+ * learnInPlaceの学習ステップがヒープ割り当てをしないことを確認する.
+ * <p>
+ * MNISTと同じ形の乱数データで学習し、学習スレッドが割り当てたバイト数をThreadMXBeanで測る。
+ * 割り当てがあれば終了コード1で終了する。
+ */
+public class AllocationCheck {
+    // JITコンパイルやスレッドごとのタスクの初期化が終わるまでのステップ数
+    private static final int WARMUP = 200;
+    // 測定するステップ数
+    private static final int STEPS = 100;
+
+    public static void main(String... args) {
+        Random rand = new Random(0);
+        ByteDataset ds = randomDataset(2048, 784, 10, rand);
+        // 重みの初期値とミニバッチの選び方を毎回同じにする
+        setSeed(1);
+
+        DeepLearning dl = new DeepLearning(ds, ds, 0, 128, 512, 0.01);
+        long bytes1 = measure(dl.new Workspace()::learnStep);
+        System.out.println("DeepLearning:  " + bytes1 + " bytes / " + STEPS + " steps");
+
+        DeepLearning2 dl2 = new DeepLearning2(ds, ds, 0, 128, 512, 0.01);
+        long bytes2 = measure(dl2.new Workspace()::learnStep);
+        System.out.println("DeepLearning2: " + bytes2 + " bytes / " + STEPS + " steps");
+
+        if (bytes1 > 0 || bytes2 > 0) System.exit(1);
+    }
+
+    // 学習ステップを繰り返したときに現在のスレッドが割り当てたバイト数を返す
+    private static long measure(Runnable step) {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        for (int i = 0; i < WARMUP; i++) step.run();
+
+        // 測定自体の割り当てを差し引く
+        long start = bean.getThreadAllocatedBytes(id);
+        long overhead = bean.getThreadAllocatedBytes(id) - start;
+        start = bean.getThreadAllocatedBytes(id);
+        for (int i = 0; i < STEPS; i++) step.run();
+        return bean.getThreadAllocatedBytes(id) - start - overhead;
+    }
+
+    // MNISTと同じ形式の乱数データセットを作る(MNISTと同じく画素の8割ほどを0にする)
+    static ByteDataset randomDataset(int rows, int cols, int classNum, Random rand) {
+        byte[] pixels = new byte[rows * cols];
+        byte[] labels = new byte[rows];
+        rand.nextBytes(pixels);
+        for (int i = 0; i < pixels.length; i++) {
+            if (rand.nextInt(5) != 0) pixels[i] = 0;
+        }
+        for (int i = 0; i < rows; i++) labels[i] = (byte) rand.nextInt(classNum);
+        return new ByteDataset(ByteBuffer.wrap(pixels), labels, cols, classNum, 1.0 / 255);
+    }
+}
@@ -1,62 +1,68 @@
 package math.deeplearning.ch10;
 
-import org.apache.commons.math3.linear.RealMatrix;
+import math.deeplearning.common.Checkpoint;
+import math.deeplearning.common.Dataset;
+import math.deeplearning.common.Evaluator;
+import math.deeplearning.common.Matrix;
+import math.deeplearning.common.Network;
+import math.deeplearning.common.SparseMatrix;
+import math.deeplearning.common.Trainer;
 import java.io.IOException;
 import java.util.*;
 import static math.deeplearning.common.Util.*;
 
 /**
  * ディープラーニング(隠れ層1層).
+ * <p>
+ * 作業領域を使い回す学習や並列の学習は {@link Trainer} のものを使い、
+ * このクラスはネットワークの形と、行列の計算を1行ずつ書き下した {@link #learn()} だけを持つ。
  */
-public class DeepLearning {
+public class DeepLearning extends Trainer {
     // 学習データの行数
     private int M;
-    // 学習データの列数(画像のピクセル数)
-    private int D;
-    // 分類クラス数
-    private int N;
-    // 学習回数
-    private int iters;
-    // バッチデータサイズ
-    private int batchSize;
-    // 学習率
-    private double alpha;
-
-    // MNIST画像データ
-    private RealMatrix xAll;
-    private RealMatrix xTest;
-    private RealMatrix ytAll;
-    private RealMatrix ytTest;
-
-    // 重み行列
-    private RealMatrix V;
-    private RealMatrix W;
+    // 隠れ層のニューロン数
+    private int H;
+    // 重み行列(ネットワークの重みそのもの)
+    private Matrix V;
+    private Matrix W;
 
     public DeepLearning(int iters, int H, int batchSize, double alpha) throws IOException {
-        // MNISTデータセットを読み込む
-        xAll = addBiasCol(div(loadMnistImage(MNIST_TRAIN_IMAGE_FILE_NAME), 255));
-        xTest = addBiasCol(div(loadMnistImage(MNIST_TEST_IMAGE_FILE_NAME), 255));
-        ytAll = oneHotEncode(loadMnistLabel(MNIST_TRAIN_LABEL_FILE_NAME), 10);
-        ytTest = oneHotEncode(loadMnistLabel(MNIST_TEST_LABEL_FILE_NAME), 10);
-
-        M = xAll.getRowDimension();
-        D = xAll.getColumnDimension();
-        N = ytAll.getColumnDimension();
-
-        this.iters = iters;
-        this.batchSize = batchSize;
-        this.alpha = alpha;
+        // MNISTデータセットのキャッシュファイルを開く
+        // (画素値はミニバッチに選んだ行だけ0～1にしてdoubleに読み込む)
+        // (math.deeplearning.streamを指定したら、メモリマップせずにその行数ずつファイルから読み込む)
+        this(mnistDataset(MNIST_TRAIN_IMAGE_FILE_NAME, MNIST_TRAIN_LABEL_FILE_NAME),
+                mnistDataset(MNIST_TEST_IMAGE_FILE_NAME, MNIST_TEST_LABEL_FILE_NAME),
+                iters, H, batchSize, alpha);
+    }
 
-        // 重み行列をHe Normalで初期化
-        V = initW(D, H);
-        W = initW(H + 1, N);
+    /**
+     * 読み込み済みのデータで初期化する.
+     *
+     * @param train     学習データ
+     * @param test      評価用データ
+     * @param iters     学習回数
+     * @param H         隠れ層のニューロン数
+     * @param batchSize バッチデータサイズ
+     * @param alpha     学習率
+     */
+    DeepLearning(Dataset train, Dataset test,
+                 int iters, int H, int batchSize, double alpha) {
+        // ネットワークを組み立て、重み行列を入力側の層から順にHe Normalで初期化
+        // (隠れ層はReLU関数、出力層はソフトマックス関数)
+        super("DeepLearning", new Network.Builder(train.cols).dense(H).reLU().dense(train.classNum).build(),
+                train, test, iters, batchSize, alpha);
+        M = train.rows;
+        this.H = H;
+        Matrix[] ws = weights();
+        V = ws[0];
+        W = ws[1];
     }
 
     public static void main(String... args) throws Exception {
         // 学習回数を10000、隠れ層のニューロン数を128、バッチサイズを512、学習率を0.01に設定する
         DeepLearning dl = new DeepLearning(10000, 128, 512, 0.01);
-        // 学習する
-        dl.learn();
+        // 作業領域を使い回して学習する(システムプロパティでチェックポイントファイルや並列の学習を指定できる)
+        dl.learnAsConfigured();
     }
 
     public void learn() {
@@ -64,30 +70,33 @@ public class DeepLearning {
         List<Integer> indexes = new ArrayList<>();
         for (int i = 0; i < M; i++) indexes.add(i);
 
-        for (int i = 0; i < iters; i++) {
-            // 学習データをサンプリング
-            List<Integer> index = randIndex(indexes, M, batchSize);
-            RealMatrix x = sampling(xAll, index);
-            RealMatrix yt = sampling(ytAll, index);
+        try (Evaluator evaluator = newEvaluator();
+             Checkpoint.Writer checkpointer = newCheckpointer()) {
+            for (int i = startIter; i < iters; i++) {
+                // 学習データをサンプリング
+                List<Integer> index = randIndex(indexes, M, batchSize);
+                // (画素値は0が多いので、0でない要素だけを読み込んで1層目の積を計算する)
+                SparseMatrix x = samplingSparse(train, index);
+                int[] t = samplingLabel(train, index);
 
-            // 各層の出力値を計算
-            RealMatrix a = dot(x, V);
-            RealMatrix b = reLU(a);
-            RealMatrix b1 = addBiasCol(b);
-            RealMatrix u = dot(b1, W);
-            RealMatrix yp = softmax(u);
-            // 各層の誤差を計算
-            RealMatrix yd = sub(yp, yt);
-            RealMatrix bd = mult(step(a), dot(yd, trans(removeBias(W))));
-            // 勾配に学習率を掛けて各層の重みを更新
-            W = sub(W, mult(div(dot(trans(b1), yd), batchSize), alpha));
-            V = sub(V, mult(div(dot(trans(x), bd), batchSize), alpha));
+                // 各層の出力値を計算(バイアスは重み行列の先頭行として積の中で加える)
+                Matrix a = dotBias(x, V);
+                Matrix b = reLU(a);
+                Matrix u = dotBias(b, W);
+                // 各層の誤差を計算(不要になった行列に上書きする)
+                // (出力層はソフトマックス関数と正解ラベルとの差を1回の走査で計算する)
+                Matrix yd = softmaxCrossEntropy(u, t, u, null);
+                Matrix bd = mult(step(a, a), dotTrans(yd, removeBias(W)), a);
+                // 勾配に学習率を掛けて各層の重みを更新
+                Matrix gW = transDotBias(b, yd);
+                Matrix gV = transDotBias(x, bd);
+                sub(W, mult(gW, alpha / batchSize, gW), W);
+                sub(V, mult(gV, alpha / batchSize, gV), V);
 
-            // 一定回数学習するごとに誤差と精度を表示
-            if (i % 100 == 0) {
-                RealMatrix p = softmax(dot(addBiasCol(reLU(dot(xTest, V))), W));
-                System.out.print(i + " " + crossEntropy(ytTest, p) + " ");
-                System.out.println(calcAccuracy(ytTest, p));
+                // 一定回数(または一定時間)学習するごとに、別スレッドで誤差と精度を表示
+                evaluator.step(i);
+                // 一定回数ごとに、別スレッドで重みを書き込む
+                checkpointer.step(i);
             }
         }
     }
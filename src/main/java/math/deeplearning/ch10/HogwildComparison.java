@@ -0,0 +1,50 @@
+package math.deeplearning.ch10;
+
+import math.deeplearning.common.ByteDataset;
+import math.deeplearning.common.Gemm;
+import static math.deeplearning.common.Util.*;
+
+/**
+ * 非同期の学習(Hogwild)と同期して学習する場合の速度と精度を比べる.
+ * <p>
+ * 同じシードで初期化したモデルを、1スレッド、ミニバッチを分割して並列(同期)、
+ * Hogwild(非同期)の順に同じ回数学習し、1秒あたりの学習データ数と評価用データでの精度を表示する。
+ * 引数は学習回数とスレッド数(省略時は2000回、{@link Gemm#threads()}).
+ */
+public class HogwildComparison {
+    public static void main(String... args) throws Exception {
+        int iters = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Gemm.threads();
+        int batchSize = 512;
+        ByteDataset train = loadMnist(MNIST_TRAIN_IMAGE_FILE_NAME, MNIST_TRAIN_LABEL_FILE_NAME);
+        ByteDataset test = loadMnist(MNIST_TEST_IMAGE_FILE_NAME, MNIST_TEST_LABEL_FILE_NAME);
+
+        setSeed(1);
+        DeepLearning sync = new DeepLearning(train, test, iters, 128, batchSize, 0.01);
+        long start = System.nanoTime();
+        sync.learnInPlace();
+        String syncResult = result("sync", 1, iters * batchSize, start, sync.accuracy());
+
+        setSeed(1);
+        DeepLearning parallel = new DeepLearning(train, test, iters, 128, batchSize, 0.01);
+        start = System.nanoTime();
+        parallel.learnParallel(threads);
+        String parallelResult = result("sync", threads, iters * batchSize, start, parallel.accuracy());
+
+        setSeed(1);
+        DeepLearning hogwild = new DeepLearning(train, test, iters, 128, batchSize, 0.01);
+        start = System.nanoTime();
+        hogwild.learnHogwild(threads, true);
+        String hogwildResult = result("hogwild", threads, iters * batchSize, start, hogwild.accuracy());
+
+        System.out.println("mode    threads  samples/sec  accuracy");
+        System.out.println(syncResult);
+        System.out.println(parallelResult);
+        System.out.println(hogwildResult);
+    }
+
+    private static String result(String mode, int threads, long samples, long start, double accuracy) {
+        double sec = (System.nanoTime() - start) / 1e9;
+        return String.format("%-7s %7d %12.0f  %.4f", mode, threads, samples / sec, accuracy);
+    }
+}
@@ -0,0 +1,56 @@
+package math.deeplearning.ch10;
+
+import math.deeplearning.common.Checkpoint;
+import math.deeplearning.common.Dataset;
+import math.deeplearning.common.Evaluator;
+import math.deeplearning.common.Network;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import static math.deeplearning.common.Util.*;
+
+/**
+ * 学習中に書き込んだチェックポイントファイルの重みで評価用データを分類する.
+ * <p>
+ * チェックポイントファイルはメモリマップして読み込み、重み行列の形から学習したときと同じネットワーク
+ * (全結合層とReLU関数を交互に並べ、最後は全結合層)を組み立てるので、学習データを読み込まずにすぐ推論を始められる。
+ * 引数はチェックポイントファイル(省略時はシステムプロパティ math.deeplearning.checkpoint).
+ */
+public class Inference {
+    public static void main(String... args) throws Exception {
+        String file = args.length > 0 ? args[0] : System.getProperty("math.deeplearning.checkpoint");
+        if (file == null) {
+            System.err.println("usage: Inference <checkpoint file>");
+            return;
+        }
+        long start = System.nanoTime();
+        Network net = load(Paths.get(file));
+        System.out.printf("loaded %s in %.1f ms%n", file, (System.nanoTime() - start) / 1e6);
+
+        Dataset test = mnistDataset(MNIST_TEST_IMAGE_FILE_NAME, MNIST_TEST_LABEL_FILE_NAME);
+        int rows = Evaluator.defaultChunkRows();
+        try (Evaluator evaluator = new Evaluator(test, net.weights(), rows, net.plan(rows)::forward)) {
+            System.out.println(evaluator.evaluate());
+        }
+    }
+
+    /**
+     * チェックポイントファイルの重みを持つネットワークを作る.
+     * 重み行列はバイアスを先頭行に持つ全結合層の重みとして、入力側から順に並んでいるものとする.
+     *
+     * @param path チェックポイントファイル
+     * @return ネットワーク
+     */
+    public static Network load(Path path) throws IOException {
+        Checkpoint cp = Checkpoint.load(path);
+        if (cp.weightCount() == 0) throw new IllegalArgumentException("no weights in " + path);
+        Network.Builder builder = new Network.Builder(cp.rows(0) - 1);
+        for (int k = 0; k < cp.weightCount(); k++) {
+            if (k > 0) builder.reLU();
+            builder.dense(cp.cols(k));
+        }
+        Network net = builder.build();
+        cp.copyTo(net.weights());
+        return net;
+    }
+}
@@ -0,0 +1,148 @@
+package math.deeplearning.ch10;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import math.deeplearning.common.MicroBatcher;
+import math.deeplearning.common.Network;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 学習済みのネットワークで手書き数字を分類するHTTPサーバー(ループバックアドレスだけで待ち受ける).
+ * <p>
+ * <ul>
+ * <li>POST /predict 本文に画像1枚の画素値(784バイト, 0～255)を送ると、
+ * 分類結果を {"label":7,"probability":0.98,"batch":12} の形で返す。</li>
+ * <li>GET /stats 受け付けた要求数、平均バッチサイズ、スループット、応答時間(p50, p99)を返す。
+ * ?reset を付けると数え直す。</li>
+ * </ul>
+ * 同時に届いた要求は {@link MicroBatcher} でまとめて順伝播する。
+ * 引数はチェックポイントファイル(省略時はシステムプロパティ math.deeplearning.checkpoint)。
+ * ポート番号はシステムプロパティ math.deeplearning.serve.port (既定8080)、
+ * 要求を処理するスレッド数は math.deeplearning.serve.threads (既定64)で指定できる。
+ */
+public class InferenceServer implements AutoCloseable {
+    private static final int PORT = Integer.getInteger("math.deeplearning.serve.port", 8080);
+    private static final int THREADS = Integer.getInteger("math.deeplearning.serve.threads", 64);
+
+    private final HttpServer server;
+    private final ExecutorService handlers;
+    private final MicroBatcher batcher;
+    private final int inCols;
+
+    /**
+     * サーバーを作って待ち受けを始める.
+     *
+     * @param net     学習済みのネットワーク
+     * @param batcher 要求をまとめて順伝播するもの
+     * @param port    ポート番号(0なら空いているポート)
+     * @param threads 要求を処理するスレッド数
+     */
+    public InferenceServer(Network net, MicroBatcher batcher, int port, int threads) throws IOException {
+        this.batcher = batcher;
+        this.inCols = net.inCols();
+        AtomicInteger ids = new AtomicInteger();
+        handlers = Executors.newFixedThreadPool(threads, r -> {
+            Thread th = new Thread(r, "http-" + ids.incrementAndGet());
+            th.setDaemon(true);
+            return th;
+        });
+        // 応答のヘッダと本文を分けて書き込んでも待たされないように、TCP_NODELAYにする
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        server.setExecutor(handlers);
+        server.createContext("/predict", this::predict);
+        server.createContext("/stats", this::stats);
+        server.start();
+    }
+
+    public static void main(String... args) throws Exception {
+        String file = args.length > 0 ? args[0] : System.getProperty("math.deeplearning.checkpoint");
+        if (file == null) {
+            System.err.println("usage: InferenceServer <checkpoint file>");
+            return;
+        }
+        Network net = Inference.load(Paths.get(file));
+        MicroBatcher batcher = new MicroBatcher(net);
+        InferenceServer server = new InferenceServer(net, batcher, PORT, THREADS);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.out.println(batcher);
+            server.close();
+        }));
+        System.out.printf("listening on http://%s:%d/ (maxBatch=%d)%n",
+                InetAddress.getLoopbackAddress().getHostAddress(), server.port(), batcher.maxBatch);
+    }
+
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    private void predict(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "POST an image (" + inCols + " bytes)");
+                return;
+            }
+            byte[] body = readAll(exchange.getRequestBody());
+            if (body.length != inCols) {
+                respond(exchange, 400, "expected " + inCols + " bytes, got " + body.length);
+                return;
+            }
+            double[] input = new double[inCols];
+            for (int j = 0; j < inCols; j++) input[j] = (body[j] & 0xff) / 255.0;
+            respond(exchange, 200, batcher.predict(input).toString());
+        } catch (ExecutionException e) {
+            boolean rejected = e.getCause() instanceof RejectedExecutionException;
+            respond(exchange, rejected ? 503 : 500, String.valueOf(e.getCause()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 503, "interrupted");
+        }
+    }
+
+    private void stats(HttpExchange exchange) throws IOException {
+        String stats = batcher.toString();
+        if ("reset".equals(exchange.getRequestURI().getQuery())) batcher.reset();
+        respond(exchange, 200, stats);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        byte[] buf = new byte[4096];
+        for (int n; (n = in.read(buf)) > 0; ) out.write(buf, 0, n);
+        return out.toByteArray();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type",
+                text.startsWith("{") ? "application/json" : "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * 待ち受けを止め、推論スレッドを止める.
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        batcher.close();
+        handlers.shutdownNow();
+    }
+}
@@ -0,0 +1,116 @@
+package math.deeplearning.ch10;
+
+import math.deeplearning.common.LatencyHistogram;
+import math.deeplearning.common.MnistCache;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import static math.deeplearning.common.Util.*;
+
+/**
+ * {@link InferenceServer} に評価用データの画像を同時にいくつも送り、スループットと応答時間を測る.
+ * <p>
+ * 引数はポート番号、同時に要求を送るスレッド数、要求の総数(省略時は8080, 16, 10000)。
+ * 最初の1割は測定に含めない(ウォームアップ)。最後にサーバー側の集計(GET /stats)も表示する。
+ */
+public class LoadGenerator {
+    public static void main(String... args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int total = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+        String base = "http://127.0.0.1:" + port;
+
+        MnistCache images = openMnist(MNIST_TEST_IMAGE_FILE_NAME);
+        MnistCache labels = openMnist(MNIST_TEST_LABEL_FILE_NAME);
+        int warmup = total / 10;
+        AtomicInteger counter = new AtomicInteger();
+        AtomicLong correct = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        LatencyHistogram latency = new LatencyHistogram();
+        AtomicLong measureStart = new AtomicLong();
+
+        Thread[] threads = new Thread[clients];
+        for (int c = 0; c < clients; c++) {
+            threads[c] = new Thread(() -> {
+                byte[] body = new byte[images.dim];
+                for (int n = counter.getAndIncrement(); n < total; n = counter.getAndIncrement()) {
+                    if (n == warmup) measureStart.set(System.nanoTime());
+                    int i = n % images.count;
+                    ByteBuffer row = images.row(i);
+                    row.get(body);
+                    long start = System.nanoTime();
+                    try {
+                        String response = post(base + "/predict", body);
+                        if (n >= warmup) {
+                            latency.record(System.nanoTime() - start);
+                            if (label(response) == labels.get(i, 0)) correct.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        errors.incrementAndGet();
+                    }
+                }
+            }, "client-" + c);
+        }
+        // ウォームアップ後にサーバー側の集計も数え直す
+        for (Thread th : threads) th.start();
+        while (counter.get() < warmup) Thread.sleep(1);
+        get(base + "/stats?reset");
+        for (Thread th : threads) th.join();
+        long end = System.nanoTime();
+
+        long measured = end - measureStart.get();
+        long n = latency.count();
+        System.out.printf("clients=%d requests=%d errors=%d throughput=%.0f/sec accuracy=%.4f%n",
+                clients, n, errors.get(), n / (measured / 1e9), n == 0 ? 0.0 : (double) correct.get() / n);
+        System.out.println("client latency " + latency);
+        System.out.println("server " + get(base + "/stats"));
+    }
+
+    // 応答から分類結果のラベルを取り出す
+    private static int label(String json) {
+        int p = json.indexOf("\"label\":");
+        if (p < 0) return -1;
+        int s = p + "\"label\":".length(), e = s;
+        while (e < json.length() && Character.isDigit(json.charAt(e))) e++;
+        return Integer.parseInt(json.substring(s, e));
+    }
+
+    private static String post(String url, byte[] body) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        // (本文をバッファしてヘッダと一緒に送る. 分けて送るとNagleアルゴリズムと遅延ACKで数十ミリ秒待たされる)
+        conn.setRequestProperty("Content-Type", "application/octet-stream");
+        try (OutputStream out = conn.getOutputStream()) {
+            out.write(body);
+        }
+        return read(conn);
+    }
+
+    private static String get(String url) throws IOException {
+        return read((HttpURLConnection) new URL(url).openConnection());
+    }
+
+    // 応答を読み切る(読み切ると接続が再利用される)
+    private static String read(HttpURLConnection conn) throws IOException {
+        int status = conn.getResponseCode();
+        InputStream in = status < 400 ? conn.getInputStream() : conn.getErrorStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        if (in != null) {
+            try (InputStream is = in) {
+                byte[] buf = new byte[1024];
+                for (int n; (n = is.read(buf)) > 0; ) out.write(buf, 0, n);
+            }
+        }
+        String text = new String(out.toByteArray(), StandardCharsets.UTF_8);
+        if (status >= 400) throw new IOException("HTTP " + status + ": " + text);
+        return text;
+    }
+}
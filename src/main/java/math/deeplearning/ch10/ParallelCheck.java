@@ -0,0 +1,88 @@
+package math.deeplearning.ch10;
+
+import math.deeplearning.common.ByteDataset;
+import math.deeplearning.common.DataParallel;
+import math.deeplearning.common.Matrix;
+import math.deeplearning.common.Sampler;
+import java.util.Random;
+import static math.deeplearning.common.Util.setSeed;
+
+/**
+ * learnParallelの学習ステップが1スレッドの学習と同じ重みになることを確認する.
+ * <p>
+ * 同じシードで初期化した2つのモデルに同じ順序でミニバッチを与え、
+ * 一方は1スレッドで、もう一方はミニバッチをシャードに分けて並列に学習する。
+ * 1スレッドの側は密行列で、並列の側は疎行列で読み込むので、1層目の疎行列の積も同時に確かめられる。
+ * 勾配を足し合わせる順序が違う分の丸め誤差を超えて重みがずれたら終了コード1で終了する。
+ */
+public class ParallelCheck {
+    // 学習するステップ数
+    private static final int STEPS = 50;
+    // 許容する重みの相対誤差
+    private static final double TOLERANCE = 1e-9;
+
+    public static void main(String... args) {
+        int workers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        ByteDataset ds = AllocationCheck.randomDataset(2048, 784, 10, new Random(0));
+
+        setSeed(1);
+        DeepLearning single = new DeepLearning(ds, ds, 0, 128, 512, 0.01);
+        setSeed(1);
+        DeepLearning parallel = new DeepLearning(ds, ds, 0, 128, 512, 0.01);
+        try (DataParallel dp = new DataParallel(workers)) {
+            DeepLearning.Workspace ws = single.new Workspace();
+            DeepLearning.ParallelWorkspace pws = parallel.new ParallelWorkspace(dp);
+            run(ws::learnStep, new Matrix(ws.index.length, ds.cols), ws.t, ws.index, pws::learnStep, ds);
+        }
+        double diff1 = maxRelativeDiff(single.weights(), parallel.weights());
+        System.out.println("DeepLearning:  max relative diff " + diff1 + " (" + workers + " workers)");
+
+        setSeed(1);
+        DeepLearning2 single2 = new DeepLearning2(ds, ds, 0, 128, 512, 0.01);
+        setSeed(1);
+        DeepLearning2 parallel2 = new DeepLearning2(ds, ds, 0, 128, 512, 0.01);
+        try (DataParallel dp = new DataParallel(workers)) {
+            DeepLearning2.Workspace ws = single2.new Workspace();
+            DeepLearning2.ParallelWorkspace pws = parallel2.new ParallelWorkspace(dp);
+            run(ws::learnStep, new Matrix(ws.index.length, ds.cols), ws.t, ws.index, pws::learnStep, ds);
+        }
+        double diff2 = maxRelativeDiff(single2.weights(), parallel2.weights());
+        System.out.println("DeepLearning2: max relative diff " + diff2 + " (" + workers + " workers)");
+
+        if (!(diff1 <= TOLERANCE && diff2 <= TOLERANCE)) System.exit(1);
+    }
+
+    // 同じindexの列で両方を学習する
+    private static void run(Step single, Matrix x, int[] t, int[] index, ParallelStep parallel, ByteDataset ds) {
+        Sampler sampler = new Sampler(ds.rows, 7);
+        for (int i = 0; i < STEPS; i++) {
+            sampler.next(index);
+            ds.gather(index, x);
+            ds.gatherLabels(index, t);
+            single.learnStep(x, t);
+            parallel.learnStep(index);
+        }
+    }
+
+    // 重み行列の要素ごとの相対誤差の最大値
+    private static double maxRelativeDiff(Matrix[] aMs, Matrix[] bMs) {
+        double max = 0;
+        for (int k = 0; k < aMs.length; k++) {
+            for (int i = 0; i < aMs[k].rows; i++) {
+                for (int j = 0; j < aMs[k].cols; j++) {
+                    double a = aMs[k].get(i, j), b = bMs[k].get(i, j);
+                    max = Math.max(max, Math.abs(a - b) / Math.max(1e-3, Math.abs(a)));
+                }
+            }
+        }
+        return max;
+    }
+
+    private interface Step {
+        void learnStep(Matrix x, int[] t);
+    }
+
+    private interface ParallelStep {
+        void learnStep(int[] index);
+    }
+}
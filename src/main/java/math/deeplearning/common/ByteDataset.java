@@ -0,0 +1,106 @@
+package math.deeplearning.common;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 画素値を1バイト、正解ラベルをクラス番号で保持するデータセット.
+ * <p>
+ * 画素値はメモリマップしたキャッシュファイルなどのバッファにそのまま置いておき、
+ * ミニバッチに選ばれた行だけを正規化してdoubleの行列に読み込む。
+ * バッファは絶対位置で読むので、複数のスレッドから同時に読み込んでもよい。
+ */
+public class ByteDataset extends Dataset {
+    // 画素値(行優先, rows x cols)
+    private final ByteBuffer pixels;
+    // 正解ラベル(クラス番号)
+    private final byte[] labels;
+    // 画素値に掛ける係数
+    private final double scale;
+
+    public ByteDataset(ByteBuffer pixels, byte[] labels, int cols, int classNum, double scale) {
+        super(labels.length, cols, classNum);
+        if (pixels.capacity() != (long) labels.length * cols) {
+            throw new IllegalArgumentException("pixels " + pixels.capacity() + " != "
+                    + labels.length + " x " + cols);
+        }
+        this.pixels = pixels;
+        this.labels = labels;
+        this.scale = scale;
+    }
+
+    /**
+     * MNISTのキャッシュファイルからデータセットを作る. 画素値はコピーしない.
+     *
+     * @param images   画像のキャッシュ
+     * @param labels   ラベルのキャッシュ
+     * @param classNum 分類クラス数
+     * @param scale    画素値に掛ける係数(0～1にするなら1/255)
+     * @return データセット
+     */
+    public static ByteDataset of(MnistCache images, MnistCache labels, int classNum, double scale) {
+        byte[] labelA = new byte[labels.count];
+        labels.buffer().get(labelA);
+        return new ByteDataset(images.buffer(), labelA, images.dim, classNum, scale);
+    }
+
+    /**
+     * 選んだ行の画素値を正規化して行列に読み込む.
+     *
+     * @param index 行番号
+     * @param xM    読み込み先(index.length x cols)
+     * @return xM
+     */
+    @Override
+    public Matrix gather(int[] index, Matrix xM) {
+        checkShape(index, xM);
+        for (int i = 0; i < index.length; i++) {
+            int p = index[i] * cols, r = xM.index(i);
+            for (int j = 0; j < cols; j++) {
+                xM.data[r + j] = (pixels.get(p + j) & 0xff) * scale;
+            }
+        }
+        return xM;
+    }
+
+    /**
+     * 選んだ行の0でない画素値だけを正規化して疎行列に読み込む.
+     *
+     * @param index 行番号
+     * @param xM    読み込み先(列数がcolsのもの)
+     * @return xM
+     */
+    @Override
+    public SparseMatrix gather(int[] index, SparseMatrix xM) {
+        SparseMatrix.checkCols(cols, xM);
+        xM.clear();
+        for (int i : index) {
+            int p = i * cols;
+            for (int j = 0; j < cols; j++) {
+                int v = pixels.get(p + j) & 0xff;
+                if (v != 0) xM.add(j, v * scale);
+            }
+            xM.endRow();
+        }
+        return xM;
+    }
+
+    /**
+     * 選んだ行の正解ラベルを読み込む.
+     *
+     * @param index 行番号
+     * @param t     読み込み先
+     * @return t
+     */
+    @Override
+    public int[] gatherLabels(int[] index, int[] t) {
+        for (int i = 0; i < index.length; i++) {
+            t[i] = labels[index[i]];
+        }
+        return t;
+    }
+
+    @Override
+    public int label(int i) {
+        return labels[i];
+    }
+}
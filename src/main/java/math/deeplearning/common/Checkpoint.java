@@ -0,0 +1,565 @@
+package math.deeplearning.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * 重み行列のチェックポイントファイル.
+ * <p>
+ * ファイルはヘッダ、各行列の形、値の順に並ぶ(リトルエンディアン)。
+ * <pre>
+ * 0   int   識別子
+ * 4   int   バージョン
+ * 8   int   値1つのバイト数(4ならfloat, 8ならdouble)
+ * 12  int   行列の数(n)
+ * 16  long  保存したときの学習回数
+ * 24  long  チェックサム(CRC32, この8バイトを除くファイル全体)
+ * 32  int   重み行列の数(w, 残りのn-w個は最適化手法の状態)
+ * 36  int   最適化手法の状態の種類(状態がなければ0)
+ * 40  int[] 行列ごとの行数と列数(2n個)
+ * ... 値(行列ごとに行優先, 先頭は64バイト境界)
+ * </pre>
+ * 最適化手法の状態({@link Optimizer#state})も書き込んでおけば、学習を再開するときに
+ * 速度や移動平均、ステップ数も続きから使える({@link #restore})。
+ * バージョン1のファイル(32バイト目から行列の形が並び、すべて重み行列)も読み込める。
+ * 書き込みは一時ファイルに書いてから名前を変えるので、途中で止まっても前のファイルは壊れない。
+ * 読み込みは {@link FileChannel#map} でファイルをそのまま見るので、値を読み込み直したり変換したりしない。
+ * (Java 8でも動くように、Bufferのメソッドは Buffer にキャストして呼び出す)
+ */
+public class Checkpoint {
+    // チェックポイントファイルの識別子
+    private static final int MAGIC = 0x4d444c43;
+    private static final int VERSION = 2;
+    // 値の先頭をそろえる境界
+    private static final int ALIGN = 64;
+    // チェックサムの位置
+    private static final int CHECKSUM_OFFSET = 24;
+    private static final int WEIGHTS_OFFSET = 32;
+    private static final int SHAPE_OFFSET = 40;
+    // バージョン1の行列の形の位置
+    private static final int SHAPE_OFFSET_V1 = 32;
+    // 一度に書き込むバイト数
+    private static final int WRITE_CHUNK = 1 << 16;
+
+    // ファイル全体
+    private final ByteBuffer file;
+    // 保存したときの学習回数
+    public final int iteration;
+    // 値1つのバイト数(4または8)
+    public final int elementBytes;
+    // 重み行列の数(残りは最適化手法の状態)
+    private final int weightCount;
+    // 最適化手法の状態の種類
+    private final int stateKind;
+    private final int[] rows;
+    private final int[] cols;
+    // 行列ごとの値の位置
+    private final long[] offsets;
+
+    private Checkpoint(ByteBuffer file, int iteration, int elementBytes, int weightCount, int stateKind,
+                       int[] rows, int[] cols, long[] offsets) {
+        this.file = file;
+        this.iteration = iteration;
+        this.elementBytes = elementBytes;
+        this.weightCount = weightCount;
+        this.stateKind = stateKind;
+        this.rows = rows;
+        this.cols = cols;
+        this.offsets = offsets;
+    }
+
+    /**
+     * 重み行列をファイルに書き込む.
+     *
+     * @param path      ファイル
+     * @param weights   重み行列
+     * @param iteration 学習回数
+     * @param asFloat   trueなら値をfloatにして書き込む
+     */
+    public static void write(Path path, Matrix[] weights, int iteration, boolean asFloat) throws IOException {
+        write(path, weights, weights.length, 0, iteration, asFloat);
+    }
+
+    /**
+     * 重み行列と最適化手法の状態をファイルに書き込む.
+     *
+     * @param path      ファイル
+     * @param weights   重み行列
+     * @param optimizer 最適化手法(weightsの形で初期化したもの)
+     * @param iteration 学習回数
+     * @param asFloat   trueなら値をfloatにして書き込む(状態もfloatに丸める)
+     */
+    public static void write(Path path, Matrix[] weights, Optimizer optimizer, int iteration, boolean asFloat)
+            throws IOException {
+        write(path, concat(weights, optimizer.state()), weights.length, optimizer.stateKind(), iteration, asFloat);
+    }
+
+    private static Matrix[] concat(Matrix[] weights, Matrix[] state) {
+        Matrix[] ms = Arrays.copyOf(weights, weights.length + state.length);
+        System.arraycopy(state, 0, ms, weights.length, state.length);
+        return ms;
+    }
+
+    // matricesの先頭weightCount個が重み行列、残りが種類stateKindの最適化手法の状態
+    private static void write(Path path, Matrix[] matrices, int weightCount, int stateKind, int iteration,
+                              boolean asFloat) throws IOException {
+        int elementBytes = asFloat ? 4 : 8;
+        int headerSize = headerSize(matrices.length, SHAPE_OFFSET);
+        ByteBuffer header = ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(elementBytes).putInt(matrices.length)
+                .putLong(iteration).putLong(0).putInt(weightCount).putInt(stateKind);
+        for (Matrix m : matrices) header.putInt(m.rows).putInt(m.cols);
+        ((Buffer) header).clear();
+
+        Path tmp = Paths.get(path + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            // 値を先に書き込みながらチェックサムを計算し、最後にヘッダを書く
+            CRC32 crc = new CRC32();
+            long position = headerSize;
+            ByteBuffer buf = ByteBuffer.allocate(WRITE_CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+            for (Matrix w : matrices) {
+                for (int i = 0; i < w.rows; i++) {
+                    int p = w.index(i);
+                    for (int j = 0; j < w.cols; j++) {
+                        if (buf.remaining() < elementBytes) position = flush(ch, buf, position, crc);
+                        if (asFloat) {
+                            buf.putFloat((float) w.data[p + j]);
+                        } else {
+                            buf.putDouble(w.data[p + j]);
+                        }
+                    }
+                }
+            }
+            flush(ch, buf, position, crc);
+            crc.update(header.array(), 0, CHECKSUM_OFFSET);
+            crc.update(header.array(), CHECKSUM_OFFSET + 8, headerSize - CHECKSUM_OFFSET - 8);
+            header.putLong(CHECKSUM_OFFSET, crc.getValue());
+            writeFully(ch, header, 0);
+            ch.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // バッファの内容をpositionに書き込んでチェックサムに加え、次の位置を返す
+    private static long flush(FileChannel ch, ByteBuffer buf, long position, CRC32 crc) throws IOException {
+        ((Buffer) buf).flip();
+        crc.update(buf.array(), 0, buf.limit());
+        int len = buf.limit();
+        writeFully(ch, buf, position);
+        ((Buffer) buf).clear();
+        return position + len;
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) position += ch.write(buf, position);
+    }
+
+    private static int headerSize(int count, int shapeOffset) {
+        int size = shapeOffset + 8 * count;
+        return (size + ALIGN - 1) / ALIGN * ALIGN;
+    }
+
+    /**
+     * ファイルをメモリマップして開き、チェックサムを確かめる.
+     *
+     * @param path ファイル
+     * @return チェックポイント
+     */
+    public static Checkpoint load(Path path) throws IOException {
+        return load(path, true);
+    }
+
+    /**
+     * ファイルをメモリマップして開く.
+     *
+     * @param path   ファイル
+     * @param verify trueならチェックサムを確かめる(ファイル全体を読むことになる)
+     * @return チェックポイント
+     */
+    public static Checkpoint load(Path path, boolean verify) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size < SHAPE_OFFSET_V1) throw new EOFException("truncated checkpoint: " + path);
+            if (size > Integer.MAX_VALUE) throw new IOException("checkpoint too large: " + path);
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            if (buf.getInt(0) != MAGIC) throw new IOException("not a checkpoint file: " + path);
+            int version = buf.getInt(4);
+            if (version != 1 && version != VERSION) throw new IOException("unsupported checkpoint version " + version);
+            int shapeOffset = version == 1 ? SHAPE_OFFSET_V1 : SHAPE_OFFSET;
+            int elementBytes = buf.getInt(8);
+            int count = buf.getInt(12);
+            if ((elementBytes != 4 && elementBytes != 8) || count < 0
+                    || shapeOffset + 8L * count > size) {
+                throw new IOException("corrupt checkpoint header: " + path);
+            }
+            int weightCount = version == 1 ? count : buf.getInt(WEIGHTS_OFFSET);
+            int stateKind = version == 1 ? 0 : buf.getInt(WEIGHTS_OFFSET + 4);
+            if (weightCount < 0 || weightCount > count) throw new IOException("corrupt checkpoint header: " + path);
+            int[] rows = new int[count];
+            int[] cols = new int[count];
+            long[] offsets = new long[count];
+            long position = headerSize(count, shapeOffset);
+            for (int k = 0; k < count; k++) {
+                rows[k] = buf.getInt(shapeOffset + 8 * k);
+                cols[k] = buf.getInt(shapeOffset + 8 * k + 4);
+                if (rows[k] < 0 || cols[k] < 0) throw new IOException("corrupt checkpoint shape: " + path);
+                offsets[k] = position;
+                position += (long) rows[k] * cols[k] * elementBytes;
+            }
+            if (position != size) {
+                throw new IOException("checkpoint size " + size + " does not match shapes (" + position + "): " + path);
+            }
+            if (verify && checksum(buf, headerSize(count, shapeOffset)) != buf.getLong(CHECKSUM_OFFSET)) {
+                throw new IOException("checkpoint checksum mismatch: " + path);
+            }
+            return new Checkpoint(buf, (int) buf.getLong(16), elementBytes, weightCount, stateKind, rows, cols, offsets);
+        }
+    }
+
+    // チェックサムの8バイトを除いたファイル全体のCRC32(書き込みと同じく値、ヘッダの順に計算する)
+    private static long checksum(ByteBuffer buf, int headerSize) {
+        CRC32 crc = new CRC32();
+        crc.update(range(buf, headerSize, buf.capacity()));
+        crc.update(range(buf, 0, CHECKSUM_OFFSET));
+        crc.update(range(buf, CHECKSUM_OFFSET + 8, headerSize));
+        return crc.getValue();
+    }
+
+    private static ByteBuffer range(ByteBuffer buf, int start, int end) {
+        ByteBuffer b = buf.duplicate();
+        ((Buffer) b).position(start).limit(end);
+        return b;
+    }
+
+    /**
+     * 行列の数を返す(最適化手法の状態を含む).
+     *
+     * @return 行列の数
+     */
+    public int size() {
+        return rows.length;
+    }
+
+    /**
+     * 重み行列の数を返す. 重み行列は先頭から並び、その後に最適化手法の状態が続く.
+     *
+     * @return 重み行列の数
+     */
+    public int weightCount() {
+        return weightCount;
+    }
+
+    public int rows(int k) {
+        return rows[k];
+    }
+
+    public int cols(int k) {
+        return cols[k];
+    }
+
+    /**
+     * k番目の行列の値をコピーせずに返す(doubleで保存したときだけ).
+     *
+     * @param k 行列の番号
+     * @return 読み込み専用のバッファ(長さrows x cols, 行優先)
+     */
+    public DoubleBuffer doubles(int k) {
+        if (elementBytes != 8) throw new IllegalStateException("checkpoint is stored as float");
+        return slice(k).asDoubleBuffer();
+    }
+
+    /**
+     * k番目の行列の値をコピーせずに返す(floatで保存したときだけ).
+     *
+     * @param k 行列の番号
+     * @return 読み込み専用のバッファ(長さrows x cols, 行優先)
+     */
+    public FloatBuffer floats(int k) {
+        if (elementBytes != 4) throw new IllegalStateException("checkpoint is stored as double");
+        return slice(k).asFloatBuffer();
+    }
+
+    private ByteBuffer slice(int k) {
+        ByteBuffer b = file.asReadOnlyBuffer();
+        long length = (long) rows[k] * cols[k] * elementBytes;
+        ((Buffer) b).position((int) offsets[k]).limit((int) (offsets[k] + length));
+        return b.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * 保存した重みを同じ形の重み行列にコピーする.
+     *
+     * @param weights 重み行列(保存したときと同じ順)
+     */
+    public void copyTo(Matrix[] weights) {
+        if (weights.length != weightCount) {
+            throw new IllegalArgumentException("checkpoint has " + weightCount + " weight matrices, not " + weights.length);
+        }
+        for (int k = 0; k < weights.length; k++) {
+            checkShape(k, weights[k]);
+            copy(k, weights[k]);
+        }
+    }
+
+    /**
+     * 保存した最適化手法の状態を読み込む. 同じ手法で同じ形の重みのときだけ読み込む.
+     *
+     * @param optimizer 最適化手法(重みの形で初期化したもの)
+     * @return 読み込んだらtrue(状態を保存していないか、手法や形が違えばfalseで、optimizerは変えない)
+     */
+    public boolean restore(Optimizer optimizer) {
+        Matrix[] state = optimizer.state();
+        if (state.length == 0 || stateKind != optimizer.stateKind() || size() - weightCount != state.length) {
+            return false;
+        }
+        for (int k = 0; k < state.length; k++) {
+            Matrix s = state[k];
+            if (s.rows != rows[weightCount + k] || s.cols != cols[weightCount + k]) return false;
+        }
+        for (int k = 0; k < state.length; k++) copy(weightCount + k, state[k]);
+        optimizer.restoreSteps();
+        return true;
+    }
+
+    private void checkShape(int k, Matrix w) {
+        if (w.rows != rows[k] || w.cols != cols[k]) {
+            throw new IllegalArgumentException("shape mismatch: " + rows[k] + "x" + cols[k]
+                    + " vs " + w.rows + "x" + w.cols);
+        }
+    }
+
+    // k番目の行列の値をwにコピーする
+    private void copy(int k, Matrix w) {
+        if (elementBytes == 8) {
+            DoubleBuffer src = doubles(k);
+            for (int i = 0; i < w.rows; i++) src.get(w.data, w.index(i), w.cols);
+        } else {
+            FloatBuffer src = floats(k);
+            for (int i = 0; i < w.rows; i++) {
+                int p = w.index(i);
+                for (int j = 0; j < w.cols; j++) w.data[p + j] = src.get();
+            }
+        }
+    }
+
+    /**
+     * 保存した値を新しい行列にコピーする.
+     *
+     * @return 行列
+     */
+    public Matrix[] toMatrices() {
+        Matrix[] ws = new Matrix[weightCount];
+        for (int k = 0; k < ws.length; k++) ws[k] = new Matrix(rows[k], cols[k]);
+        copyTo(ws);
+        return ws;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Checkpoint[iteration=").append(iteration)
+                .append(elementBytes == 4 ? " float" : " double");
+        for (int k = 0; k < weightCount; k++) sb.append(' ').append(rows[k]).append('x').append(cols[k]);
+        if (size() > weightCount) sb.append(" +").append(size() - weightCount).append(" optimizer state");
+        return sb.append(']').toString();
+    }
+
+    /**
+     * 学習を止めずに、一定回数(または一定時間)ごとに別スレッドでチェックポイントを書き込む.
+     * <p>
+     * 書き込むときは学習スレッドで重みをスナップショットにコピーするだけで、
+     * 変換とファイルへの書き込みは別スレッドで行う。前の書き込みが終わっていなければその回は書き込まない。
+     * {@link #close} すると学習を終えたときの重みも書き込む。
+     * 最適化手法を渡して作ると、その状態とステップ数も重みと一緒に書き込む。
+     * 間隔はシステムプロパティ math.deeplearning.checkpoint.iters (既定1000回)と
+     * math.deeplearning.checkpoint.millis (既定0, 経過時間では書き込まない)で、
+     * math.deeplearning.checkpoint.float=true ならfloatで書き込む。
+     */
+    public static class Writer implements AutoCloseable {
+        private static final int EVERY_ITERS = Integer.getInteger("math.deeplearning.checkpoint.iters", 1000);
+        private static final long EVERY_MILLIS = Long.getLong("math.deeplearning.checkpoint.millis", 0);
+        private static final boolean AS_FLOAT = Boolean.getBoolean("math.deeplearning.checkpoint.float");
+
+        private final Path path;
+        // 重み行列と最適化手法の状態
+        private final Matrix[] matrices;
+        private final int weightCount;
+        private final int stateKind;
+        private final Matrix[] snapshot;
+        private final int everyIters;
+        private final long everyNanos;
+        private final boolean asFloat;
+
+        private final AtomicBoolean busy = new AtomicBoolean();
+        private volatile long nextNanos;
+        private ExecutorService executor;
+        // 書き込んだ回数
+        private final AtomicLong written = new AtomicLong();
+        // 最後にスナップショットを取った学習回数
+        private volatile int lastIteration = -1;
+        // stepに渡された最大の学習回数
+        private final AtomicInteger latest = new AtomicInteger(-1);
+        // 書き込みで起きた例外(あればcloseで投げる)
+        private volatile IOException failure;
+
+        /**
+         * 書き込む間隔をシステムプロパティの値にして作る.
+         *
+         * @param path    ファイル(nullなら書き込まない)
+         * @param weights 学習中の重み行列
+         */
+        public Writer(Path path, Matrix[] weights) {
+            this(path, weights, EVERY_ITERS, EVERY_MILLIS, AS_FLOAT);
+        }
+
+        /**
+         * 書き込む間隔をシステムプロパティの値にして、重みと最適化手法の状態を書き込むものを作る.
+         *
+         * @param path      ファイル(nullなら書き込まない)
+         * @param weights   学習中の重み行列
+         * @param optimizer 学習中の最適化手法(weightsの形で初期化したもの)
+         */
+        public Writer(Path path, Matrix[] weights, Optimizer optimizer) {
+            this(path, weights, optimizer, EVERY_ITERS, EVERY_MILLIS, AS_FLOAT);
+        }
+
+        /**
+         * 書き込む間隔を指定して作る.
+         *
+         * @param path        ファイル(nullなら書き込まない)
+         * @param weights     学習中の重み行列
+         * @param everyIters  書き込む間隔(学習回数, 0なら学習回数では書き込まない)
+         * @param everyMillis 書き込む間隔(ミリ秒, 0なら経過時間では書き込まない)
+         * @param asFloat     trueなら値をfloatにして書き込む
+         */
+        public Writer(Path path, Matrix[] weights, int everyIters, long everyMillis, boolean asFloat) {
+            this(path, weights, null, everyIters, everyMillis, asFloat);
+        }
+
+        /**
+         * 書き込む間隔を指定して作る.
+         *
+         * @param path        ファイル(nullなら書き込まない)
+         * @param weights     学習中の重み行列
+         * @param optimizer   学習中の最適化手法(nullなら重みだけを書き込む)
+         * @param everyIters  書き込む間隔(学習回数, 0なら学習回数では書き込まない)
+         * @param everyMillis 書き込む間隔(ミリ秒, 0なら経過時間では書き込まない)
+         * @param asFloat     trueなら値をfloatにして書き込む
+         */
+        public Writer(Path path, Matrix[] weights, Optimizer optimizer, int everyIters, long everyMillis,
+                      boolean asFloat) {
+            this.path = path;
+            this.matrices = optimizer == null ? weights : concat(weights, optimizer.state());
+            this.weightCount = weights.length;
+            this.stateKind = optimizer == null ? 0 : optimizer.stateKind();
+            this.everyIters = everyIters;
+            this.everyNanos = TimeUnit.MILLISECONDS.toNanos(everyMillis);
+            this.nextNanos = System.nanoTime() + everyNanos;
+            this.asFloat = asFloat;
+            snapshot = new Matrix[path == null ? 0 : matrices.length];
+            for (int k = 0; k < snapshot.length; k++) {
+                snapshot[k] = new Matrix(matrices[k].rows, matrices[k].cols);
+            }
+        }
+
+        /**
+         * 学習を1回終えるごとに呼び出す. 書き込む間隔になっていれば、重みをコピーして別スレッドで書き込む.
+         * 複数のスレッドから呼び出してもよい.
+         *
+         * @param i 学習回数
+         */
+        public void step(int i) {
+            if (path == null) return;
+            latest.accumulateAndGet(i, Math::max);
+            boolean due = everyIters > 0 && i > 0 && i % everyIters == 0;
+            if (everyNanos > 0 && System.nanoTime() - nextNanos >= 0) due = true;
+            if (!due || !busy.compareAndSet(false, true)) return;
+            nextNanos = System.nanoTime() + everyNanos;
+            for (int k = 0; k < matrices.length; k++) matrices[k].copyTo(snapshot[k]);
+            lastIteration = i;
+            executor().execute(() -> {
+                try {
+                    write(path, snapshot, weightCount, stateKind, i, asFloat);
+                    written.incrementAndGet();
+                } catch (IOException e) {
+                    failure = e;
+                    LogSink.log("checkpoint: failed to write " + path + ": " + e);
+                } finally {
+                    busy.set(false);
+                }
+            });
+        }
+
+        private synchronized ExecutorService executor() {
+            if (executor == null) {
+                executor = Executors.newSingleThreadExecutor(r -> {
+                    Thread th = new Thread(r, "checkpoint");
+                    th.setDaemon(true);
+                    return th;
+                });
+            }
+            return executor;
+        }
+
+        public long written() {
+            return written.get();
+        }
+
+        public int lastIteration() {
+            return lastIteration;
+        }
+
+        /**
+         * 実行中の書き込みが終わるまで待ってからスレッドを止め、学習を終えたときの重みを書き込む.
+         *
+         * @throws UncheckedIOException 書き込みに失敗したとき
+         */
+        @Override
+        public synchronized void close() {
+            if (executor != null) {
+                executor.shutdown();
+                try {
+                    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                executor = null;
+            }
+            int i = latest.get();
+            if (failure == null && i >= 0 && i != lastIteration) {
+                try {
+                    write(path, matrices, weightCount, stateKind, i, asFloat);
+                    lastIteration = i;
+                    written.incrementAndGet();
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            IOException e = failure;
+            failure = null;
+            if (e != null) throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package math.deeplearning.common;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+/**
+ * ミニバッチを分割して複数のスレッドで学習するためのスレッドプール.
+ * <p>
+ * 各ワーカーは担当する行(シャード)の勾配を自分の作業領域に計算する。
+ * 重みは全ワーカーから読み込み専用で参照し、勾配の計算がすべて終わってから
+ * {@link #reduceStripe} で要素の範囲(ストライプ)ごとにシャードの勾配を足し合わせて更新する。
+ * 足し合わせる順序はシャードの番号順に固定しているので、ワーカー数が同じなら結果は毎回同じになる。
+ * <p>
+ * 各ワーカーが自分のミニバッチで重みをロックせずに更新する非同期の学習(Hogwild)には
+ * {@link #updateRows} を使う。
+ * <p>
+ * ワーカーの中で計算する行列積は {@link Gemm} で並列化しない。
+ */
+public class DataParallel implements AutoCloseable {
+    private final ForkJoinPool pool;
+    // ワーカー数
+    public final int workers;
+
+    public DataParallel(int workers) {
+        if (workers < 1) throw new IllegalArgumentException("workers " + workers + " must be positive");
+        this.workers = workers;
+        this.pool = new ForkJoinPool(workers);
+    }
+
+    /**
+     * 0～workers-1の番号でtaskを並列に実行し、すべて終わるまで待つ.
+     *
+     * @param task ワーカー番号を受け取る処理
+     */
+    public void run(IntConsumer task) {
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[workers];
+                for (int p = 0; p < workers; p++) {
+                    int id = p;
+                    tasks[p] = ForkJoinTask.adapt(() -> task.accept(id));
+                }
+                invokeAll(tasks);
+            }
+        });
+    }
+
+    /**
+     * n個をparts個に分けたときのp番目の開始位置を返す. 終了位置は start(n, parts, p + 1).
+     *
+     * @param n     全体の数
+     * @param parts 分割数
+     * @param p     番号
+     * @return 開始位置
+     */
+    public static int start(int n, int parts, int p) {
+        return (int) ((long) n * p / parts);
+    }
+
+    /**
+     * 各シャードの勾配のpart番目のストライプを足し合わせて、重みを W = W - rate * Σ gW で更新する.
+     *
+     * @param gMs   シャードごとの勾配(すべてWと同じ形で、隙間なく並んでいること)
+     * @param wM    重み(隙間なく並んでいること)
+     * @param rate  勾配に掛ける係数
+     * @param part  ストライプの番号
+     * @param parts ストライプの数
+     */
+    public static void reduceStripe(Matrix[] gMs, Matrix wM, double rate, int part, int parts) {
+        int n = wM.rows * wM.cols;
+        int s = start(n, parts, part), e = start(n, parts, part + 1);
+        sumStripe(gMs, wM, s, e);
+        double[] w = wM.data, g0 = gMs[0].data;
+        int wo = wM.offset, o0 = gMs[0].offset;
+        for (int i = s; i < e; i++) w[wo + i] -= rate * g0[o0 + i];
+    }
+
+    /**
+     * 各シャードの勾配のpart番目のストライプを足し合わせて、重みを最適化手法で更新する.
+     * 最適化手法の {@link Optimizer#begin} は、すべてのストライプを更新する前に呼んでおくこと.
+     *
+     * @param gMs       シャードごとの勾配(すべてWと同じ形で、隙間なく並んでいること)
+     * @param wM        重み(隙間なく並んでいること)
+     * @param optimizer 最適化手法
+     * @param param     最適化手法のパラメータの番号
+     * @param scale     勾配に掛ける係数
+     * @param part      ストライプの番号
+     * @param parts     ストライプの数
+     */
+    public static void reduceStripe(Matrix[] gMs, Matrix wM, Optimizer optimizer, int param, double scale,
+                                    int part, int parts) {
+        int n = wM.rows * wM.cols;
+        int s = start(n, parts, part), e = start(n, parts, part + 1);
+        sumStripe(gMs, wM, s, e);
+        optimizer.update(param, s, e, wM.data, wM.offset + s, gMs[0].data, gMs[0].offset + s, scale);
+    }
+
+    // 1つ目のシャードの勾配の[s, e)の要素に残りのシャードの勾配を足し込む
+    private static void sumStripe(Matrix[] gMs, Matrix wM, int s, int e) {
+        if (!wM.isContiguous()) throw new IllegalArgumentException("weights must be contiguous");
+        for (Matrix gM : gMs) {
+            Matrix.checkSameShape(gM, wM);
+            if (!gM.isContiguous()) throw new IllegalArgumentException("gradients must be contiguous");
+        }
+        double[] g0 = gMs[0].data;
+        int o0 = gMs[0].offset;
+        for (int k = 1; k < gMs.length; k++) {
+            double[] g = gMs[k].data;
+            int o = gMs[k].offset;
+            for (int i = s; i < e; i++) g0[o0 + i] += g[o + i];
+        }
+    }
+
+    /**
+     * ロックせずに重みを W = W - rate * gW で更新する(Hogwild).
+     * <p>
+     * 他のスレッドが同時に更新していてもよい。勾配がすべて0の行は書き込まないので、
+     * 画素値が0の列が多い入力では、入力層の重みのうち書き込む行が少なくなる。
+     * firstRowから始めて末尾まで更新したら先頭に戻るので、スレッドごとに開始行をずらせば
+     * 同じ行に同時に書き込むことが減る。
+     *
+     * @param wM       重み
+     * @param gM       勾配(Wと同じ形)
+     * @param rate     勾配に掛ける係数
+     * @param firstRow 最初に更新する行
+     */
+    public static void updateRows(Matrix wM, Matrix gM, double rate, int firstRow) {
+        Matrix.checkSameShape(gM, wM);
+        double[] w = wM.data, g = gM.data;
+        for (int r = 0; r < wM.rows; r++) {
+            int i = (firstRow + r) % wM.rows;
+            int wp = wM.index(i), gp = gM.index(i);
+            boolean zero = true;
+            for (int j = 0; j < wM.cols && zero; j++) {
+                zero = g[gp + j] == 0;
+            }
+            if (zero) continue;
+            for (int j = 0; j < wM.cols; j++) {
+                w[wp + j] -= rate * g[gp + j];
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,128 @@
+package math.deeplearning.common;
+
+import java.util.Random;
+
+/**
+ * ミニバッチ学習で使うデータセット.
+ * <p>
+ * 学習に使うのは選んだ行だけなので、データセット全体を行列として読み込まずに、
+ * 選ばれた行だけを正規化してdoubleの行列に読み込む。
+ * どの順に行を選ぶと読み込みが速いかはデータの置き場所で決まるので、
+ * サンプラーもデータセットから作る({@link #sampler})。
+ * 複数のスレッドから同時に読み込んでもよい。
+ */
+public abstract class Dataset {
+    // データ数
+    public final int rows;
+    // 1データあたりの列数(画素数)
+    public final int cols;
+    // 分類クラス数
+    public final int classNum;
+
+    protected Dataset(int rows, int cols, int classNum) {
+        this.rows = rows;
+        this.cols = cols;
+        this.classNum = classNum;
+    }
+
+    /**
+     * 選んだ行を正規化して行列に読み込む.
+     *
+     * @param index 行番号
+     * @param xM    読み込み先(index.length x cols)
+     * @return xM
+     */
+    public abstract Matrix gather(int[] index, Matrix xM);
+
+    /**
+     * 選んだ行を正規化して疎行列に読み込む. 0の画素は格納しない.
+     * <p>
+     * 既定では1行ずつ密行列に読み込んでから0でない要素を取り出す。
+     * 生の画素値を持つデータセットは、0の画素を正規化せずに読み飛ばすように上書きするとよい。
+     *
+     * @param index 行番号
+     * @param xM    読み込み先(列数がcolsのもの)
+     * @return xM
+     */
+    public SparseMatrix gather(int[] index, SparseMatrix xM) {
+        SparseMatrix.checkCols(cols, xM);
+        Matrix row = new Matrix(1, cols);
+        int[] one = new int[1];
+        xM.clear();
+        for (int i : index) {
+            one[0] = i;
+            gather(one, row);
+            for (int j = 0; j < cols; j++) {
+                if (row.data[j] != 0.0) xM.add(j, row.data[j]);
+            }
+            xM.endRow();
+        }
+        return xM;
+    }
+
+    /**
+     * 選んだ行の正解ラベルを読み込む.
+     *
+     * @param index 行番号
+     * @param t     読み込み先
+     * @return t
+     */
+    public abstract int[] gatherLabels(int[] index, int[] t);
+
+    /**
+     * i行目の正解ラベルを返す.
+     *
+     * @param i 行番号
+     * @return クラス番号
+     */
+    public abstract int label(int i);
+
+    /**
+     * ミニバッチのindexを選ぶサンプラーを作る. 既定では全体から重複なしでランダムに選ぶ.
+     *
+     * @param rand 乱数生成器
+     * @return サンプラー
+     */
+    public Sampler sampler(Random rand) {
+        return new Sampler(rows, rand);
+    }
+
+    /**
+     * シードを {@link Util#newRandom} で決めたサンプラーを作る. {@link Util#setSeed} で選ぶ順序を再現できる.
+     *
+     * @return サンプラー
+     */
+    public Sampler sampler() {
+        return sampler(Util.newRandom());
+    }
+
+    // 形が合っているか確認する
+    protected void checkShape(int[] index, Matrix xM) {
+        if (xM.rows != index.length || xM.cols != cols) {
+            throw new IllegalArgumentException("shape mismatch: " + index.length + "x" + cols
+                    + " vs " + xM.rows + "x" + xM.cols);
+        }
+    }
+
+    /**
+     * すべての行を正規化して行列に読み込む.
+     *
+     * @return 行列(rows x cols)
+     */
+    public Matrix toMatrix() {
+        int[] index = new int[rows];
+        for (int i = 0; i < rows; i++) index[i] = i;
+        return gather(index, new Matrix(rows, cols));
+    }
+
+    /**
+     * すべての正解ラベルを返す.
+     *
+     * @return 正解ラベル
+     */
+    public int[] labels() {
+        int[] index = new int[rows];
+        for (int i = 0; i < rows; i++) index[i] = i;
+        return gatherLabels(index, new int[rows]);
+    }
+}
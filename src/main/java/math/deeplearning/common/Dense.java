@@ -0,0 +1,68 @@
+package math.deeplearning.common;
+
+import static math.deeplearning.common.Util.*;
+
+/**
+ * 全結合層. y = [1 x]・W (Wの先頭行がバイアス).
+ */
+class Dense extends Layer {
+    // 出力の列数
+    private final int outCols;
+
+    Dense(int outCols) {
+        this.outCols = outCols;
+    }
+
+    @Override
+    int outCols(int inCols) {
+        return outCols;
+    }
+
+    @Override
+    Matrix initWeight(int inCols) {
+        // He Normalで初期化
+        return Matrix.of(initW(inCols + 1, outCols));
+    }
+
+    @Override
+    Matrix backwardWeight(Matrix wM) {
+        // 誤差を入力側に戻すときはバイアス行を使わない
+        return removeBias(wM);
+    }
+
+    @Override
+    boolean needsInput() {
+        return true;
+    }
+
+    @Override
+    boolean needsOutput() {
+        return false;
+    }
+
+    @Override
+    void forward(Matrix wM, Matrix xM, Matrix yM) {
+        dotBias(xM, wM, yM);
+    }
+
+    @Override
+    void backward(Matrix wM, Matrix xM, Matrix yM, Matrix dyM, Matrix dxM, Matrix gM) {
+        transDotBias(xM, dyM, gM);
+        if (dxM != null) dotTrans(dyM, wM, dxM);
+    }
+
+    @Override
+    boolean acceptsSparse() {
+        return true;
+    }
+
+    @Override
+    void forward(Matrix wM, SparseMatrix xM, Matrix yM) {
+        Gemm.multiplyBias(xM, wM, yM);
+    }
+
+    @Override
+    void backward(SparseMatrix xM, Matrix dyM, Matrix gM) {
+        Gemm.multiplyTransABias(xM, dyM, gM);
+    }
+}
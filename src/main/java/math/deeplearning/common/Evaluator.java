@@ -0,0 +1,256 @@
+package math.deeplearning.common;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static math.deeplearning.common.Util.softmaxCrossEntropy;
+
+/**
+ * 評価用データでの誤差と精度を、学習を止めずに別スレッドで計算する.
+ * <p>
+ * 評価するときは学習スレッドで重みをスナップショットにコピーしてから別スレッドに渡すので、
+ * 評価中も学習を続けられる。評価用データは一定の行数(チャンク)ずつ正規化して順伝播し、
+ * 誤差と正解数を足し合わせていくので、評価用データ全体の行列は作らない。
+ * <p>
+ * 評価する間隔は学習回数と経過時間で指定できる。前の評価が終わっていなければその回は評価しない。
+ * 結果は {@link LogSink} で表示し、{@link #setMetrics} で指定した {@link Metrics} にも記録する。
+ */
+public class Evaluator implements AutoCloseable {
+    // 評価する間隔(学習回数)の既定値(システムプロパティ math.deeplearning.eval.iters で指定できる)
+    private static final int EVERY_ITERS = Integer.getInteger("math.deeplearning.eval.iters", 100);
+    // 評価する間隔(ミリ秒)の既定値(システムプロパティ math.deeplearning.eval.millis で指定できる)
+    private static final long EVERY_MILLIS = Long.getLong("math.deeplearning.eval.millis", 0);
+    // 1回に順伝播する行数
+    private static final int CHUNK_ROWS = 1000;
+
+    /**
+     * 重みと評価用データのチャンクから出力層の入力(ソフトマックス関数を通す前の値)を計算する順伝播.
+     * 途中の行列は実装側でチャンクの行数分だけ確保しておき、使い回す.
+     */
+    public interface Forward {
+        /**
+         * @param weights 重み行列(スナップショット)
+         * @param x       画素値(行数はチャンクの行数以下)
+         * @return 出力層の入力(x.rows x クラス数)
+         */
+        Matrix forward(Matrix[] weights, Matrix x);
+    }
+
+    private final Dataset test;
+    private final Matrix[] weights;
+    private final Matrix[] snapshot;
+    private final Forward forward;
+    private final int everyIters;
+    private final long everyNanos;
+
+    // チャンクのバッファ
+    private final int chunkRows;
+    private final Matrix x;
+    private final int[] index;
+    private final int[] t;
+    // 端数のチャンクのバッファ
+    private final int[] lastIndex;
+    private final int[] lastT;
+    // 誤差の合計と正解数
+    private final double[] stats = new double[2];
+
+    private final AtomicBoolean busy = new AtomicBoolean();
+    private volatile long nextNanos;
+    private ExecutorService executor;
+    // 評価の時間と結果を記録する先(なければnull)
+    private volatile Metrics metrics;
+    // 最後に終わった評価の結果
+    private volatile Result last;
+    // 前の評価が終わっていなくて評価しなかった回数
+    private final AtomicLong skipped = new AtomicLong();
+
+    /**
+     * 評価する間隔をシステムプロパティの値にして作る.
+     *
+     * @param test      評価用データ
+     * @param weights   学習中の重み行列
+     * @param chunkRows 1回に順伝播する行数(forwardが確保しておく行数)
+     * @param forward   順伝播
+     */
+    public Evaluator(Dataset test, Matrix[] weights, int chunkRows, Forward forward) {
+        this(test, weights, chunkRows, forward, EVERY_ITERS, EVERY_MILLIS);
+    }
+
+    /**
+     * 評価する間隔を指定して作る.
+     *
+     * @param test        評価用データ
+     * @param weights     学習中の重み行列
+     * @param chunkRows   1回に順伝播する行数(forwardが確保しておく行数)
+     * @param forward     順伝播
+     * @param everyIters  評価する間隔(学習回数, 0なら学習回数では評価しない)
+     * @param everyMillis 評価する間隔(ミリ秒, 0なら経過時間では評価しない)
+     */
+    public Evaluator(Dataset test, Matrix[] weights, int chunkRows, Forward forward,
+                     int everyIters, long everyMillis) {
+        this.test = test;
+        this.weights = weights;
+        this.forward = forward;
+        this.everyIters = everyIters;
+        this.everyNanos = TimeUnit.MILLISECONDS.toNanos(everyMillis);
+        this.nextNanos = System.nanoTime() + everyNanos;
+
+        snapshot = new Matrix[weights.length];
+        for (int i = 0; i < weights.length; i++) {
+            snapshot[i] = new Matrix(weights[i].rows, weights[i].cols);
+        }
+        this.chunkRows = Math.min(chunkRows, test.rows);
+        x = new Matrix(this.chunkRows, test.cols);
+        index = new int[this.chunkRows];
+        t = new int[this.chunkRows];
+        int rest = this.chunkRows == 0 ? 0 : test.rows % this.chunkRows;
+        lastIndex = new int[rest];
+        lastT = new int[rest];
+    }
+
+    /**
+     * 1回に順伝播する行数の既定値を返す.
+     *
+     * @return 行数
+     */
+    public static int defaultChunkRows() {
+        return CHUNK_ROWS;
+    }
+
+    /**
+     * 学習を1回終えるごとに呼び出す. 評価する間隔になっていれば、重みをコピーして別スレッドで評価する.
+     * 複数のスレッドから呼び出してもよい.
+     *
+     * @param i 学習回数
+     */
+    public void step(int i) {
+        boolean due = everyIters > 0 && i % everyIters == 0;
+        if (everyNanos > 0 && System.nanoTime() - nextNanos >= 0) due = true;
+        if (!due) return;
+        if (!busy.compareAndSet(false, true)) {
+            skipped.incrementAndGet();
+            return;
+        }
+        long start = System.nanoTime();
+        nextNanos = start + everyNanos;
+        for (int k = 0; k < weights.length; k++) weights[k].copyTo(snapshot[k]);
+        Metrics m = metrics;
+        if (m != null) m.record(Metrics.Phase.EVALUATION, start);
+        executor().execute(() -> {
+            try {
+                long t = System.nanoTime();
+                last = evaluate(i, snapshot);
+                if (m != null) m.evaluated(last, System.nanoTime() - t);
+                LogSink.log(last.toString());
+            } finally {
+                busy.set(false);
+            }
+        });
+    }
+
+    /**
+     * 学習スレッドで重みをコピーした時間と評価の結果を記録する先を指定する.
+     *
+     * @param metrics 記録する先(nullなら記録しない)
+     */
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * 今の重みをこのスレッドで評価する.
+     *
+     * @return 結果
+     */
+    public Result evaluate() {
+        while (!busy.compareAndSet(false, true)) Thread.yield();
+        try {
+            for (int k = 0; k < weights.length; k++) weights[k].copyTo(snapshot[k]);
+            return evaluate(-1, snapshot);
+        } finally {
+            busy.set(false);
+        }
+    }
+
+    // 評価用データをチャンクごとに順伝播して、誤差と正解数を足し合わせる
+    private Result evaluate(int iteration, Matrix[] w) {
+        stats[0] = stats[1] = 0;
+        for (int start = 0; start < test.rows; start += chunkRows) {
+            int rows = Math.min(chunkRows, test.rows - start);
+            int[] idx = rows == chunkRows ? index : lastIndex;
+            int[] tc = rows == chunkRows ? t : lastT;
+            for (int i = 0; i < rows; i++) idx[i] = start + i;
+            Matrix xc = x.rows(0, rows);
+            test.gather(idx, xc);
+            test.gatherLabels(idx, tc);
+            softmaxCrossEntropy(forward.forward(w, xc), tc, null, stats);
+        }
+        return new Result(iteration, stats[0] / test.rows, stats[1] / test.rows);
+    }
+
+    private synchronized ExecutorService executor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(r -> {
+                Thread th = new Thread(r, "evaluator");
+                th.setDaemon(true);
+                return th;
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * 最後に終わった評価の結果を返す.
+     *
+     * @return 結果(まだなければnull)
+     */
+    public Result last() {
+        return last;
+    }
+
+    public long skipped() {
+        return skipped.get();
+    }
+
+    /**
+     * 実行中の評価が終わるまで待ってからスレッドを止める.
+     */
+    @Override
+    public synchronized void close() {
+        if (executor == null) return;
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        executor = null;
+        LogSink.flush();
+    }
+
+    /**
+     * 評価の結果.
+     */
+    public static class Result {
+        // 評価したときの学習回数(学習中でなければ-1)
+        public final int iteration;
+        // 交差エントロピー誤差
+        public final double loss;
+        // 精度
+        public final double accuracy;
+
+        Result(int iteration, double loss, double accuracy) {
+            this.iteration = iteration;
+            this.loss = loss;
+            this.accuracy = accuracy;
+        }
+
+        @Override
+        public String toString() {
+            return iteration + " " + loss + " " + accuracy;
+        }
+    }
+}
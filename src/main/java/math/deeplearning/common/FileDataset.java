@@ -0,0 +1,191 @@
+package math.deeplearning.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 画素値とラベルを {@link MnistCache} 形式のファイルから必要な分だけ読み込むデータセット.
+ * <p>
+ * ファイルはメモリマップせず、連続した行(チャンク)ごとに {@link FileChannel} の位置指定読み込みで
+ * ヒープ上のバッファに読み込む。チャンクのバッファはスレッドごとに1つだけ持つので、
+ * ヒープの使用量はチャンクの行数で決まり、データ数によらない。ファイルはメモリより大きくてもよい。
+ * <p>
+ * ランダムな行を選ぶとほぼ毎回チャンクを読み直すことになるので、
+ * {@link #sampler} はチャンクの順序とチャンク内の行をそれぞれシャッフルするサンプラーを返す。
+ * (Java 8でも動くように、Bufferのメソッドは Buffer にキャストして呼び出す)
+ */
+public class FileDataset extends Dataset implements AutoCloseable {
+    private final FileChannel pixels;
+    private final FileChannel labels;
+    // 画素値に掛ける係数
+    private final double scale;
+    // チャンクの行数
+    public final int chunkRows;
+    // スレッドごとのチャンクのバッファ
+    private final ThreadLocal<Chunk> chunks;
+    // ファイルからチャンクを読み込んだ回数
+    private final AtomicLong loads = new AtomicLong();
+
+    private FileDataset(FileChannel pixels, FileChannel labels, int rows, int cols,
+                        int classNum, double scale, int chunkRows) {
+        super(rows, cols, classNum);
+        this.pixels = pixels;
+        this.labels = labels;
+        this.scale = scale;
+        this.chunkRows = Math.max(1, Math.min(chunkRows, rows));
+        this.chunks = ThreadLocal.withInitial(Chunk::new);
+    }
+
+    /**
+     * 画像とラベルのキャッシュファイルを開く.
+     *
+     * @param images    画像のキャッシュファイル
+     * @param labels    ラベルのキャッシュファイル
+     * @param classNum  分類クラス数
+     * @param scale     画素値に掛ける係数(0～1にするなら1/255)
+     * @param chunkRows 1回に読み込む行数
+     * @return データセット
+     */
+    public static FileDataset open(Path images, Path labels, int classNum, double scale, int chunkRows)
+            throws IOException {
+        FileChannel ic = FileChannel.open(images, StandardOpenOption.READ);
+        FileChannel lc = null;
+        try {
+            lc = FileChannel.open(labels, StandardOpenOption.READ);
+            int[] ih = MnistCache.readHeader(ic);
+            int[] lh = MnistCache.readHeader(lc);
+            if (ih[0] != lh[0] || lh[1] != 1) {
+                throw new IOException("images " + ih[0] + " and labels " + lh[0] + "x" + lh[1] + " do not match");
+            }
+            return new FileDataset(ic, lc, ih[0], ih[1], classNum, scale, chunkRows);
+        } catch (IOException | RuntimeException e) {
+            ic.close();
+            if (lc != null) lc.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public Matrix gather(int[] index, Matrix xM) {
+        checkShape(index, xM);
+        Chunk c = chunks.get();
+        for (int i = 0; i < index.length; i++) {
+            int p = c.load(index[i]) * cols, r = xM.index(i);
+            for (int j = 0; j < cols; j++) {
+                xM.data[r + j] = (c.pixels[p + j] & 0xff) * scale;
+            }
+        }
+        return xM;
+    }
+
+    @Override
+    public SparseMatrix gather(int[] index, SparseMatrix xM) {
+        SparseMatrix.checkCols(cols, xM);
+        Chunk c = chunks.get();
+        xM.clear();
+        for (int i : index) {
+            int p = c.load(i) * cols;
+            for (int j = 0; j < cols; j++) {
+                int v = c.pixels[p + j] & 0xff;
+                if (v != 0) xM.add(j, v * scale);
+            }
+            xM.endRow();
+        }
+        return xM;
+    }
+
+    @Override
+    public int[] gatherLabels(int[] index, int[] t) {
+        Chunk c = chunks.get();
+        for (int i = 0; i < index.length; i++) {
+            t[i] = c.labels[c.load(index[i])];
+        }
+        return t;
+    }
+
+    @Override
+    public int label(int i) {
+        Chunk c = chunks.get();
+        return c.labels[c.load(i)];
+    }
+
+    /**
+     * チャンクの順序とチャンク内の行をシャッフルするサンプラーを作る.
+     *
+     * @param rand 乱数生成器
+     * @return サンプラー
+     */
+    @Override
+    public Sampler sampler(Random rand) {
+        return Sampler.chunked(rows, chunkRows, rand);
+    }
+
+    /**
+     * ファイルからチャンクを読み込んだ回数を返す.
+     *
+     * @return 回数
+     */
+    public long loads() {
+        return loads.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            pixels.close();
+        } finally {
+            labels.close();
+        }
+    }
+
+    // positionから読めるだけ読んでbufを満たす
+    private static void readFully(FileChannel ch, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, position + buf.position()) < 0) throw new EOFException("unexpected end of file");
+        }
+    }
+
+    /**
+     * スレッドごとに持つ1チャンク分のバッファ.
+     */
+    private final class Chunk {
+        final byte[] pixels = new byte[chunkRows * cols];
+        final byte[] labels = new byte[chunkRows];
+        final ByteBuffer pixelBuf = ByteBuffer.wrap(pixels);
+        final ByteBuffer labelBuf = ByteBuffer.wrap(labels);
+        // 読み込んであるチャンクの先頭行(なければ-1)
+        int start = -1;
+        int end = -1;
+
+        /**
+         * i行目を含むチャンクを読み込んで、バッファ内の行番号を返す.
+         */
+        int load(int i) {
+            if (i >= start && i < end) return i - start;
+            if (i < 0 || i >= rows) throw new IndexOutOfBoundsException("row " + i + " of " + rows);
+            int s = i / chunkRows * chunkRows;
+            int n = Math.min(chunkRows, rows - s);
+            start = end = -1;
+            ((Buffer) pixelBuf).clear().limit(n * cols);
+            ((Buffer) labelBuf).clear().limit(n);
+            try {
+                readFully(FileDataset.this.pixels, pixelBuf, MnistCache.HEADER_SIZE + (long) s * cols);
+                readFully(FileDataset.this.labels, labelBuf, MnistCache.HEADER_SIZE + (long) s);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            loads.incrementAndGet();
+            start = s;
+            end = s + n;
+            return i - s;
+        }
+    }
+}
@@ -0,0 +1,531 @@
+package math.deeplearning.common;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 行列積 C = A・B, C = A^T・B, C = A・B^T を計算する.
+ * <p>
+ * 転置を含む積は転置行列を作らずに元の配列から直接計算する。
+ * バイアス付きの積は、Aの先頭に値が1の列があるものとして計算するので、
+ * ダミー変数1を付加した行列を作らなくてよい。
+ * Bをキャッシュに収まるブロックに分割し、Cの4行分を同時に計算することで
+ * Bの要素をレジスタ上で使い回す(内側のループは {@link Kernels} で計算する)。
+ * 演算量が大きいときはCの行をタスクに分割してForkJoinPoolで並列に計算する。小さい行列とForkJoinPoolのタスクの中から呼ばれた積は1スレッドで計算する。
+ * 呼び出し元のスレッドも1つのタスクを計算し、残りのタスクが終わるまではparkして待つ。
+ * タスクは呼び出し元スレッドごとに使い回すので、並列計算でもヒープ割り当ては発生しない。
+ * Aが {@link SparseMatrix} の積は、Aの0でない要素についてだけ1スレッドで計算する。
+ */
+public final class Gemm {
+    // kのブロックサイズ
+    private static final int KC = 128;
+    // jのブロックサイズ
+    private static final int NC = 256;
+    // この演算量(m * n * k)未満なら並列化しない
+    private static final long PARALLEL_THRESHOLD = 1L << 18;
+    // 1タスクあたりの最小演算量
+    private static final long TASK_MIN_FLOPS = 1L << 16;
+
+    // 積の種類
+    private static final int NN = 0;
+    private static final int TN = 1;
+    private static final int NT = 2;
+    private static final int NN_BIAS = 3;
+    private static final int TN_BIAS = 4;
+
+    // 並列計算に使うスレッド数(システムプロパティ math.deeplearning.threads で指定できる)
+    private static final int THREADS = Math.max(1,
+            Integer.getInteger("math.deeplearning.threads", Runtime.getRuntime().availableProcessors()));
+    // 並列計算に使うスレッドプール
+    private static final ForkJoinPool POOL = THREADS == 1 ? null : new ForkJoinPool(THREADS);
+    // 呼び出し元スレッドごとに使い回すタスク
+    private static final ThreadLocal<Job> JOBS = ThreadLocal.withInitial(Job::new);
+    // 内側のループの実装(JDK 17以降ではVector APIの実装になることがある)
+    private static final Kernels KERNELS = Kernels.INSTANCE;
+
+    private Gemm() {
+    }
+
+    /**
+     * 並列計算に使うスレッド数を返す.
+     *
+     * @return スレッド数
+     */
+    public static int threads() {
+        return THREADS;
+    }
+
+    /**
+     * 並列化したほうが速い演算量かどうかを返す.
+     *
+     * @param m Cの行数
+     * @param n Cの列数
+     * @param k 内積の長さ
+     * @return 並列化するならtrue
+     */
+    public static boolean isLarge(int m, int n, int k) {
+        return (long) m * n * k >= PARALLEL_THRESHOLD;
+    }
+
+    /**
+     * C = A・B を計算する. Cの元の値は上書きされる.
+     *
+     * @param aM A (m x k)
+     * @param bM B (k x n)
+     * @param cM C (m x n)
+     * @return C
+     */
+    public static Matrix multiply(Matrix aM, Matrix bM, Matrix cM) {
+        if (aM.cols != bM.rows || cM.rows != aM.rows || cM.cols != bM.cols) {
+            throw mismatch("A * B", aM, bM, cM);
+        }
+        return run(NN, aM, bM, cM, aM.cols);
+    }
+
+    /**
+     * C = [1 A]・W を計算する. Cの元の値は上書きされる.
+     * <p>
+     * [1 A] はAの先頭にダミー変数1の列を付加した行列で、Wの先頭行がバイアスになる。
+     * Cの各行をWの先頭行で初期化してから A・W[1:] を加える。
+     *
+     * @param aM A (m x k)
+     * @param wM W ((k + 1) x n)
+     * @param cM C (m x n)
+     * @return C
+     */
+    public static Matrix multiplyBias(Matrix aM, Matrix wM, Matrix cM) {
+        if (aM.cols + 1 != wM.rows || cM.rows != aM.rows || cM.cols != wM.cols) {
+            throw mismatch("[1 A] * W", aM, wM, cM);
+        }
+        return run(NN_BIAS, aM, wM, cM, aM.cols);
+    }
+
+    /**
+     * C = A^T・B を計算する. Cの元の値は上書きされる.
+     *
+     * @param aM A (k x m)
+     * @param bM B (k x n)
+     * @param cM C (m x n)
+     * @return C
+     */
+    public static Matrix multiplyTransA(Matrix aM, Matrix bM, Matrix cM) {
+        if (aM.rows != bM.rows || cM.rows != aM.cols || cM.cols != bM.cols) {
+            throw mismatch("A^T * B", aM, bM, cM);
+        }
+        return run(TN, aM, bM, cM, aM.rows);
+    }
+
+    /**
+     * C = [1 A]^T・B を計算する. Cの元の値は上書きされる.
+     * <p>
+     * Cの先頭行はBの列ごとの和、2行目以降は A^T・B になる。
+     *
+     * @param aM A (k x m)
+     * @param bM B (k x n)
+     * @param cM C ((m + 1) x n)
+     * @return C
+     */
+    public static Matrix multiplyTransABias(Matrix aM, Matrix bM, Matrix cM) {
+        if (aM.rows != bM.rows || cM.rows != aM.cols + 1 || cM.cols != bM.cols) {
+            throw mismatch("[1 A]^T * B", aM, bM, cM);
+        }
+        return run(TN_BIAS, aM, bM, cM, aM.rows);
+    }
+
+    /**
+     * C = A・B^T を計算する. Cの元の値は上書きされる.
+     *
+     * @param aM A (m x k)
+     * @param bM B (n x k)
+     * @param cM C (m x n)
+     * @return C
+     */
+    public static Matrix multiplyTransB(Matrix aM, Matrix bM, Matrix cM) {
+        if (aM.cols != bM.cols || cM.rows != aM.rows || cM.cols != bM.rows) {
+            throw mismatch("A * B^T", aM, bM, cM);
+        }
+        return run(NT, aM, bM, cM, aM.cols);
+    }
+
+    /**
+     * Aが疎行列のとき C = A・B を計算する. Cの元の値は上書きされる.
+     * <p>
+     * Aの0でない要素ごとに、その列に対応するBの行を足し込む(演算量はAの0でない要素の数に比例する)。
+     * 疎行列の積は1スレッドで計算する。
+     *
+     * @param aM A (m x k)
+     * @param bM B (k x n)
+     * @param cM C (m x n)
+     * @return C
+     */
+    public static Matrix multiply(SparseMatrix aM, Matrix bM, Matrix cM) {
+        if (aM.cols != bM.rows || cM.rows != aM.rows() || cM.cols != bM.cols) {
+            throw mismatch("A * B", aM, bM, cM);
+        }
+        sparseRows(aM, bM, cM, false);
+        return cM;
+    }
+
+    /**
+     * Aが疎行列のとき C = [1 A]・W を計算する. Cの元の値は上書きされる.
+     *
+     * @param aM A (m x k)
+     * @param wM W ((k + 1) x n)
+     * @param cM C (m x n)
+     * @return C
+     */
+    public static Matrix multiplyBias(SparseMatrix aM, Matrix wM, Matrix cM) {
+        if (aM.cols + 1 != wM.rows || cM.rows != aM.rows() || cM.cols != wM.cols) {
+            throw mismatch("[1 A] * W", aM, wM, cM);
+        }
+        sparseRows(aM, wM, cM, true);
+        return cM;
+    }
+
+    /**
+     * Aが疎行列のとき C = A^T・B を計算する. Cの元の値は上書きされる.
+     * <p>
+     * Aのi行目の0でない要素 A[i, j] ごとに、A[i, j] * B[i] をCのj行目に足し込む。
+     *
+     * @param aM A (k x m)
+     * @param bM B (k x n)
+     * @param cM C (m x n)
+     * @return C
+     */
+    public static Matrix multiplyTransA(SparseMatrix aM, Matrix bM, Matrix cM) {
+        if (aM.rows() != bM.rows || cM.rows != aM.cols || cM.cols != bM.cols) {
+            throw mismatch("A^T * B", aM, bM, cM);
+        }
+        for (int i = 0; i < cM.rows; i++) {
+            int ci = cM.index(i);
+            for (int j = 0; j < cM.cols; j++) cM.data[ci + j] = 0.0;
+        }
+        sparseTransARows(aM, bM, cM, 0);
+        return cM;
+    }
+
+    /**
+     * Aが疎行列のとき C = [1 A]^T・B を計算する. Cの元の値は上書きされる.
+     *
+     * @param aM A (k x m)
+     * @param bM B (k x n)
+     * @param cM C ((m + 1) x n)
+     * @return C
+     */
+    public static Matrix multiplyTransABias(SparseMatrix aM, Matrix bM, Matrix cM) {
+        if (aM.rows() != bM.rows || cM.rows != aM.cols + 1 || cM.cols != bM.cols) {
+            throw mismatch("[1 A]^T * B", aM, bM, cM);
+        }
+        for (int i = 1; i < cM.rows; i++) {
+            int ci = cM.index(i);
+            for (int j = 0; j < cM.cols; j++) cM.data[ci + j] = 0.0;
+        }
+        sumRows(bM, cM);
+        sparseTransARows(aM, bM, cM, 1);
+        return cM;
+    }
+
+    private static IllegalArgumentException mismatch(String op, SparseMatrix aM, Matrix bM, Matrix cM) {
+        return new IllegalArgumentException("shape mismatch: " + op + " with A=" + aM.rows() + "x" + aM.cols
+                + " (sparse), B=" + bM.rows + "x" + bM.cols + ", C=" + cM.rows + "x" + cM.cols);
+    }
+
+    private static IllegalArgumentException mismatch(String op, Matrix aM, Matrix bM, Matrix cM) {
+        return new IllegalArgumentException("shape mismatch: " + op + " with A=" + aM.rows + "x" + aM.cols
+                + ", B=" + bM.rows + "x" + bM.cols + ", C=" + cM.rows + "x" + cM.cols);
+    }
+
+    private static Matrix run(int op, Matrix aM, Matrix bM, Matrix cM, int k) {
+        int m = cM.rows, n = cM.cols;
+        // ForkJoinPoolのタスクの中から呼ばれたときは、呼び出し元ですでに並列化しているので分割しない
+        if (POOL == null || !isLarge(m, n, k) || m < 8 || ForkJoinTask.inForkJoinPool()) {
+            rows(op, aM, bM, cM, 0, m);
+        } else {
+            // (呼び出し元は完了までparkするので、同じスレッドのJobが計算中に使われることはない)
+            JOBS.get().run(op, aM, bM, cM, grain(m, (long) n * k));
+        }
+        return cM;
+    }
+
+    // Cの行 [i0, i1) を計算する
+    private static void rows(int op, Matrix aM, Matrix bM, Matrix cM, int i0, int i1) {
+        switch (op) {
+            case NN:
+                multiplyRows(aM, bM, cM, i0, i1, false);
+                break;
+            case NN_BIAS:
+                multiplyRows(aM, bM, cM, i0, i1, true);
+                break;
+            case TN:
+                multiplyTransARows(aM, bM, cM, i0, i1, 0);
+                break;
+            case TN_BIAS:
+                if (i0 == 0) {
+                    sumRows(bM, cM);
+                    i0 = 1;
+                }
+                multiplyTransARows(aM, bM, cM, i0, i1, 1);
+                break;
+            default:
+                multiplyTransBRows(aM, bM, cM, i0, i1);
+                break;
+        }
+    }
+
+    // 1タスクが担当する行数を決める
+    private static int grain(int m, long flopsPerRow) {
+        int byThreads = (m + THREADS * 4 - 1) / (THREADS * 4);
+        int byFlops = (int) Math.min(m, (TASK_MIN_FLOPS + flopsPerRow - 1) / flopsPerRow);
+        int grain = Math.max(byThreads, byFlops);
+        // 4行単位のマイクロカーネルに合わせる
+        return Math.max(4, (grain + 3) & ~3);
+    }
+
+    /**
+     * C = A・B のCの行 [i0, i1) を計算する.
+     * biasがtrueのときはBの先頭行をバイアスとして C = B[0] + A・B[1:] を計算する.
+     */
+    static void multiplyRows(Matrix aM, Matrix bM, Matrix cM, int i0, int i1, boolean bias) {
+        int n = bM.cols, k = aM.cols;
+        int shift = bias ? 1 : 0;
+        double[] a = aM.data, b = bM.data, c = cM.data;
+        for (int i = i0; i < i1; i++) {
+            int ci = cM.index(i);
+            if (bias) {
+                System.arraycopy(b, bM.offset, c, ci, n);
+            } else {
+                for (int j = 0; j < n; j++) c[ci + j] = 0.0;
+            }
+        }
+        for (int kb = 0; kb < k; kb += KC) {
+            int ke = Math.min(kb + KC, k);
+            for (int jb = 0; jb < n; jb += NC) {
+                int je = Math.min(jb + NC, n);
+                int i = i0;
+                for (; i + 3 < i1; i += 4) {
+                    int a0 = aM.index(i), a1 = a0 + aM.stride, a2 = a1 + aM.stride, a3 = a2 + aM.stride;
+                    int c0 = cM.index(i), c1 = c0 + cM.stride, c2 = c1 + cM.stride, c3 = c2 + cM.stride;
+                    for (int p = kb; p < ke; p++) {
+                        double v0 = a[a0 + p], v1 = a[a1 + p], v2 = a[a2 + p], v3 = a[a3 + p];
+                        int bp = bM.index(p + shift);
+                        KERNELS.axpy4(v0, v1, v2, v3, b, bp + jb, c, c0 + jb, c1 + jb, c2 + jb, c3 + jb, je - jb);
+                    }
+                }
+                for (; i < i1; i++) {
+                    int a0 = aM.index(i), c0 = cM.index(i);
+                    for (int p = kb; p < ke; p++) {
+                        double v0 = a[a0 + p];
+                        if (v0 == 0.0) continue;
+                        KERNELS.axpy(v0, b, bM.index(p + shift) + jb, c, c0 + jb, je - jb);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * C = A^T・B のCの行 [i0, i1) を計算する. Aの列 i - shift がCの行 i に対応する.
+     */
+    static void multiplyTransARows(Matrix aM, Matrix bM, Matrix cM, int i0, int i1, int shift) {
+        int n = bM.cols, k = aM.rows;
+        double[] a = aM.data, b = bM.data, c = cM.data;
+        for (int i = i0; i < i1; i++) {
+            int ci = cM.index(i);
+            for (int j = 0; j < n; j++) c[ci + j] = 0.0;
+        }
+        for (int kb = 0; kb < k; kb += KC) {
+            int ke = Math.min(kb + KC, k);
+            for (int jb = 0; jb < n; jb += NC) {
+                int je = Math.min(jb + NC, n);
+                int i = i0;
+                for (; i + 3 < i1; i += 4) {
+                    int c0 = cM.index(i), c1 = c0 + cM.stride, c2 = c1 + cM.stride, c3 = c2 + cM.stride;
+                    for (int p = kb; p < ke; p++) {
+                        int ap = aM.index(p) + i - shift;
+                        double v0 = a[ap], v1 = a[ap + 1], v2 = a[ap + 2], v3 = a[ap + 3];
+                        int bp = bM.index(p);
+                        KERNELS.axpy4(v0, v1, v2, v3, b, bp + jb, c, c0 + jb, c1 + jb, c2 + jb, c3 + jb, je - jb);
+                    }
+                }
+                for (; i < i1; i++) {
+                    int c0 = cM.index(i);
+                    for (int p = kb; p < ke; p++) {
+                        double v0 = a[aM.index(p) + i - shift];
+                        if (v0 == 0.0) continue;
+                        KERNELS.axpy(v0, b, bM.index(p) + jb, c, c0 + jb, je - jb);
+                    }
+                }
+            }
+        }
+    }
+
+    // Bの列ごとの和をCの先頭行に書き込む
+    private static void sumRows(Matrix bM, Matrix cM) {
+        int n = bM.cols, c0 = cM.index(0);
+        double[] b = bM.data, c = cM.data;
+        for (int j = 0; j < n; j++) c[c0 + j] = 0.0;
+        for (int p = 0; p < bM.rows; p++) {
+            int bp = bM.index(p);
+            for (int j = 0; j < n; j++) c[c0 + j] += b[bp + j];
+        }
+    }
+
+    /**
+     * C = A・B^T のCの行 [i0, i1) を計算する. 要素はAの行とBの行の内積になる.
+     */
+    static void multiplyTransBRows(Matrix aM, Matrix bM, Matrix cM, int i0, int i1) {
+        int n = bM.rows, k = aM.cols;
+        double[] a = aM.data, b = bM.data, c = cM.data;
+        int i = i0;
+        for (; i + 3 < i1; i += 4) {
+            int a0 = aM.index(i), a1 = a0 + aM.stride, a2 = a1 + aM.stride, a3 = a2 + aM.stride;
+            int c0 = cM.index(i), c1 = c0 + cM.stride, c2 = c1 + cM.stride, c3 = c2 + cM.stride;
+            for (int j = 0; j < n; j++) {
+                KERNELS.dot4(a, a0, a1, a2, a3, b, bM.index(j), c, c0 + j, c1 + j, c2 + j, c3 + j, k);
+            }
+        }
+        for (; i < i1; i++) {
+            int a0 = aM.index(i), c0 = cM.index(i);
+            for (int j = 0; j < n; j++) {
+                c[c0 + j] = KERNELS.dot(a, a0, b, bM.index(j), k);
+            }
+        }
+    }
+
+    /**
+     * Aが疎行列のときの C = A・B. biasがtrueのときはBの先頭行をバイアスとして C = B[0] + A・B[1:] を計算する.
+     */
+    static void sparseRows(SparseMatrix aM, Matrix bM, Matrix cM, boolean bias) {
+        int n = bM.cols, shift = bias ? 1 : 0;
+        int[] col = aM.colIndex();
+        double[] v = aM.values(), b = bM.data, c = cM.data;
+        for (int i = 0; i < cM.rows; i++) {
+            int ci = cM.index(i);
+            if (bias) {
+                System.arraycopy(b, bM.offset, c, ci, n);
+            } else {
+                for (int j = 0; j < n; j++) c[ci + j] = 0.0;
+            }
+            for (int p = aM.start(i), end = aM.end(i); p < end; p++) {
+                KERNELS.axpy(v[p], b, bM.index(col[p] + shift), c, ci, n);
+            }
+        }
+    }
+
+    /**
+     * Aが疎行列のときの C += A^T・B. Aの列 j がCの行 j + shift に対応する.
+     */
+    static void sparseTransARows(SparseMatrix aM, Matrix bM, Matrix cM, int shift) {
+        int n = bM.cols;
+        int[] col = aM.colIndex();
+        double[] v = aM.values(), b = bM.data, c = cM.data;
+        for (int i = 0; i < aM.rows(); i++) {
+            int bi = bM.index(i);
+            for (int p = aM.start(i), end = aM.end(i); p < end; p++) {
+                KERNELS.axpy(v[p], b, bi, c, cM.index(col[p] + shift), n);
+            }
+        }
+    }
+
+    /**
+     * Cの行を分割したPartをForkJoinPoolで並列に計算する.
+     * <p>
+     * 呼び出し元のスレッドは先頭のPartを自分で計算し、残りのPartが終わるまでparkして待つ。
+     * 最後に終わったPartが呼び出し元をunparkするので、待っている間にCPUを使わず、
+     * joinの待機ノードのようなヒープ割り当てもしない。
+     */
+    private static final class Job {
+        private final Part[] parts = new Part[THREADS * 4];
+        private int count;
+        // 終わっていないPartの数
+        private final AtomicInteger pending = new AtomicInteger();
+        // 完了を待っているスレッド
+        private volatile Thread waiter;
+
+        Job() {
+            for (int t = 0; t < parts.length; t++) parts[t] = new Part(this);
+        }
+
+        void run(int op, Matrix aM, Matrix bM, Matrix cM, int grain) {
+            int m = cM.rows;
+            int size = Math.max(grain, ((m + parts.length - 1) / parts.length + 3) & ~3);
+            count = 0;
+            for (int i0 = 0; i0 < m; i0 += size) {
+                parts[count++].set(op, aM, bM, cM, i0, Math.min(i0 + size, m));
+            }
+            waiter = Thread.currentThread();
+            pending.set(count - 1);
+            try {
+                for (int t = 1; t < count; t++) {
+                    parts[t].reinitialize();
+                    POOL.execute(parts[t]);
+                }
+                Part first = parts[0];
+                rows(op, aM, bM, cM, first.i0, first.i1);
+            } finally {
+                // 先頭のPartで例外が発生しても、行列を手放す前に残りのPartの完了を待つ
+                await();
+                for (int t = 0; t < count; t++) parts[t].set(op, null, null, null, 0, 0);
+                waiter = null;
+            }
+            // Partで発生した例外を投げ直す(完了したタスクのjoinは待たない)
+            for (int t = 1; t < count; t++) parts[t].join();
+        }
+
+        private void await() {
+            boolean interrupted = false;
+            while (pending.get() > 0) {
+                LockSupport.park(this);
+                if (Thread.interrupted()) interrupted = true;
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+            // Partはcomputeから戻った後でタスクの完了を記録するので、その短い間だけ待つ
+            // (記録される前にjoinすると待機ノードが割り当てられ、reinitializeすると次の計算が完了扱いになる)
+            for (int t = 1; t < count; t++) {
+                while (!parts[t].isDone()) Thread.yield();
+            }
+        }
+
+        // Partが1つ終わった
+        void done() {
+            if (pending.decrementAndGet() == 0) LockSupport.unpark(waiter);
+        }
+    }
+
+    /**
+     * Cの行 [i0, i1) を計算するタスク.
+     */
+    private static final class Part extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Job job;
+        private int op;
+        private transient Matrix aM, bM, cM;
+        private int i0, i1;
+
+        Part(Job job) {
+            this.job = job;
+        }
+
+        void set(int op, Matrix aM, Matrix bM, Matrix cM, int i0, int i1) {
+            this.op = op;
+            this.aM = aM;
+            this.bM = bM;
+            this.cM = cM;
+            this.i0 = i0;
+            this.i1 = i1;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                rows(op, aM, bM, cM, i0, i1);
+            } finally {
+                job.done();
+            }
+        }
+    }
+}
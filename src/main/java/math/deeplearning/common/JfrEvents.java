@@ -0,0 +1,115 @@
+package math.deeplearning.common;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Percentage;
+import jdk.jfr.Timespan;
+
+/**
+ * JDK Flight Recorderのイベント.
+ * <p>
+ * JFRのAPIがないJVMでも動くように、このクラスは {@link #AVAILABLE} がtrueのときだけ使う。
+ * (Metricsなどから直接イベントのクラスを参照しないこと)
+ */
+final class JfrEvents {
+    // JFRのAPIがあるかどうか
+    static final boolean AVAILABLE = isAvailable();
+
+    private JfrEvents() {
+    }
+
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    // 一定時間ごとの学習の統計
+    static void training(String name, Metrics.Report r) {
+        TrainingEvent e = new TrainingEvent();
+        if (!e.isEnabled()) return;
+        e.model = name;
+        e.steps = r.steps;
+        e.samplesPerSecond = r.samplesPerSecond;
+        e.sampling = r.phaseNanos[Metrics.Phase.SAMPLING.ordinal()];
+        e.forward = r.phaseNanos[Metrics.Phase.FORWARD.ordinal()];
+        e.backward = r.phaseNanos[Metrics.Phase.BACKWARD.ordinal()];
+        e.update = r.phaseNanos[Metrics.Phase.UPDATE.ordinal()];
+        e.evaluation = r.phaseNanos[Metrics.Phase.EVALUATION.ordinal()];
+        e.allocatedPerStep = (long) r.allocatedBytesPerStep;
+        e.gcTime = r.gcMillis * 1000000L;
+        e.commit();
+    }
+
+    // 評価の結果
+    static void evaluation(String name, Evaluator.Result result, long nanos) {
+        EvaluationEvent e = new EvaluationEvent();
+        if (!e.isEnabled()) return;
+        e.model = name;
+        e.iteration = result.iteration;
+        e.loss = result.loss;
+        e.accuracy = result.accuracy;
+        e.elapsed = nanos;
+        e.commit();
+    }
+
+    @Name("math.deeplearning.Training")
+    @Label("Training")
+    @Category("Deep Learning")
+    @Description("一定時間ごとの学習の統計")
+    static class TrainingEvent extends Event {
+        @Label("Model")
+        String model;
+        @Label("Steps")
+        long steps;
+        @Label("Samples per Second")
+        double samplesPerSecond;
+        @Label("Sampling")
+        @Timespan
+        long sampling;
+        @Label("Forward")
+        @Timespan
+        long forward;
+        @Label("Backward")
+        @Timespan
+        long backward;
+        @Label("Update")
+        @Timespan
+        long update;
+        @Label("Evaluation")
+        @Timespan
+        long evaluation;
+        @Label("Allocated per Step")
+        @DataAmount
+        long allocatedPerStep;
+        @Label("GC Time")
+        @Timespan
+        long gcTime;
+    }
+
+    @Name("math.deeplearning.Evaluation")
+    @Label("Evaluation")
+    @Category("Deep Learning")
+    @Description("評価用データでの誤差と精度")
+    static class EvaluationEvent extends Event {
+        @Label("Model")
+        String model;
+        @Label("Iteration")
+        int iteration;
+        @Label("Loss")
+        double loss;
+        @Label("Accuracy")
+        @Percentage
+        double accuracy;
+        @Label("Elapsed")
+        @Timespan
+        long elapsed;
+    }
+}
@@ -0,0 +1,230 @@
+package math.deeplearning.common;
+
+import java.util.Random;
+
+/**
+ * 実行時に選ばれた {@link Kernels} の実装が、スカラーの実装と丸め誤差の範囲で同じ結果になることを確認する.
+ * <p>
+ * いろいろな長さ(ベクトルの長さの倍数とその前後、端数だけのもの)と先頭の位置の乱数で
+ * すべてのメソッドを両方の実装で計算し、要素ごとの誤差 |a - b| / max(1, |a|) の最大値を表示する。
+ * {@link SparseMatrix} との積も同じ値の密行列の積と比べる。
+ * 許容誤差を超えたら終了コード1で終了する。最後に {@link Gemm} の行列積の時間も表示する。
+ * Vector APIの実装を確かめるには、マルチリリースjarをJDK 17以降で
+ * java --add-modules jdk.incubator.vector -cp math.deeplearning.java-1.0.jar:... math.deeplearning.common.KernelCheck
+ * のように実行する(クラスのディレクトリから実行するとスカラーの実装どうしを比べることになる)。
+ */
+public class KernelCheck {
+    // 許容する誤差
+    private static final double TOLERANCE = 1e-12;
+    // 確かめる要素数
+    private static final int[] LENGTHS = {0, 1, 2, 3, 4, 5, 7, 8, 9, 15, 16, 17, 31, 33, 64, 100, 785};
+
+    private final Kernels scalar = new Kernels();
+    private final Kernels target = Kernels.INSTANCE;
+    private final Random rand = new Random(0);
+    private boolean failed;
+
+    public static void main(String... args) {
+        KernelCheck check = new KernelCheck();
+        System.out.println("kernels: " + check.target.name());
+        check.run();
+        check.timeGemm(512, 785, 100);
+        if (check.failed) System.exit(1);
+    }
+
+    private void run() {
+        double[] unary = new double[7], binary = new double[3], reduce = new double[3], gemm = new double[6];
+        for (int n : LENGTHS) {
+            for (int off = 0; off < 3; off++) {
+                double[] a = random(off + n, 5.0), b = random(off + n, 5.0);
+                // 0や負の0も含める(reLU, stepの境界)
+                if (n > 2) {
+                    a[off] = 0.0;
+                    a[off + 1] = -0.0;
+                }
+                double[] pos = new double[off + n], prob = new double[off + n], t = new double[off + n];
+                for (int j = 0; j < pos.length; j++) {
+                    pos[j] = rand.nextDouble() * 3;
+                    prob[j] = 0.01 + 0.98 * rand.nextDouble();
+                    t[j] = rand.nextInt(3) == 0 ? 0.0 : rand.nextDouble();
+                }
+
+                unary[0] = Math.max(unary[0], unary(a, off, n, (k, x, xp, r, rp, m) -> k.sigmoid(x, xp, r, rp, m)));
+                unary[1] = Math.max(unary[1], unary(a, off, n, (k, x, xp, r, rp, m) -> k.reLU(x, xp, r, rp, m)));
+                unary[2] = Math.max(unary[2], unary(a, off, n, (k, x, xp, r, rp, m) -> k.step(x, xp, r, rp, m)));
+                unary[3] = Math.max(unary[3], unary(a, off, n, (k, x, xp, r, rp, m) -> k.scale(x, xp, 0.3, r, rp, m)));
+                unary[4] = Math.max(unary[4], unary(pos, off, n, (k, x, xp, r, rp, m) -> k.pow(x, xp, 2.0, r, rp, m)));
+                unary[5] = Math.max(unary[5], unary(pos, off, n, (k, x, xp, r, rp, m) -> k.pow(x, xp, 1.7, r, rp, m)));
+                unary[6] = Math.max(unary[6], unary(a, off, n, (k, x, xp, r, rp, m) -> k.softmax(x, xp, r, rp, m)));
+
+                double[] rs = new double[off + n], rv = new double[off + n];
+                scalar.mult(a, off, b, off, rs, off, n);
+                target.mult(a, off, b, off, rv, off, n);
+                binary[0] = Math.max(binary[0], diff(rs, rv));
+                System.arraycopy(b, 0, rs, 0, rs.length);
+                System.arraycopy(b, 0, rv, 0, rv.length);
+                scalar.axpy(0.7, a, off, rs, off, n);
+                target.axpy(0.7, a, off, rv, off, n);
+                binary[1] = Math.max(binary[1], diff(rs, rv));
+                binary[2] = Math.max(binary[2], diff(scalar.dot(a, off, b, off, n), target.dot(a, off, b, off, n)));
+
+                reduce[0] = Math.max(reduce[0], diff(scalar.sum(a, off, n), target.sum(a, off, n)));
+                reduce[1] = Math.max(reduce[1],
+                        diff(scalar.crossEntropy(t, off, prob, off, n), target.crossEntropy(t, off, prob, off, n)));
+                reduce[2] = Math.max(reduce[2], diff(scalar.binaryCrossEntropy(t, off, prob, off, n),
+                        target.binaryCrossEntropy(t, off, prob, off, n)));
+
+                gemm[0] = Math.max(gemm[0], axpy4(a, off, n));
+                gemm[1] = Math.max(gemm[1], dot4(a, b, off, n));
+            }
+        }
+        gemm[2] = gemm(37, 70, 53);
+        gemm[3] = gemm(64, 785, 100);
+        gemm[4] = sparseGemm(37, 70, 53, 0.3);
+        gemm[5] = sparseGemm(64, 784, 100, 0.2);
+
+        report("sigmoid", unary[0]);
+        report("reLU", unary[1]);
+        report("step", unary[2]);
+        report("mult(scalar)", unary[3]);
+        report("pow(2)", unary[4]);
+        report("pow(1.7)", unary[5]);
+        report("softmax", unary[6]);
+        report("mult", binary[0]);
+        report("axpy", binary[1]);
+        report("dot", binary[2]);
+        report("sum(mean)", reduce[0]);
+        report("crossEntropy", reduce[1]);
+        report("crossEntropy(binary)", reduce[2]);
+        report("axpy4", gemm[0]);
+        report("dot4", gemm[1]);
+        report("Gemm 37x70x53", gemm[2]);
+        report("Gemm 64x785x100", gemm[3]);
+        report("sparse 37x70x53", gemm[4]);
+        report("sparse 64x784x100", gemm[5]);
+    }
+
+    private void report(String name, double diff) {
+        boolean ok = diff <= TOLERANCE;
+        if (!ok) failed = true;
+        System.out.printf("%-22s max diff %.3e %s%n", name, diff, ok ? "ok" : "NG");
+    }
+
+    private double[] random(int n, double scale) {
+        double[] a = new double[n];
+        for (int j = 0; j < n; j++) a[j] = rand.nextGaussian() * scale;
+        return a;
+    }
+
+    private double unary(double[] a, int off, int n, Unary op) {
+        double[] rs = new double[a.length], rv = new double[a.length];
+        op.apply(scalar, a, off, rs, off, n);
+        op.apply(target, a, off, rv, off, n);
+        double d = diff(rs, rv);
+        // in-placeでも同じ結果になること(先頭の位置より前は入力のまま)
+        double[] in = a.clone();
+        op.apply(target, in, off, in, off, n);
+        System.arraycopy(a, 0, rv, 0, off);
+        return Math.max(d, diff(rv, in));
+    }
+
+    private double axpy4(double[] b, int off, int n) {
+        double[] cs = random(4 * (off + n), 1.0), cv = cs.clone();
+        int stride = off + n;
+        scalar.axpy4(0.5, -1.5, 2.0, 0.25, b, off, cs, off, off + stride, off + 2 * stride, off + 3 * stride, n);
+        target.axpy4(0.5, -1.5, 2.0, 0.25, b, off, cv, off, off + stride, off + 2 * stride, off + 3 * stride, n);
+        return diff(cs, cv);
+    }
+
+    private double dot4(double[] a, double[] b, int off, int n) {
+        double[] a4 = random(4 * (off + n), 1.0);
+        int stride = off + n;
+        double[] cs = new double[4], cv = new double[4];
+        scalar.dot4(a4, off, off + stride, off + 2 * stride, off + 3 * stride, b, off, cs, 0, 1, 2, 3, n);
+        target.dot4(a4, off, off + stride, off + 2 * stride, off + 3 * stride, b, off, cv, 0, 1, 2, 3, n);
+        return diff(cs, cv);
+    }
+
+    // Gemmの3種類の積を、定義どおりの3重ループと比べる
+    private double gemm(int m, int k, int n) {
+        Matrix a = new Matrix(random(m * k, 1.0), 0, k, m, k);
+        Matrix b = new Matrix(random(k * n, 1.0), 0, n, k, n);
+        Matrix bt = Util.trans(b), at = Util.trans(a);
+        Matrix expected = new Matrix(m, n);
+        for (int i = 0; i < m; i++) {
+            for (int j = 0; j < n; j++) {
+                double s = 0;
+                for (int p = 0; p < k; p++) s += a.get(i, p) * b.get(p, j);
+                expected.set(i, j, s);
+            }
+        }
+        double d = diff(expected.data, Gemm.multiply(a, b, new Matrix(m, n)).data);
+        d = Math.max(d, diff(expected.data, Gemm.multiplyTransA(at, b, new Matrix(m, n)).data));
+        return Math.max(d, diff(expected.data, Gemm.multiplyTransB(a, bt, new Matrix(m, n)).data));
+    }
+
+    // 疎行列の4種類の積を、同じ値の密行列の積と比べる
+    private double sparseGemm(int m, int k, int n, double density) {
+        Matrix a = sparseRandom(m, k, density);
+        SparseMatrix s = SparseMatrix.of(a);
+        Matrix b = new Matrix(random(k * n, 1.0), 0, n, k, n);
+        Matrix w = new Matrix(random((k + 1) * n, 1.0), 0, n, k + 1, n);
+        Matrix bt = new Matrix(random(m * n, 1.0), 0, n, m, n);
+        // (結果の行列の元の値が残らないことも確かめる)
+        double d = diff(Gemm.multiply(a, b, new Matrix(m, n)).data,
+                Gemm.multiply(s, b, new Matrix(random(m * n, 1.0), 0, n, m, n)).data);
+        d = Math.max(d, diff(Gemm.multiplyBias(a, w, new Matrix(m, n)).data,
+                Gemm.multiplyBias(s, w, new Matrix(random(m * n, 1.0), 0, n, m, n)).data));
+        d = Math.max(d, diff(Gemm.multiplyTransA(a, bt, new Matrix(k, n)).data,
+                Gemm.multiplyTransA(s, bt, new Matrix(random(k * n, 1.0), 0, n, k, n)).data));
+        d = Math.max(d, diff(Gemm.multiplyTransABias(a, bt, new Matrix(k + 1, n)).data,
+                Gemm.multiplyTransABias(s, bt, new Matrix(random((k + 1) * n, 1.0), 0, n, k + 1, n)).data));
+        return Math.max(d, diff(a.data, s.toDense().data));
+    }
+
+    // 要素の割合densityだけが0でない行列
+    private Matrix sparseRandom(int m, int k, double density) {
+        Matrix a = new Matrix(m, k);
+        for (int j = 0; j < a.data.length; j++) {
+            if (rand.nextDouble() < density) a.data[j] = rand.nextDouble();
+        }
+        return a;
+    }
+
+    // 1層目の順伝播と同じ形の行列積の時間(入力の2割が0でないときの疎行列の積と比べる)
+    private void timeGemm(int m, int k, int n) {
+        Matrix a = sparseRandom(m, k - 1, 0.2);
+        SparseMatrix s = SparseMatrix.of(a);
+        Matrix w = new Matrix(random(k * n, 1.0), 0, n, k, n);
+        Matrix c = new Matrix(m, n);
+        double dense = time(() -> Gemm.multiplyBias(a, w, c));
+        double sparse = time(() -> Gemm.multiplyBias(s, w, c));
+        System.out.printf("Gemm %dx%dx%d: %.3f ms (%.2f GFLOPS), sparse(density %.2f): %.3f ms%n",
+                m, k, n, dense * 1e3, 2.0 * m * k * n / dense / 1e9, s.density(), sparse * 1e3);
+    }
+
+    // 1回あたりの時間(秒)
+    private static double time(Runnable op) {
+        for (int i = 0; i < 20; i++) op.run();
+        int reps = 50;
+        long start = System.nanoTime();
+        for (int i = 0; i < reps; i++) op.run();
+        return (System.nanoTime() - start) / 1e9 / reps;
+    }
+
+    private static double diff(double[] a, double[] b) {
+        double max = 0;
+        for (int j = 0; j < a.length; j++) max = Math.max(max, diff(a[j], b[j]));
+        return max;
+    }
+
+    private static double diff(double a, double b) {
+        if (Double.doubleToLongBits(a) == Double.doubleToLongBits(b)) return 0;
+        if (Double.isNaN(a) || Double.isNaN(b)) return Double.POSITIVE_INFINITY;
+        return Math.abs(a - b) / Math.max(1.0, Math.abs(a));
+    }
+
+    private interface Unary {
+        void apply(Kernels k, double[] a, int ap, double[] r, int rp, int n);
+    }
+}
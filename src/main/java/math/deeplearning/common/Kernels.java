@@ -0,0 +1,152 @@
+package math.deeplearning.common;
+
+/**
+ * 配列の要素ごとの計算、総和、行列積の内側のループ.
+ * <p>
+ * {@link Util} の関数と {@link Gemm} は、ループの中身をこのクラスのメソッドで計算する。
+ * このクラスはJava 8でも動くスカラーの実装で、マルチリリースjarをJDK 17以降で
+ * --add-modules jdk.incubator.vector を付けて実行すると、Vector APIを使う実装
+ * (META-INF/versions/17 の VectorKernels)に実行時に切り替わる。
+ * システムプロパティ math.deeplearning.simd を false にするとスカラーの実装のままにする。
+ * 2つの実装の結果が丸め誤差の範囲で一致することは {@link KernelCheck} で確かめられる。
+ * <p>
+ * 配列はすべて「配列, 先頭の位置」の組で受け取り、要素数nの範囲だけを読み書きする。
+ * 結果の配列に入力の配列と同じ範囲を渡すとin-placeで計算する。
+ */
+class Kernels {
+    // 実行時に選んだ実装
+    static final Kernels INSTANCE = create();
+
+    private static Kernels create() {
+        if (Boolean.parseBoolean(System.getProperty("math.deeplearning.simd", "true"))) {
+            try {
+                return (Kernels) Class.forName("math.deeplearning.common.VectorKernels")
+                        .getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+                // Java 8、jarでないクラスパス、jdk.incubator.vectorを追加していないときはスカラーの実装を使う
+            }
+        }
+        return new Kernels();
+    }
+
+    /**
+     * 実装の名前(scalar、またはVector APIのベクトルの長さ).
+     *
+     * @return 名前
+     */
+    String name() {
+        return "scalar";
+    }
+
+    // r = 1 / (1 + exp(-a))
+    void sigmoid(double[] a, int ap, double[] r, int rp, int n) {
+        for (int j = 0; j < n; j++) r[rp + j] = 1 / (1 + Math.exp(-a[ap + j]));
+    }
+
+    // r = max(a, 0)
+    void reLU(double[] a, int ap, double[] r, int rp, int n) {
+        for (int j = 0; j < n; j++) {
+            double val = a[ap + j];
+            r[rp + j] = (val <= 0) ? 0.0 : val;
+        }
+    }
+
+    // r = a > 0 ? 1 : 0
+    void step(double[] a, int ap, double[] r, int rp, int n) {
+        for (int j = 0; j < n; j++) r[rp + j] = (a[ap + j] <= 0) ? 0.0 : 1.0;
+    }
+
+    // r = a * b (要素ごと)
+    void mult(double[] a, int ap, double[] b, int bp, double[] r, int rp, int n) {
+        for (int j = 0; j < n; j++) r[rp + j] = a[ap + j] * b[bp + j];
+    }
+
+    // r = a * s
+    void scale(double[] a, int ap, double s, double[] r, int rp, int n) {
+        for (int j = 0; j < n; j++) r[rp + j] = a[ap + j] * s;
+    }
+
+    // r = a ^ e
+    void pow(double[] a, int ap, double e, double[] r, int rp, int n) {
+        for (int j = 0; j < n; j++) r[rp + j] = Math.pow(a[ap + j], e);
+    }
+
+    // 1行分のソフトマックス関数(最大値を引いてから指数を取る)
+    void softmax(double[] a, int ap, double[] r, int rp, int n) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (int j = 0; j < n; j++) max = Math.max(max, a[ap + j]);
+        double sum = 0.0;
+        for (int j = 0; j < n; j++) {
+            r[rp + j] = Math.exp(a[ap + j] - max);
+            sum += r[rp + j];
+        }
+        for (int j = 0; j < n; j++) r[rp + j] /= sum;
+    }
+
+    // Σa
+    double sum(double[] a, int ap, int n) {
+        double sum = 0.0;
+        for (int j = 0; j < n; j++) sum += a[ap + j];
+        return sum;
+    }
+
+    // Σt * log(p) (tが0の要素は足さない)
+    double crossEntropy(double[] t, int tp, double[] p, int pp, int n) {
+        double sum = 0.0;
+        for (int j = 0; j < n; j++) {
+            if (t[tp + j] != 0.0) sum += t[tp + j] * Math.log(p[pp + j]);
+        }
+        return sum;
+    }
+
+    // Σ(t * log(p) + (1 - t) * log(1 - p))
+    double binaryCrossEntropy(double[] t, int tp, double[] p, int pp, int n) {
+        double sum = 0.0;
+        for (int j = 0; j < n; j++) {
+            double tj = t[tp + j], pj = p[pp + j];
+            sum += tj * Math.log(pj) + (1 - tj) * Math.log(1 - pj);
+        }
+        return sum;
+    }
+
+    // c = c + v * b (行列積の内側のループ)
+    void axpy(double v, double[] b, int bp, double[] c, int cp, int n) {
+        for (int j = 0; j < n; j++) c[cp + j] += v * b[bp + j];
+    }
+
+    // Cの4行 c0～c3 に、同じBの行に4つの値を掛けたものを足す
+    void axpy4(double v0, double v1, double v2, double v3, double[] b, int bp,
+               double[] c, int c0, int c1, int c2, int c3, int n) {
+        for (int j = 0; j < n; j++) {
+            double bj = b[bp + j];
+            c[c0 + j] += v0 * bj;
+            c[c1 + j] += v1 * bj;
+            c[c2 + j] += v2 * bj;
+            c[c3 + j] += v3 * bj;
+        }
+    }
+
+    // Σa * b
+    double dot(double[] a, int ap, double[] b, int bp, int n) {
+        double s0 = 0.0;
+        for (int p = 0; p < n; p++) s0 += a[ap + p] * b[bp + p];
+        return s0;
+    }
+
+    // Aの4行 a0～a3 それぞれとBの行の内積を c[c0]～c[c3] に書き込む
+    void dot4(double[] a, int a0, int a1, int a2, int a3, double[] b, int bp,
+              double[] c, int c0, int c1, int c2, int c3, int n) {
+        double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0;
+        for (int p = 0; p < n; p++) {
+            double bv = b[bp + p];
+            s0 += a[a0 + p] * bv;
+            s1 += a[a1 + p] * bv;
+            s2 += a[a2 + p] * bv;
+            s3 += a[a3 + p] * bv;
+        }
+        c[c0] = s0;
+        c[c1] = s1;
+        c[c2] = s2;
+        c[c3] = s3;
+    }
+}
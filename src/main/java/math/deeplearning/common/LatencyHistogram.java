@@ -0,0 +1,111 @@
+package math.deeplearning.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 応答時間の分布を数えて、パーセンタイル(p50, p99など)を求めるヒストグラム.
+ * <p>
+ * 時間はマイクロ秒単位で、64マイクロ秒までは1マイクロ秒ごと、それより長い時間は
+ * 2のべき乗の区間をそれぞれ32等分した区間(相対誤差3%程度)で数える。
+ * 区間の数は固定なので、{@link #record} はヒープ割り当てもロックもせず、複数のスレッドから呼び出してよい。
+ */
+public class LatencyHistogram {
+    // 2のべき乗の区間を分割する数
+    private static final int SUB_BUCKETS = 32;
+    // 1マイクロ秒ごとに数える範囲
+    private static final int LINEAR = 2 * SUB_BUCKETS;
+    // 数えられる最大の時間(2^40マイクロ秒, 約12日)
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = LINEAR + (MAX_EXPONENT - 6) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    /**
+     * 時間を1つ数える.
+     *
+     * @param nanos 時間(ナノ秒)
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        counts.incrementAndGet(bucket(micros));
+        count.incrementAndGet();
+        totalMicros.addAndGet(micros);
+        long max;
+        while ((max = maxMicros.get()) < micros && !maxMicros.compareAndSet(max, micros)) {
+            // 他のスレッドが更新したらやり直す
+        }
+    }
+
+    // 時間(マイクロ秒)を数える区間の番号
+    private static int bucket(long micros) {
+        if (micros < LINEAR) return (int) micros;
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent >= MAX_EXPONENT) return BUCKETS - 1;
+        int shift = exponent - 5;
+        return LINEAR + (shift - 1) * SUB_BUCKETS + (int) (micros >> shift) - SUB_BUCKETS;
+    }
+
+    // 区間の代表値(区間の中央, マイクロ秒)
+    private static long value(int bucket) {
+        if (bucket < LINEAR) return bucket;
+        int shift = (bucket - LINEAR) / SUB_BUCKETS + 1;
+        long lower = (long) ((bucket - LINEAR) % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return lower + (1L << shift) / 2;
+    }
+
+    public long count() {
+        return count.get();
+    }
+
+    /**
+     * 平均の時間を返す.
+     *
+     * @return 時間(ミリ秒)
+     */
+    public double meanMillis() {
+        long n = count.get();
+        return n == 0 ? 0 : totalMicros.get() / 1e3 / n;
+    }
+
+    public double maxMillis() {
+        return maxMicros.get() / 1e3;
+    }
+
+    /**
+     * パーセンタイルを返す.
+     *
+     * @param percent 0～100
+     * @return 時間(ミリ秒, 数えていなければ0)
+     */
+    public double percentileMillis(double percent) {
+        long n = count.get();
+        if (n == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(n * percent / 100));
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += counts.get(b);
+            if (seen >= rank) return Math.min(value(b), maxMicros.get()) / 1e3;
+        }
+        return maxMillis();
+    }
+
+    /**
+     * 数えた時間をすべて消す.
+     */
+    public void reset() {
+        for (int b = 0; b < BUCKETS; b++) counts.set(b, 0);
+        count.set(0);
+        totalMicros.set(0);
+        maxMicros.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d mean=%.3fms p50=%.3fms p99=%.3fms max=%.3fms",
+                count(), meanMillis(), percentileMillis(50), percentileMillis(99), maxMillis());
+    }
+}
@@ -0,0 +1,131 @@
+package math.deeplearning.common;
+
+/**
+ * {@link Network} を構成する層.
+ * <p>
+ * 層は入力と出力の行列を持たず、{@link Network.Plan} が確保した行列を受け取って計算する。
+ * 重みを持つ層の重みは {@link Network} が持ち、計算のたびに渡す。
+ */
+public abstract class Layer {
+    /**
+     * 全結合層(バイアスは重み行列の先頭行)を作る.
+     *
+     * @param outCols 出力の列数(ニューロン数)
+     * @return 層
+     */
+    public static Layer dense(int outCols) {
+        return new Dense(outCols);
+    }
+
+    /**
+     * ReLU関数を適用する層を作る.
+     *
+     * @return 層
+     */
+    public static Layer reLU() {
+        return new ReLU();
+    }
+
+    /**
+     * 出力の列数を返す.
+     *
+     * @param inCols 入力の列数
+     * @return 出力の列数
+     */
+    abstract int outCols(int inCols);
+
+    /**
+     * 初期化した重み行列を作る.
+     *
+     * @param inCols 入力の列数
+     * @return 重み行列(重みを持たない層はnull)
+     */
+    Matrix initWeight(int inCols) {
+        return null;
+    }
+
+    /**
+     * backwardに渡す重み行列を作る. 学習を始める前に1回だけ呼ばれる.
+     *
+     * @param wM 重み行列
+     * @return backwardで使う重み行列(コピーせずにビューを返してよい)
+     */
+    Matrix backwardWeight(Matrix wM) {
+        return wM;
+    }
+
+    /**
+     * 要素ごとの計算で、出力を入力と同じ行列に(誤差を出力側の誤差と同じ行列に)書き込んでよいかどうか.
+     *
+     * @return in-placeで計算できればtrue
+     */
+    boolean inPlace() {
+        return false;
+    }
+
+    /**
+     * backwardで入力xを使うかどうか.
+     *
+     * @return 使うならtrue
+     */
+    abstract boolean needsInput();
+
+    /**
+     * backwardで出力yを使うかどうか.
+     *
+     * @return 使うならtrue
+     */
+    abstract boolean needsOutput();
+
+    /**
+     * 出力yを計算する.
+     *
+     * @param wM 重み行列(重みを持たない層はnull)
+     * @param xM 入力
+     * @param yM 出力を書き込む行列
+     */
+    abstract void forward(Matrix wM, Matrix xM, Matrix yM);
+
+    /**
+     * 出力側の誤差dyから、入力側の誤差dxと重みの勾配gWを計算する.
+     *
+     * @param wM  backwardWeightで作った重み行列(重みを持たない層はnull)
+     * @param xM  入力(needsInputがfalseならnull)
+     * @param yM  出力(needsOutputがfalseならnull)
+     * @param dyM 出力側の誤差
+     * @param dxM 入力側の誤差を書き込む行列(先頭の層ではnull)
+     * @param gM  重みの勾配を書き込む行列(重みを持たない層はnull)
+     */
+    abstract void backward(Matrix wM, Matrix xM, Matrix yM, Matrix dyM, Matrix dxM, Matrix gM);
+
+    /**
+     * 入力を疎行列のまま受け取れるかどうか. trueなら先頭の層に疎行列の入力をそのまま渡す.
+     *
+     * @return 疎行列の入力を計算できればtrue
+     */
+    boolean acceptsSparse() {
+        return false;
+    }
+
+    /**
+     * 疎行列の入力から出力yを計算する. acceptsSparseがtrueの層だけが呼ばれる.
+     *
+     * @param wM 重み行列
+     * @param xM 入力
+     * @param yM 出力を書き込む行列
+     */
+    void forward(Matrix wM, SparseMatrix xM, Matrix yM) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not accept sparse input");
+    }
+
+    /**
+     * 疎行列の入力について重みの勾配gWを計算する. 先頭の層なので入力側の誤差は計算しない.
+     *
+     * @param xM  入力
+     * @param dyM 出力側の誤差
+     * @param gM  重みの勾配を書き込む行列
+     */
+    void backward(SparseMatrix xM, Matrix dyM, Matrix gM) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not accept sparse input");
+    }
+}
@@ -0,0 +1,487 @@
+package math.deeplearning.common;
+
+import org.apache.commons.math3.exception.DimensionMismatchException;
+import org.apache.commons.math3.linear.*;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static math.deeplearning.common.Util.*;
+
+/**
+ * 線形回帰の重みを最小二乗法で直接求める.
+ * <p>
+ * 学習データを1回読むあいだに正規方程式 X^T・X・w = X^T・y の係数 X^T・X と X^T・y を足し込み、
+ * コレスキー分解で解く(X^T・X が正定値でなければQR分解で解く)。係数は行について足し合わせるだけなので、
+ * 学習データは先頭から順に読めばよく、メモリに収まらないデータも扱える。
+ * 読んだ行はチャンクにまとめて {@link Gemm} で X^T・X を計算し、メモリ上のデータはチャンクを
+ * スレッドに分けて並列に足し込む。{@link Source} から読む場合は、読むスレッドが埋めたチャンクを
+ * ワーカーに渡し、各ワーカーが自分の X^T・X と X^T・y に足し込んで最後に足し合わせる
+ * (共役勾配法で読み直すときも同じ)。どのチャンクをどのワーカーが足すかは実行ごとに変わるので、
+ * 結果は丸め誤差の範囲で毎回少し変わる。
+ * <p>
+ * 列数が多いと X^T・X (列数 x 列数) を作って分解するのが重いので、
+ * データを何回か読み直して X^T・(X・p) を計算する共役勾配法で解く。
+ */
+public class LeastSquares {
+    // この列数を超えたら共役勾配法で解く(システムプロパティ math.deeplearning.lstsq.directCols で指定できる)
+    private static final int DIRECT_COLS = Integer.getInteger("math.deeplearning.lstsq.directCols", 2000);
+    // チャンクの要素数の上限
+    private static final int CHUNK_SIZE = 1 << 18;
+    // チャンクの行数の上限
+    private static final int CHUNK_ROWS = 1024;
+    // 共役勾配法の収束判定(残差のノルム / X^T・y のノルム)
+    private static final double CG_TOLERANCE = 1e-10;
+
+    /**
+     * 学習データを先頭から1行ずつ読む.
+     */
+    public interface Source {
+        /**
+         * すべての行をrowに渡す. 何回呼ばれても同じ行を同じ順で渡すこと.
+         *
+         * @param row 1行を受け取る処理(xは呼び出しのあいだだけ使われるので使い回してよい)
+         * @throws IOException 読み込みに失敗したとき
+         */
+        void scan(Row row) throws IOException;
+    }
+
+    /**
+     * 1行を受け取る.
+     */
+    public interface Row {
+        /**
+         * @param x 説明変数(バイアスを含む場合はダミー変数1も含む)
+         * @param y 目的変数
+         */
+        void accept(double[] x, double y);
+    }
+
+    // 列数
+    public final int cols;
+    // X^T・X (上三角も下三角も持つ)
+    private final Matrix xtx;
+    // X^T・y
+    private final Matrix xty;
+    // y^T・y
+    private double yty;
+    // 足し込んだ行数
+    private long rows;
+    // 1行ずつ足すときのチャンク
+    private final Chunk chunk;
+    // チャンクの積のバッファ
+    private final Matrix cxx;
+    private final Matrix cxy;
+
+    /**
+     * 何も足し込んでいない状態で作る.
+     *
+     * @param cols 列数
+     */
+    public LeastSquares(int cols) {
+        this.cols = cols;
+        xtx = new Matrix(cols, cols);
+        xty = new Matrix(cols, 1);
+        cxx = new Matrix(cols, cols);
+        cxy = new Matrix(cols, 1);
+        chunk = new Chunk(cols, this::addChunk);
+    }
+
+    /**
+     * 1行を足し込む. 行はチャンクにまとまってから計算する.
+     *
+     * @param x 説明変数(cols要素)
+     * @param y 目的変数
+     */
+    public void add(double[] x, double y) {
+        chunk.add(x, y);
+    }
+
+    /**
+     * 複数行をまとめて足し込む.
+     *
+     * @param xM 説明変数 (n x cols)
+     * @param yM 目的変数 (n x 1)
+     */
+    public void add(Matrix xM, Matrix yM) {
+        if (xM.cols != cols) throw new DimensionMismatchException(xM.cols, cols);
+        if (yM.rows != xM.rows || yM.cols != 1) throw new DimensionMismatchException(yM.rows, xM.rows);
+        chunk.flush();
+        addChunk(xM, yM);
+    }
+
+    private void addChunk(Matrix xM, Matrix yM) {
+        if (xM.rows == 0) return;
+        transDot(xM, xM, cxx);
+        transDot(xM, yM, cxy);
+        Util.add(xtx, cxx, xtx);
+        Util.add(xty, cxy, xty);
+        for (int i = 0; i < yM.rows; i++) {
+            double v = yM.data[yM.index(i)];
+            yty += v * v;
+        }
+        rows += xM.rows;
+    }
+
+    /**
+     * 別のスレッドで足し込んだ係数を足す.
+     *
+     * @param other 同じ列数のLeastSquares
+     */
+    public void merge(LeastSquares other) {
+        if (other.cols != cols) throw new DimensionMismatchException(other.cols, cols);
+        chunk.flush();
+        other.chunk.flush();
+        Util.add(xtx, other.xtx, xtx);
+        Util.add(xty, other.xty, xty);
+        yty += other.yty;
+        rows += other.rows;
+    }
+
+    /**
+     * 足し込んだ行数を返す.
+     *
+     * @return 行数
+     */
+    public long rows() {
+        chunk.flush();
+        return rows;
+    }
+
+    /**
+     * 正規方程式を解いて重みを求める. X^T・X が正定値ならコレスキー分解、そうでなければQR分解で解く.
+     *
+     * @return 重みベクトル
+     * @throws SingularMatrixException X の列が一次従属で重みが1つに決まらないとき
+     */
+    public RealVector solve() {
+        chunk.flush();
+        RealMatrix a = xtx.toRealMatrix();
+        RealVector b = xty.toRealMatrix().getColumnVector(0);
+        try {
+            return new CholeskyDecomposition(a).getSolver().solve(b);
+        } catch (NonPositiveDefiniteMatrixException | NonSymmetricMatrixException e) {
+            return new QRDecomposition(a).getSolver().solve(b);
+        }
+    }
+
+    /**
+     * 足し込んだデータでの誤差 mean((X・w - y)^2) / 2 を係数から計算する. データを読み直さなくてよい.
+     *
+     * @param w 重みベクトル
+     * @return 誤差
+     */
+    public double loss(RealVector w) {
+        chunk.flush();
+        double wAw = 0, wb = 0;
+        for (int i = 0; i < cols; i++) {
+            int r = xtx.index(i);
+            double s = 0;
+            for (int j = 0; j < cols; j++) s += xtx.data[r + j] * w.getEntry(j);
+            wAw += w.getEntry(i) * s;
+            wb += w.getEntry(i) * xty.data[xty.index(i)];
+        }
+        // 丸め誤差で負にならないようにする
+        return Math.max(0.0, wAw - 2 * wb + yty) / rows / 2;
+    }
+
+    /**
+     * メモリ上のデータの係数を、行をスレッドに分けて並列に足し込む.
+     *
+     * @param xM 説明変数 (n x cols)
+     * @param yM 目的変数 (n x 1)
+     * @return 足し込んだLeastSquares
+     */
+    public static LeastSquares accumulate(Matrix xM, Matrix yM) {
+        int chunkRows = chunkRows(xM.cols);
+        int parts = Math.min(Gemm.threads(), (xM.rows + chunkRows - 1) / chunkRows);
+        LeastSquares[] ls = new LeastSquares[Math.max(1, parts)];
+        for (int p = 0; p < ls.length; p++) ls[p] = new LeastSquares(xM.cols);
+        if (parts <= 1) {
+            accumulate(ls[0], xM, yM, 0, xM.rows, chunkRows);
+            return ls[0];
+        }
+        try (DataParallel dp = new DataParallel(parts)) {
+            dp.run(p -> accumulate(ls[p], xM, yM,
+                    DataParallel.start(xM.rows, parts, p), DataParallel.start(xM.rows, parts, p + 1), chunkRows));
+        }
+        for (int p = 1; p < parts; p++) ls[0].merge(ls[p]);
+        return ls[0];
+    }
+
+    // 行 [start, end) をチャンクごとに足し込む
+    private static void accumulate(LeastSquares ls, Matrix xM, Matrix yM, int start, int end, int chunkRows) {
+        for (int s = start; s < end; s += chunkRows) {
+            int e = Math.min(s + chunkRows, end);
+            ls.add(xM.rows(s, e), yM.rows(s, e));
+        }
+    }
+
+    /**
+     * 学習データを1回読んで係数を足し込む.
+     *
+     * @param source 学習データ
+     * @param cols   列数
+     * @return 足し込んだLeastSquares
+     * @throws IOException 読み込みに失敗したとき
+     */
+    public static LeastSquares accumulate(Source source, int cols) throws IOException {
+        int workers = Gemm.threads();
+        LeastSquares[] ls = new LeastSquares[workers];
+        for (int p = 0; p < workers; p++) ls[p] = new LeastSquares(cols);
+        try (DataParallel dp = workers > 1 ? new DataParallel(workers + 1) : null) {
+            scan(source, cols, dp, buffers(cols, dp), (p, xM, yM) -> ls[p].addChunk(xM, yM));
+        }
+        for (int p = 1; p < workers; p++) ls[0].merge(ls[p]);
+        return ls[0];
+    }
+
+    /**
+     * メモリ上のデータから重みを求める. 列数が多ければ共役勾配法で解く.
+     *
+     * @param x  説明変数
+     * @param yt 目的変数
+     * @return 重みベクトル
+     */
+    public static RealVector solve(RealMatrix x, RealVector yt) {
+        Matrix xM = Matrix.of(x);
+        Matrix yM = new Matrix(yt.toArray(), 0, 1, yt.getDimension(), 1);
+        if (xM.cols <= DIRECT_COLS) return accumulate(xM, yM).solve();
+
+        // 共役勾配法: X^T・X・p は行列を作らずに X^T・(X・p) で計算する
+        Matrix xpM = new Matrix(xM.rows, 1);
+        return conjugateGradient(transDot(xM, yM), (pM, qM) -> transDot(xM, dot(xM, pM, xpM), qM));
+    }
+
+    /**
+     * 学習データを読みながら重みを求める. 学習データ全体をメモリに置かない.
+     * 列数が少なければ1回読んで正規方程式を解き、多ければ共役勾配法で1反復ごとに読み直す.
+     *
+     * @param source 学習データ
+     * @param cols   列数
+     * @return 重みベクトル
+     * @throws IOException 読み込みに失敗したとき
+     */
+    public static RealVector solve(Source source, int cols) throws IOException {
+        if (cols <= DIRECT_COLS) return accumulate(source, cols).solve();
+
+        // ワーカーごとの足し込み先とチャンクの積のバッファ
+        int workers = Gemm.threads();
+        Matrix[] bs = new Matrix[workers], qs = new Matrix[workers];
+        Matrix[] cs = new Matrix[workers], xps = new Matrix[workers];
+        for (int w = 0; w < workers; w++) {
+            bs[w] = new Matrix(cols, 1);
+            qs[w] = new Matrix(cols, 1);
+            cs[w] = new Matrix(cols, 1);
+            xps[w] = new Matrix(chunkRows(cols), 1);
+        }
+        try (DataParallel dp = workers > 1 ? new DataParallel(workers + 1) : null) {
+            // チャンクは読み直すときも使い回す
+            Chunk[] buffers = buffers(cols, dp);
+            // X^T・y を求める
+            scan(source, cols, dp, buffers, (w, xM, yM) -> Util.add(bs[w], transDot(xM, yM, cs[w]), bs[w]));
+            for (int w = 1; w < workers; w++) Util.add(bs[0], bs[w], bs[0]);
+
+            // X^T・(X・p) はチャンクごとに計算して足し込む
+            return conjugateGradient(bs[0], (pM, qM) -> {
+                for (Matrix q : qs) q.fill(0.0);
+                try {
+                    scan(source, cols, dp, buffers, (w, xM, yM) ->
+                            Util.add(qs[w], transDot(xM, dot(xM, pM, xps[w].rows(0, xM.rows)), cs[w]), qs[w]));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                qM.fill(0.0);
+                for (Matrix q : qs) Util.add(qM, q, qM);
+            });
+        }
+    }
+
+    // チャンクを足し込む処理
+    private interface ChunkTask {
+        /**
+         * @param worker ワーカー番号
+         * @param xM     説明変数
+         * @param yM     目的変数
+         */
+        void accept(int worker, Matrix xM, Matrix yM);
+    }
+
+    // チャンクの終わりを表す印
+    private static final Chunk END = new Chunk(1, null);
+
+    // dpで読むときに使うチャンク(読むスレッドが埋めているものと、ワーカーが足し込んでいるもの)
+    private static Chunk[] buffers(int cols, DataParallel dp) {
+        if (dp == null) return null;
+        Chunk[] buffers = new Chunk[2 * (dp.workers - 1)];
+        for (int i = 0; i < buffers.length; i++) buffers[i] = new Chunk(cols, null);
+        return buffers;
+    }
+
+    /*
+     * 学習データを1回読んで、チャンクごとにtaskを呼ぶ.
+     * dpがnullなら読みながら呼び出し元のスレッドで足し込む。そうでなければdpの0番のスレッドが読んで
+     * 埋めたチャンクをキューに入れ、残りのスレッドがキューから取り出してワーカー番号0～(dp.workers-2)で足し込む。
+     * 足し込み終わったチャンクは読むスレッドに戻して使い回す。
+     */
+    private static void scan(Source source, int cols, DataParallel dp, Chunk[] buffers, ChunkTask task)
+            throws IOException {
+        if (dp == null) {
+            Chunk c = new Chunk(cols, (xM, yM) -> task.accept(0, xM, yM));
+            source.scan(c::add);
+            c.flush();
+            return;
+        }
+        int workers = dp.workers - 1;
+        BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(buffers.length);
+        BlockingQueue<Chunk> full = new ArrayBlockingQueue<>(buffers.length + workers);
+        for (Chunk c : buffers) {
+            c.filled = 0;
+            free.add(c);
+        }
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        dp.run(w -> {
+            try {
+                if (w == 0) {
+                    feed(source, free, full, failure, workers);
+                } else {
+                    drain(w - 1, task, free, full, failure);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure.compareAndSet(null, e);
+            }
+        });
+        Throwable e = failure.get();
+        if (e instanceof IOException) throw (IOException) e;
+        if (e instanceof RuntimeException) throw (RuntimeException) e;
+        if (e instanceof Error) throw (Error) e;
+        if (e != null) throw new IllegalStateException("interrupted while scanning", e);
+    }
+
+    // 読んだ行を空いているチャンクに詰め、埋まったらワーカーに渡す. 最後にワーカーの数だけENDを入れる
+    private static void feed(Source source, BlockingQueue<Chunk> free, BlockingQueue<Chunk> full,
+                             AtomicReference<Throwable> failure, int workers) throws InterruptedException {
+        Chunk[] c = new Chunk[1];
+        try {
+            source.scan((x, y) -> {
+                if (failure.get() != null) return;
+                try {
+                    if (c[0] == null) c[0] = free.take();
+                    if (c[0].put(x, y)) {
+                        full.put(c[0]);
+                        c[0] = null;
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("interrupted while scanning", e);
+                }
+            });
+            if (c[0] != null) full.put(c[0]);
+        } catch (IOException | RuntimeException | Error e) {
+            failure.compareAndSet(null, e);
+        } finally {
+            for (int i = 0; i < workers; i++) full.put(END);
+        }
+    }
+
+    // ENDが来るまでチャンクを取り出して足し込む. 失敗した後もチャンクは読むスレッドに戻し続ける
+    private static void drain(int worker, ChunkTask task, BlockingQueue<Chunk> free, BlockingQueue<Chunk> full,
+                              AtomicReference<Throwable> failure) throws InterruptedException {
+        for (Chunk c; (c = full.take()) != END; ) {
+            try {
+                if (failure.get() == null && c.filled > 0) {
+                    task.accept(worker, c.x.rows(0, c.filled), c.y.rows(0, c.filled));
+                }
+            } catch (RuntimeException | Error e) {
+                failure.compareAndSet(null, e);
+            }
+            c.filled = 0;
+            free.put(c);
+        }
+    }
+
+    // X^T・X・p を計算してqMに書き込む
+    private interface NormalProduct {
+        void apply(Matrix pM, Matrix qM);
+    }
+
+    // 共役勾配法で X^T・X・w = b を解く
+    private static RealVector conjugateGradient(Matrix bM, NormalProduct product) {
+        int n = bM.rows;
+        double[] b = bM.data;
+        double[] w = new double[n];
+        double[] r = b.clone();
+        Matrix pM = new Matrix(r.clone(), 0, 1, n, 1);
+        Matrix qM = new Matrix(n, 1);
+        double[] p = pM.data;
+        double[] q = qM.data;
+        double rr = dotProduct(r, r);
+        double limit = CG_TOLERANCE * CG_TOLERANCE * rr;
+        for (int it = 0; it < Math.max(n, 100) && rr > limit; it++) {
+            product.apply(pM, qM);
+            double pq = dotProduct(p, q);
+            if (pq <= 0) break;
+            double a = rr / pq;
+            for (int i = 0; i < n; i++) {
+                w[i] += a * p[i];
+                r[i] -= a * q[i];
+            }
+            double rrNew = dotProduct(r, r);
+            double beta = rrNew / rr;
+            for (int i = 0; i < n; i++) p[i] = r[i] + beta * p[i];
+            rr = rrNew;
+        }
+        return MatrixUtils.createRealVector(w);
+    }
+
+    private static double dotProduct(double[] a, double[] b) {
+        double s = 0;
+        for (int i = 0; i < a.length; i++) s += a[i] * b[i];
+        return s;
+    }
+
+    private static int chunkRows(int cols) {
+        return Math.max(1, Math.min(CHUNK_ROWS, CHUNK_SIZE / Math.max(1, cols)));
+    }
+
+    // 1行ずつ渡された行をチャンクにまとめて処理する
+    private static final class Chunk {
+        interface Consumer {
+            void accept(Matrix xM, Matrix yM);
+        }
+
+        final Matrix x;
+        final Matrix y;
+        final Consumer consumer;
+        int filled;
+
+        Chunk(int cols, Consumer consumer) {
+            int rows = chunkRows(cols);
+            this.x = new Matrix(rows, cols);
+            this.y = new Matrix(rows, 1);
+            this.consumer = consumer;
+        }
+
+        void add(double[] xr, double yr) {
+            if (put(xr, yr)) flush();
+        }
+
+        // 1行を詰めて、チャンクが埋まったらtrueを返す
+        boolean put(double[] xr, double yr) {
+            if (xr.length != x.cols) throw new DimensionMismatchException(xr.length, x.cols);
+            System.arraycopy(xr, 0, x.data, x.index(filled), x.cols);
+            y.data[y.index(filled)] = yr;
+            return ++filled == x.rows;
+        }
+
+        void flush() {
+            if (filled == 0) return;
+            int n = filled;
+            filled = 0;
+            consumer.accept(x.rows(0, n), y.rows(0, n));
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package math.deeplearning.common;
+
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 学習の途中経過を別スレッドで表示する.
+ * <p>
+ * {@link #log} はキューに入れるだけで、表示は専用のスレッドが行うので、
+ * 表示先が遅くても呼び出し元(学習スレッドや評価スレッド)は待たされない。
+ * キューがいっぱいのときは待たずにその行を捨て、捨てた行数を数えておく。
+ */
+public final class LogSink {
+    // キューに入れておける行数
+    private static final int CAPACITY = 1024;
+
+    private static final BlockingQueue<String> QUEUE = new ArrayBlockingQueue<>(CAPACITY);
+    private static final AtomicLong DROPPED = new AtomicLong();
+    // キューから取り出したがまだ表示し終わっていない行数
+    private static final AtomicLong PENDING = new AtomicLong();
+    private static PrintStream out = System.out;
+    private static Thread writer;
+
+    private LogSink() {
+    }
+
+    /**
+     * 1行を表示する. 待たずに戻る.
+     *
+     * @param line 表示する行
+     */
+    public static void log(String line) {
+        ensureStarted();
+        PENDING.incrementAndGet();
+        if (!QUEUE.offer(line)) {
+            PENDING.decrementAndGet();
+            DROPPED.incrementAndGet();
+        }
+    }
+
+    /**
+     * キューに入っている行をすべて表示し終わるまで待つ(プログラムの終了前などに呼ぶ).
+     *
+     * @param timeoutMillis 待つ時間の上限(ミリ秒)
+     */
+    public static void flush(long timeoutMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (PENDING.get() > 0 && System.nanoTime() - deadline < 0) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        synchronized (LogSink.class) {
+            out.flush();
+        }
+    }
+
+    public static void flush() {
+        flush(1000);
+    }
+
+    /**
+     * キューがいっぱいで捨てた行数を返す.
+     *
+     * @return 行数
+     */
+    public static long dropped() {
+        return DROPPED.get();
+    }
+
+    /**
+     * 表示先を変更する.
+     *
+     * @param stream 表示先
+     */
+    public static synchronized void setOut(PrintStream stream) {
+        out = stream;
+    }
+
+    private static synchronized void ensureStarted() {
+        if (writer != null) return;
+        writer = new Thread(LogSink::drain, "log-sink");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private static void drain() {
+        while (true) {
+            String line;
+            try {
+                line = QUEUE.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            synchronized (LogSink.class) {
+                out.println(line);
+            }
+            PENDING.decrementAndGet();
+        }
+    }
+}
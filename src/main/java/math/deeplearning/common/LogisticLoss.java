@@ -0,0 +1,184 @@
+package math.deeplearning.common;
+
+import org.apache.commons.math3.exception.DimensionMismatchException;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.RealVector;
+import java.util.Arrays;
+
+/**
+ * ロジスティック回帰の交差エントロピー誤差(データ数の平均)を、{@link Minimizer} で最小化する損失関数にする.
+ * <p>
+ * 入力データは作るときに1回コピーし、勾配とヘッセ行列はそれを1回走査して計算する。確率は0や1に丸めずに、
+ * log(1 + exp(u)) や log(Σexp(u)) を桁あふれしないように計算するので、
+ * データが線形分離できて重みが大きくなっても損失は有限のままになる。
+ */
+public final class LogisticLoss {
+    private LogisticLoss() {
+    }
+
+    /**
+     * 2値分類の損失. mean(log(1 + exp(u)) - yt * u), u = x・w.
+     *
+     * @param x  入力データ(ダミー変数を含む M x D)
+     * @param yt 正解データ(0か1のM要素)
+     * @return 損失関数(重みはD要素)
+     */
+    public static Minimizer.TwiceDifferentiable binary(RealMatrix x, RealVector yt) {
+        double[][] xA = x.getData();
+        double[] tA = yt.toArray();
+        if (tA.length != xA.length) throw new DimensionMismatchException(tA.length, xA.length);
+        int M = xA.length, D = x.getColumnDimension();
+        return new Minimizer.TwiceDifferentiable() {
+            @Override
+            public double value(double[] w, double[] grad) {
+                checkLength(w, D);
+                if (grad != null) Arrays.fill(grad, 0.0);
+                double sum = 0;
+                for (int i = 0; i < M; i++) {
+                    double[] row = xA[i];
+                    double u = 0;
+                    for (int j = 0; j < D; j++) u += row[j] * w[j];
+                    // log(1 + exp(u)) = max(u, 0) + log(1 + exp(-|u|))
+                    sum += Math.max(u, 0) + Math.log1p(Math.exp(-Math.abs(u))) - tA[i] * u;
+                    if (grad != null) {
+                        double d = sigmoid(u) - tA[i];
+                        for (int j = 0; j < D; j++) grad[j] += d * row[j];
+                    }
+                }
+                if (grad != null) for (int j = 0; j < D; j++) grad[j] /= M;
+                return sum / M;
+            }
+
+            @Override
+            public void hessian(double[] w, double[][] h) {
+                checkLength(w, D);
+                for (double[] r : h) Arrays.fill(r, 0.0);
+                // H = X^T・diag(p(1 - p))・X / M (下三角だけ足し込んでから上三角に写す)
+                for (int i = 0; i < M; i++) {
+                    double[] row = xA[i];
+                    double u = 0;
+                    for (int j = 0; j < D; j++) u += row[j] * w[j];
+                    double p = sigmoid(u), s = p * (1 - p);
+                    for (int a = 0; a < D; a++) {
+                        double sa = s * row[a];
+                        for (int b = 0; b <= a; b++) h[a][b] += sa * row[b];
+                    }
+                }
+                symmetrize(h, M);
+            }
+        };
+    }
+
+    /**
+     * 多クラス分類の損失. mean(log(Σexp(u)) - u[t]), u = x・W.
+     *
+     * @param x       入力データ(ダミー変数を含む M x D)
+     * @param t       正解データ(クラス番号のM要素)
+     * @param classes クラス数K
+     * @return 損失関数(重みは D x K の重み行列を行の順に並べたD * K要素)
+     */
+    public static Minimizer.TwiceDifferentiable multinomial(RealMatrix x, int[] t, int classes) {
+        double[][] xA = x.getData();
+        if (t.length != xA.length) throw new DimensionMismatchException(t.length, xA.length);
+        int M = xA.length, D = x.getColumnDimension(), K = classes;
+        return new Minimizer.TwiceDifferentiable() {
+            @Override
+            public double value(double[] w, double[] grad) {
+                checkLength(w, D * K);
+                if (grad != null) Arrays.fill(grad, 0.0);
+                double[] p = new double[K];
+                double sum = 0;
+                for (int i = 0; i < M; i++) {
+                    double[] row = xA[i];
+                    double ut = 0;
+                    for (int j = 0; j < D; j++) ut += row[j] * w[j * K + t[i]];
+                    sum += softmax(row, w, D, K, p) - ut;
+                    if (grad != null) {
+                        p[t[i]] -= 1.0;
+                        for (int j = 0; j < D; j++) {
+                            double xj = row[j];
+                            for (int k = 0; k < K; k++) grad[j * K + k] += xj * p[k];
+                        }
+                    }
+                }
+                if (grad != null) for (int j = 0; j < D * K; j++) grad[j] /= M;
+                return sum / M;
+            }
+
+            @Override
+            public void hessian(double[] w, double[][] h) {
+                checkLength(w, D * K);
+                double[] p = new double[K];
+                double[] s = new double[K * K];
+                // H[(a,j),(b,k)] = Σ x_a・x_b・p_j・(δ_jk - p_k) / M
+                // 特徴量の組(a, b)ごとにクラスの組(j, k)の値を並べて足し込み(内側のループが連続した領域になる)、
+                // 最後にヘッセ行列の並びに写す
+                double[] acc = new double[D * (D + 1) / 2 * K * K];
+                for (int i = 0; i < M; i++) {
+                    double[] row = xA[i];
+                    softmax(row, w, D, K, p);
+                    for (int j = 0; j < K; j++) {
+                        for (int k = 0; k < K; k++) s[j * K + k] = p[j] * ((j == k ? 1.0 : 0.0) - p[k]);
+                    }
+                    for (int a = 0, o = 0; a < D; a++) {
+                        double xa = row[a];
+                        for (int b = 0; b <= a; b++, o += K * K) {
+                            double xab = xa * row[b];
+                            for (int jk = 0; jk < K * K; jk++) acc[o + jk] += xab * s[jk];
+                        }
+                    }
+                }
+                for (int a = 0, o = 0; a < D; a++) {
+                    for (int b = 0; b <= a; b++, o += K * K) {
+                        for (int j = 0; j < K; j++) {
+                            for (int k = 0; k < K; k++) {
+                                double v = acc[o + j * K + k] / M;
+                                h[a * K + j][b * K + k] = v;
+                                h[b * K + k][a * K + j] = v;
+                            }
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    private static double sigmoid(double u) {
+        return u >= 0 ? 1.0 / (1.0 + Math.exp(-u)) : Math.exp(u) / (1.0 + Math.exp(u));
+    }
+
+    /**
+     * 1行分の確率 p = softmax(row・W) を求め、log(Σexp(u)) を返す.
+     */
+    private static double softmax(double[] row, double[] w, int D, int K, double[] p) {
+        Arrays.fill(p, 0.0);
+        for (int j = 0; j < D; j++) {
+            double xj = row[j];
+            for (int k = 0; k < K; k++) p[k] += xj * w[j * K + k];
+        }
+        double max = Double.NEGATIVE_INFINITY;
+        for (int k = 0; k < K; k++) max = Math.max(max, p[k]);
+        double sum = 0;
+        for (int k = 0; k < K; k++) {
+            p[k] = Math.exp(p[k] - max);
+            sum += p[k];
+        }
+        for (int k = 0; k < K; k++) p[k] /= sum;
+        return max + Math.log(sum);
+    }
+
+    // 下三角に足し込んだ値をデータ数で割り、上三角に写す
+    private static void symmetrize(double[][] h, int M) {
+        int n = h.length;
+        for (int r = 0; r < n; r++) {
+            for (int c = 0; c <= r; c++) {
+                h[r][c] /= M;
+                h[c][r] = h[r][c];
+            }
+        }
+    }
+
+    private static void checkLength(double[] w, int n) {
+        if (w.length != n) throw new DimensionMismatchException(w.length, n);
+    }
+}
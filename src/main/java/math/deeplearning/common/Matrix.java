@@ -0,0 +1,186 @@
+package math.deeplearning.common;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.RealMatrix;
+import java.util.Arrays;
+
+/**
+ * 1次元配列に行優先で要素を格納する密行列.
+ * <p>
+ * 要素(i, j)は {@code data[offset + i * stride + j]} に格納される。
+ * offsetとstrideを持つので、行の範囲を切り出したビューをコピーなしで作れる。
+ */
+public class Matrix {
+    // 要素を格納する配列
+    public final double[] data;
+    // 先頭要素の位置
+    public final int offset;
+    // 行の間隔
+    public final int stride;
+    // 行数
+    public final int rows;
+    // 列数
+    public final int cols;
+
+    public Matrix(int rows, int cols) {
+        this(new double[rows * cols], 0, cols, rows, cols);
+    }
+
+    public Matrix(double[] data, int offset, int stride, int rows, int cols) {
+        if (rows < 0 || cols < 0 || stride < cols || offset < 0
+                || (rows > 0 && offset + (rows - 1) * stride + cols > data.length)) {
+            throw new IllegalArgumentException("invalid shape: " + rows + "x" + cols
+                    + " offset=" + offset + " stride=" + stride + " length=" + data.length);
+        }
+        this.data = data;
+        this.offset = offset;
+        this.stride = stride;
+        this.rows = rows;
+        this.cols = cols;
+    }
+
+    /**
+     * 2次元配列をコピーして行列を作る.
+     *
+     * @param aA2 2次元配列
+     * @return 行列
+     */
+    public static Matrix of(double[][] aA2) {
+        int cols = aA2.length == 0 ? 0 : aA2[0].length;
+        Matrix rM = new Matrix(aA2.length, cols);
+        for (int i = 0; i < aA2.length; i++) {
+            System.arraycopy(aA2[i], 0, rM.data, i * cols, cols);
+        }
+        return rM;
+    }
+
+    /**
+     * RealMatrixをコピーして行列を作る.
+     *
+     * @param aM RealMatrix
+     * @return 行列
+     */
+    public static Matrix of(RealMatrix aM) {
+        if (aM instanceof Array2DRowRealMatrix) {
+            return of(((Array2DRowRealMatrix) aM).getDataRef());
+        }
+        Matrix rM = new Matrix(aM.getRowDimension(), aM.getColumnDimension());
+        for (int i = 0; i < rM.rows; i++) {
+            for (int j = 0; j < rM.cols; j++) {
+                rM.data[i * rM.cols + j] = aM.getEntry(i, j);
+            }
+        }
+        return rM;
+    }
+
+    /**
+     * RealMatrixに変換する.
+     *
+     * @return RealMatrix
+     */
+    public RealMatrix toRealMatrix() {
+        return new Array2DRowRealMatrix(toArray(), false);
+    }
+
+    /**
+     * 2次元配列に変換する.
+     *
+     * @return 2次元配列
+     */
+    public double[][] toArray() {
+        double[][] rA2 = new double[rows][cols];
+        for (int i = 0; i < rows; i++) {
+            System.arraycopy(data, offset + i * stride, rA2[i], 0, cols);
+        }
+        return rA2;
+    }
+
+    public double get(int i, int j) {
+        return data[offset + i * stride + j];
+    }
+
+    public void set(int i, int j, double val) {
+        data[offset + i * stride + j] = val;
+    }
+
+    /**
+     * 行の先頭位置を返す.
+     *
+     * @param i 行番号
+     * @return dataにおける行の先頭位置
+     */
+    public int index(int i) {
+        return offset + i * stride;
+    }
+
+    /**
+     * 要素が隙間なく並んでいるかどうかを返す.
+     *
+     * @return 隙間がなければtrue
+     */
+    public boolean isContiguous() {
+        return stride == cols || rows <= 1;
+    }
+
+    /**
+     * 行の範囲を切り出したビューを返す(コピーしない).
+     *
+     * @param startRow 開始行
+     * @param endRow   終了行(この行は含まない)
+     * @return ビュー
+     */
+    public Matrix rows(int startRow, int endRow) {
+        if (startRow < 0 || endRow > rows || startRow > endRow) {
+            throw new IndexOutOfBoundsException("rows " + startRow + ".." + endRow + " of " + rows);
+        }
+        return new Matrix(data, offset + startRow * stride, stride, endRow - startRow, cols);
+    }
+
+    /**
+     * 同じ形の行列にすべての要素をコピーする.
+     *
+     * @param rM コピー先
+     * @return コピー先
+     */
+    public Matrix copyTo(Matrix rM) {
+        checkSameShape(this, rM);
+        if (isContiguous() && rM.isContiguous()) {
+            System.arraycopy(data, offset, rM.data, rM.offset, rows * cols);
+        } else {
+            for (int i = 0; i < rows; i++) {
+                System.arraycopy(data, index(i), rM.data, rM.index(i), cols);
+            }
+        }
+        return rM;
+    }
+
+    public Matrix copy() {
+        return copyTo(new Matrix(rows, cols));
+    }
+
+    /**
+     * すべての要素を同じ値にする.
+     *
+     * @param val 値
+     * @return この行列
+     */
+    public Matrix fill(double val) {
+        for (int i = 0; i < rows; i++) {
+            int p = index(i);
+            Arrays.fill(data, p, p + cols, val);
+        }
+        return this;
+    }
+
+    static void checkSameShape(Matrix aM, Matrix bM) {
+        if (aM.rows != bM.rows || aM.cols != bM.cols) {
+            throw new IllegalArgumentException("shape mismatch: " + aM.rows + "x" + aM.cols
+                    + " vs " + bM.rows + "x" + bM.cols);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Matrix[" + rows + "x" + cols + "]";
+    }
+}
@@ -0,0 +1,352 @@
+package math.deeplearning.common;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 学習の処理ごとの時間と回数を数え、一定時間ごとに集計して表示する.
+ * <p>
+ * 学習スレッドは {@link #record} で処理の時間を、{@link #step} で学習したステップ数を足すだけで、
+ * ヒープ割り当ても表示もしない。集計は別スレッドで一定時間(システムプロパティ
+ * math.deeplearning.metrics.millis, 既定10秒, 0なら集計しない)ごとに行い、
+ * 1秒あたりの学習データ数、1ステップあたりの各処理の時間とヒープ割り当て、GCの時間を
+ * {@link LogSink} に表示してJFRのイベントにも書き出す。
+ * {@link #start} してから {@link #close} するまではJMXのMBean
+ * (math.deeplearning:type=Training,name=モデル名,id=番号) としても公開する。
+ * 複数のスレッドで同時に行う処理の時間は、スレッドごとの時間の合計になる。
+ */
+public class Metrics implements TrainingMXBean, AutoCloseable {
+    // 集計する間隔(ミリ秒)
+    private static final long REPORT_MILLIS = Long.getLong("math.deeplearning.metrics.millis", 10000);
+    // MBeanの名前を重ならないようにする番号
+    private static final AtomicInteger IDS = new AtomicInteger();
+
+    /**
+     * 時間を測る処理.
+     */
+    public enum Phase {
+        // ミニバッチの読み込み
+        SAMPLING,
+        // 順伝播
+        FORWARD,
+        // 逆伝播(勾配の計算)
+        BACKWARD,
+        // 重みの更新
+        UPDATE,
+        // 評価(学習スレッドでの重みのコピー)
+        EVALUATION;
+
+        String label() {
+            return name().toLowerCase();
+        }
+    }
+
+    private static final int PHASES = Phase.values().length;
+
+    private final String name;
+    private final int batchSize;
+    private final AtomicLong steps = new AtomicLong();
+    private final AtomicLongArray nanos = new AtomicLongArray(PHASES);
+    private final AtomicLongArray counts = new AtomicLongArray(PHASES);
+    // 最後の評価の結果
+    private volatile Evaluator.Result evaluation;
+
+    // 集計スレッド
+    private ScheduledExecutorService reporter;
+    private ObjectName objectName;
+    // 開始したときと前回集計したときの値
+    private Sample first;
+    private Sample last;
+    // 直近の集計
+    private volatile Report latest;
+
+    /**
+     * @param name      モデル名(表示とMBeanの名前に使う)
+     * @param batchSize 1ステップで学習するデータ数
+     */
+    public Metrics(String name, int batchSize) {
+        this.name = name;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * 処理にかかった時間を足す.
+     * 続けて次の処理を測るときは、戻り値を次の処理の開始時刻にすればよい.
+     *
+     * @param phase 処理
+     * @param start 開始時刻({@link System#nanoTime})
+     * @return 今の時刻({@link System#nanoTime})
+     */
+    public long record(Phase phase, long start) {
+        long now = System.nanoTime();
+        nanos.addAndGet(phase.ordinal(), now - start);
+        counts.incrementAndGet(phase.ordinal());
+        return now;
+    }
+
+    /**
+     * 1ステップ(ミニバッチ1つ)学習したことを記録する.
+     */
+    public void step() {
+        steps.incrementAndGet();
+    }
+
+    /**
+     * 評価の結果を記録する. 評価スレッドから呼ばれる.
+     *
+     * @param result 結果
+     * @param nanos  評価にかかった時間(ナノ秒)
+     */
+    public void evaluated(Evaluator.Result result, long nanos) {
+        evaluation = result;
+        if (JfrEvents.AVAILABLE) JfrEvents.evaluation(name, result, nanos);
+    }
+
+    /**
+     * MBeanを登録し、一定時間ごとの集計を始める.
+     *
+     * @return this
+     */
+    public synchronized Metrics start() {
+        if (first != null) return this;
+        first = last = sample();
+        latest = null;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName("math.deeplearning:type=Training,name=" + ObjectName.quote(name)
+                    + ",id=" + IDS.incrementAndGet());
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            objectName = null;
+            LogSink.log("metrics: failed to register MBean: " + e);
+        }
+        if (REPORT_MILLIS > 0) {
+            reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread th = new Thread(r, "metrics");
+                th.setDaemon(true);
+                return th;
+            });
+            reporter.scheduleAtFixedRate(this::report, REPORT_MILLIS, REPORT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        return this;
+    }
+
+    // 前回からの区間を集計して表示する
+    private synchronized void report() {
+        if (first == null) return;
+        Sample now = sample();
+        Report r = new Report(last, now, batchSize);
+        last = now;
+        latest = r;
+        LogSink.log("metrics: " + name + " " + r);
+        if (JfrEvents.AVAILABLE) JfrEvents.training(name, r);
+    }
+
+    /**
+     * 集計を止め、開始からの合計を表示してMBeanの登録を解除する.
+     */
+    @Override
+    public synchronized void close() {
+        if (first == null) return;
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                // 登録されていなければ何もしない
+            }
+            objectName = null;
+        }
+        LogSink.log("metrics: " + name + " total " + new Report(first, sample(), batchSize));
+        LogSink.flush();
+        first = last = null;
+    }
+
+    /**
+     * 開始から今までを集計する(開始していなければ数えた値だけを集計する).
+     *
+     * @return 集計
+     */
+    public synchronized Report total() {
+        Sample now = sample();
+        return new Report(first != null ? first : new Sample(), now, batchSize);
+    }
+
+    private Sample sample() {
+        Sample s = new Sample();
+        s.nanoTime = System.nanoTime();
+        s.steps = steps.get();
+        for (int p = 0; p < PHASES; p++) {
+            s.nanos[p] = nanos.get(p);
+            s.counts[p] = counts.get(p);
+        }
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threads;
+            if (bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled()) {
+                for (long bytes : bean.getThreadAllocatedBytes(bean.getAllThreadIds())) {
+                    if (bytes > 0) s.allocated += bytes;
+                }
+            }
+        }
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            s.gcMillis += Math.max(0, gc.getCollectionTime());
+            s.gcCount += Math.max(0, gc.getCollectionCount());
+        }
+        return s;
+    }
+
+    /**
+     * ある時点の累計値.
+     */
+    private static class Sample {
+        long nanoTime;
+        long steps;
+        final long[] nanos = new long[PHASES];
+        final long[] counts = new long[PHASES];
+        // 生きているスレッドが割り当てたバイト数の合計
+        long allocated;
+        long gcMillis;
+        long gcCount;
+    }
+
+    /**
+     * 2つの時点の間の集計.
+     */
+    public static class Report {
+        // 区間の長さ(秒)
+        public final double seconds;
+        // 学習したステップ数
+        public final long steps;
+        // 1秒あたりの学習データ数
+        public final double samplesPerSecond;
+        // 1ステップあたりの各処理の時間(ナノ秒, Phaseの順)
+        public final long[] phaseNanos = new long[PHASES];
+        // 1ステップあたりと1秒あたりのヒープ割り当て(バイト, 全スレッドの合計)
+        public final double allocatedBytesPerStep;
+        public final double allocatedBytesPerSecond;
+        // GCの時間(ミリ秒)と回数
+        public final long gcMillis;
+        public final long gcCount;
+
+        Report(Sample from, Sample to, int batchSize) {
+            seconds = Math.max(1e-9, (to.nanoTime - from.nanoTime) / 1e9);
+            steps = to.steps - from.steps;
+            samplesPerSecond = steps * (double) batchSize / seconds;
+            for (int p = 0; p < PHASES; p++) {
+                // 評価は毎ステップではないので、ステップ数で割って1ステップあたりの負担にする
+                phaseNanos[p] = steps == 0 ? 0 : (to.nanos[p] - from.nanos[p]) / steps;
+            }
+            // 途中で終了したスレッドの分は数えられないので、負になったら0にする
+            long allocated = Math.max(0, to.allocated - from.allocated);
+            allocatedBytesPerStep = steps == 0 ? 0 : (double) allocated / steps;
+            allocatedBytesPerSecond = allocated / seconds;
+            gcMillis = to.gcMillis - from.gcMillis;
+            gcCount = to.gcCount - from.gcCount;
+        }
+
+        public double micros(Phase phase) {
+            return phaseNanos[phase.ordinal()] / 1e3;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("steps=%d samples/sec=%.0f", steps, samplesPerSecond));
+            for (Phase p : Phase.values()) {
+                sb.append(String.format(" %s=%.3fms", p.label(), phaseNanos[p.ordinal()] / 1e6));
+            }
+            sb.append(String.format(" alloc=%.0fB/step (%.1fMB/s) gc=%dms (%d)",
+                    allocatedBytesPerStep, allocatedBytesPerSecond / 1e6, gcMillis, gcCount));
+            return sb.toString();
+        }
+    }
+
+    // ##########
+    // # MBean
+    // ##########
+    private Report latestOrTotal() {
+        Report r = latest;
+        return r != null ? r : total();
+    }
+
+    @Override
+    public long getSteps() {
+        return steps.get();
+    }
+
+    @Override
+    public long getSamples() {
+        return steps.get() * batchSize;
+    }
+
+    @Override
+    public double getSamplesPerSecond() {
+        return latestOrTotal().samplesPerSecond;
+    }
+
+    @Override
+    public double getSamplingMicros() {
+        return latestOrTotal().micros(Phase.SAMPLING);
+    }
+
+    @Override
+    public double getForwardMicros() {
+        return latestOrTotal().micros(Phase.FORWARD);
+    }
+
+    @Override
+    public double getBackwardMicros() {
+        return latestOrTotal().micros(Phase.BACKWARD);
+    }
+
+    @Override
+    public double getUpdateMicros() {
+        return latestOrTotal().micros(Phase.UPDATE);
+    }
+
+    @Override
+    public double getEvaluationMicros() {
+        return latestOrTotal().micros(Phase.EVALUATION);
+    }
+
+    @Override
+    public double getAllocatedBytesPerStep() {
+        return latestOrTotal().allocatedBytesPerStep;
+    }
+
+    @Override
+    public long getGcMillis() {
+        return total().gcMillis;
+    }
+
+    @Override
+    public long getGcCount() {
+        return total().gcCount;
+    }
+
+    @Override
+    public double getLastLoss() {
+        Evaluator.Result r = evaluation;
+        return r == null ? Double.NaN : r.loss;
+    }
+
+    @Override
+    public double getLastAccuracy() {
+        Evaluator.Result r = evaluation;
+        return r == null ? Double.NaN : r.accuracy;
+    }
+}
@@ -0,0 +1,271 @@
+package math.deeplearning.common;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static math.deeplearning.common.Util.softmax;
+
+/**
+ * 1件ずつ届く推論の要求をまとめて(マイクロバッチにして)順伝播する.
+ * <p>
+ * 要求はキューに入れ、推論スレッドが最初の要求から最大待ち時間が過ぎるか最大バッチサイズに達するまで
+ * 後続の要求を集めて、1回の行列積で順伝播する。同時に届く要求が多いほどバッチが大きくなり、
+ * 1件あたりの計算時間が短くなる。要求が1件だけなら最大待ち時間だけ待ってから計算する。
+ * 最大バッチサイズと最大待ち時間は、システムプロパティ math.deeplearning.serve.maxBatch (既定64)と
+ * math.deeplearning.serve.waitMicros (既定1000マイクロ秒)で指定できる。
+ * 順伝播に使う行列は最大バッチサイズ分だけ作っておき、使い回す。
+ */
+public class MicroBatcher implements AutoCloseable {
+    private static final int MAX_BATCH = Integer.getInteger("math.deeplearning.serve.maxBatch", 64);
+    private static final long WAIT_MICROS = Long.getLong("math.deeplearning.serve.waitMicros", 1000);
+    // キューに入れておける要求の数(最大バッチサイズの何倍か)
+    private static final int QUEUE_BATCHES = 64;
+
+    private final Matrix[] weights;
+    private final Network.Plan plan;
+    public final int maxBatch;
+    private final long maxWaitNanos;
+    private final int inCols;
+
+    private final BlockingQueue<Request> queue;
+    private final Request[] batch;
+    private final Matrix x;
+    private final Thread worker;
+    private volatile boolean closed;
+
+    // 要求を受け取ってから結果を返すまでの時間
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private volatile long startNanos = System.nanoTime();
+
+    /**
+     * 最大バッチサイズと最大待ち時間をシステムプロパティの値にして作る.
+     *
+     * @param net ネットワーク(学習済みの重みを持つもの)
+     */
+    public MicroBatcher(Network net) {
+        this(net, MAX_BATCH, WAIT_MICROS);
+    }
+
+    /**
+     * @param net           ネットワーク(学習済みの重みを持つもの)
+     * @param maxBatch      最大バッチサイズ
+     * @param maxWaitMicros 最初の要求から後続の要求を待つ最大の時間(マイクロ秒)
+     */
+    public MicroBatcher(Network net, int maxBatch, long maxWaitMicros) {
+        if (maxBatch <= 0) throw new IllegalArgumentException("maxBatch must be positive: " + maxBatch);
+        this.weights = net.weights();
+        this.plan = net.plan(maxBatch);
+        this.maxBatch = maxBatch;
+        this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+        this.inCols = net.inCols();
+        queue = new ArrayBlockingQueue<>(maxBatch * QUEUE_BATCHES);
+        batch = new Request[maxBatch];
+        x = new Matrix(maxBatch, inCols);
+        worker = new Thread(this::run, "micro-batcher");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * 1件の入力を推論する要求を出す. 待たずに戻る.
+     *
+     * @param input 入力(長さは入力の列数)
+     * @return 推論の結果(キューがいっぱいならRejectedExecutionExceptionで完了する)
+     */
+    public CompletableFuture<Prediction> submit(double[] input) {
+        if (input.length != inCols) {
+            throw new IllegalArgumentException("input length " + input.length + " != " + inCols);
+        }
+        Request r = new Request(input);
+        if (closed) {
+            r.result.completeExceptionally(new RejectedExecutionException("closed"));
+        } else if (!queue.offer(r)) {
+            r.result.completeExceptionally(new RejectedExecutionException("queue is full"));
+        } else if (closed && queue.remove(r)) {
+            // 入れている間に閉じられて、推論スレッドがキューを空にし終えていた
+            r.result.completeExceptionally(new RejectedExecutionException("closed"));
+        }
+        return r.result;
+    }
+
+    /**
+     * 1件の入力を推論して、結果が出るまで待つ.
+     *
+     * @param input 入力(長さは入力の列数)
+     * @return 推論の結果
+     */
+    public Prediction predict(double[] input) throws InterruptedException, ExecutionException {
+        return submit(input).get();
+    }
+
+    // 推論スレッド: 要求を集めて順伝播する
+    private void run() {
+        while (!closed) {
+            // closeで割り込まれても、集めた分は順伝播して完了させる
+            int n = collect();
+            if (n > 0) forward(n);
+        }
+        rejectQueued();
+    }
+
+    // キューに残っている要求をRejectedExecutionExceptionで完了する
+    private void rejectQueued() {
+        for (Request r; (r = queue.poll()) != null; ) {
+            r.result.completeExceptionally(new RejectedExecutionException("closed"));
+        }
+    }
+
+    // 最初の要求を待ち、最大待ち時間が過ぎるか最大バッチサイズに達するまで後続の要求を集める.
+    // 割り込まれたら、それまでに集めた数を返す
+    private int collect() {
+        int n = 0;
+        try {
+            Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+            if (first == null) return 0;
+            batch[n++] = first;
+            long deadline = first.start + maxWaitNanos;
+            while (n < maxBatch) {
+                Request r = queue.poll();
+                if (r == null) {
+                    long wait = deadline - System.nanoTime();
+                    if (wait <= 0) break;
+                    r = queue.poll(wait, TimeUnit.NANOSECONDS);
+                    if (r == null) break;
+                }
+                batch[n++] = r;
+            }
+        } catch (InterruptedException e) {
+            // closeで止められた
+        }
+        return n;
+    }
+
+    private void forward(int n) {
+        try {
+            Matrix xn = x.rows(0, n);
+            for (int i = 0; i < n; i++) {
+                System.arraycopy(batch[i].input, 0, xn.data, xn.index(i), inCols);
+            }
+            // 出力層の出力をソフトマックス関数で確率にする
+            Matrix y = plan.forward(weights, xn);
+            softmax(y, y);
+            batches.incrementAndGet();
+            for (int i = 0; i < n; i++) {
+                int p = y.index(i);
+                double[] prob = new double[y.cols];
+                System.arraycopy(y.data, p, prob, 0, y.cols);
+                int label = 0;
+                for (int j = 1; j < y.cols; j++) {
+                    if (prob[j] > prob[label]) label = j;
+                }
+                complete(batch[i], new Prediction(label, prob, n));
+            }
+        } catch (RuntimeException e) {
+            for (int i = 0; i < n; i++) batch[i].result.completeExceptionally(e);
+        } finally {
+            for (int i = 0; i < n; i++) batch[i] = null;
+        }
+    }
+
+    private void complete(Request r, Prediction prediction) {
+        latency.record(System.nanoTime() - r.start);
+        requests.incrementAndGet();
+        r.result.complete(prediction);
+    }
+
+    /**
+     * 要求を受け取ってから結果を返すまでの時間の分布を返す.
+     *
+     * @return ヒストグラム
+     */
+    public LatencyHistogram latency() {
+        return latency;
+    }
+
+    public long requests() {
+        return requests.get();
+    }
+
+    public long batches() {
+        return batches.get();
+    }
+
+    /**
+     * 数えた時間と要求数を消して、数え直す.
+     */
+    public void reset() {
+        latency.reset();
+        requests.set(0);
+        batches.set(0);
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * 推論スレッドを止める. 推論スレッドが集め終えていた要求は順伝播して完了させ、
+     * キューに残っている要求はRejectedExecutionExceptionで完了する.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        worker.interrupt();
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // 推論スレッドが止まった後に入った要求も残さない
+        rejectQueued();
+    }
+
+    @Override
+    public String toString() {
+        double sec = (System.nanoTime() - startNanos) / 1e9;
+        long n = requests(), b = batches();
+        return String.format("requests=%d batches=%d meanBatch=%.1f throughput=%.0f/sec latency %s",
+                n, b, b == 0 ? 0.0 : (double) n / b, n / sec, latency);
+    }
+
+    /**
+     * 推論の要求.
+     */
+    private static class Request {
+        final double[] input;
+        final long start = System.nanoTime();
+        final CompletableFuture<Prediction> result = new CompletableFuture<>();
+
+        Request(double[] input) {
+            this.input = input;
+        }
+    }
+
+    /**
+     * 推論の結果.
+     */
+    public static class Prediction {
+        // 確率が最大のクラス
+        public final int label;
+        // クラスごとの確率
+        public final double[] probabilities;
+        // 一緒に計算したバッチの大きさ
+        public final int batchSize;
+
+        Prediction(int label, double[] probabilities, int batchSize) {
+            this.label = label;
+            this.probabilities = probabilities;
+            this.batchSize = batchSize;
+        }
+
+        @Override
+        public String toString() {
+            return "{\"label\":" + label + ",\"probability\":" + probabilities[label]
+                    + ",\"batch\":" + batchSize + "}";
+        }
+    }
+}
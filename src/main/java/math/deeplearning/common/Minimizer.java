@@ -0,0 +1,459 @@
+package math.deeplearning.common;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.CholeskyDecomposition;
+import org.apache.commons.math3.linear.NonPositiveDefiniteMatrixException;
+import org.apache.commons.math3.linear.RealVector;
+
+/**
+ * 損失関数が最小になる重みを、収束するまで繰り返して求める.
+ * <p>
+ * 1回の繰り返しごとに損失の変化を見て、変化が許容誤差 tol * max(1, |損失|) 以下になるか、
+ * 勾配の要素の絶対値の最大が gradTol 以下になったら止める。検証用データの損失を渡すと、
+ * patience 回続けて良くならなかったときにも止め、いちばん良かったときの重みに戻す(早期終了)。
+ * 検証用データは学習データから分けておき、最後に精度を評価するデータとは別にすること
+ * (同じデータで重みを選んで評価すると、精度を実際より良く見積もってしまう)。
+ * <ul>
+ * <li>{@link #gradientDescent}: 最適化手法({@link Optimizer})で1ステップずつ更新する。</li>
+ * <li>{@link #lbfgs}: 直近の重みと勾配の変化から逆ヘッセ行列を近似する準ニュートン法(L-BFGS)。</li>
+ * <li>{@link #newton}: ヘッセ行列を使うニュートン法(ロジスティック回帰ではIRLSと同じ)。
+ * 重みの数の2乗の行列を分解するので、重みが数百個までのモデル向け。</li>
+ * </ul>
+ * L-BFGSとニュートン法は直線探索(アルミホ条件を満たすまでステップを半分にする)をするので、学習率は要らない。
+ * 許容誤差は math.deeplearning.tol (既定1e-9)、勾配の許容誤差は math.deeplearning.gradTol (既定1e-8)、
+ * 早期終了の回数は math.deeplearning.patience (既定0で早期終了しない)で指定できる。
+ */
+public abstract class Minimizer {
+    private static final double TOL = Double.parseDouble(System.getProperty("math.deeplearning.tol", "1e-9"));
+    private static final double GRAD_TOL = Double.parseDouble(System.getProperty("math.deeplearning.gradTol", "1e-8"));
+    private static final int PATIENCE = Integer.getInteger("math.deeplearning.patience", 0);
+    // L-BFGSで覚えておく重みと勾配の変化の数
+    private static final int LBFGS_MEMORY = 10;
+    // 直線探索のアルミホ条件の係数
+    private static final double ARMIJO = 1e-4;
+    // 直線探索でステップを半分にする回数の上限
+    private static final int MAX_HALVINGS = 50;
+
+    /**
+     * 損失関数.
+     */
+    public interface Objective {
+        /**
+         * 重みでの損失と勾配を計算する.
+         *
+         * @param w    重み
+         * @param grad 勾配を書き込む配列(wと同じ長さ, nullなら勾配は計算しない)
+         * @return 損失
+         */
+        double value(double[] w, double[] grad);
+    }
+
+    /**
+     * ヘッセ行列も計算できる損失関数.
+     */
+    public interface TwiceDifferentiable extends Objective {
+        /**
+         * 重みでのヘッセ行列を計算する.
+         *
+         * @param w 重み
+         * @param h ヘッセ行列を書き込む配列(wの長さ x wの長さ)
+         */
+        void hessian(double[] w, double[][] h);
+    }
+
+    /**
+     * 止めた理由.
+     */
+    public enum Status {
+        // 損失の変化か勾配が許容誤差以下になった
+        CONVERGED,
+        // 検証用データの損失が良くならなくなった
+        EARLY_STOPPED,
+        // 繰り返しの回数が上限に達した
+        MAX_ITERATIONS,
+        // 損失が下がる重みが見つからなかった(直線探索が数値誤差の限界に達したか、損失が発散した)
+        STALLED
+    }
+
+    // 繰り返しの回数の上限
+    private int maxIters = 10000;
+    // 損失の変化の許容誤差
+    private double tol = TOL;
+    // 勾配の許容誤差
+    private double gradTol = GRAD_TOL;
+    // 検証用データの損失が何回続けて良くならなかったら止めるか(0なら止めない)
+    private int patience = PATIENCE;
+
+    Minimizer() {
+    }
+
+    /**
+     * 最適化手法で1ステップずつ更新する勾配降下法.
+     *
+     * @param optimizer 最適化手法(init済みで、パラメータ0の要素数が重みの数のもの)
+     * @return 解き方
+     */
+    public static Minimizer gradientDescent(Optimizer optimizer) {
+        return new GradientDescent(optimizer);
+    }
+
+    /**
+     * 準ニュートン法(L-BFGS).
+     *
+     * @param memory 覚えておく重みと勾配の変化の数(5～20程度)
+     * @return 解き方
+     */
+    public static Minimizer lbfgs(int memory) {
+        return new Lbfgs(memory);
+    }
+
+    public static Minimizer lbfgs() {
+        return lbfgs(LBFGS_MEMORY);
+    }
+
+    /**
+     * ニュートン法. 損失関数は {@link TwiceDifferentiable} であること.
+     *
+     * @return 解き方
+     */
+    public static Minimizer newton() {
+        return new Newton();
+    }
+
+    /**
+     * 名前で解き方を作る.
+     *
+     * @param name      gd(勾配降下法), lbfgs, newton
+     * @param optimizer 勾配降下法で使う最適化手法
+     * @return 解き方
+     */
+    public static Minimizer of(String name, Optimizer optimizer) {
+        switch (name.toLowerCase()) {
+            case "gd":
+                return gradientDescent(optimizer);
+            case "lbfgs":
+                return lbfgs();
+            case "newton":
+                return newton();
+            default:
+                throw new IllegalArgumentException("unknown solver: " + name);
+        }
+    }
+
+    public Minimizer maxIterations(int maxIters) {
+        this.maxIters = maxIters;
+        return this;
+    }
+
+    public Minimizer tolerance(double tol) {
+        this.tol = tol;
+        return this;
+    }
+
+    public Minimizer gradientTolerance(double gradTol) {
+        this.gradTol = gradTol;
+        return this;
+    }
+
+    public Minimizer patience(int patience) {
+        this.patience = patience;
+        return this;
+    }
+
+    /**
+     * 早期終了の回数を返す. 0なら早期終了しない.
+     *
+     * @return patience
+     */
+    public int patience() {
+        return patience;
+    }
+
+    /**
+     * 学習データの損失が収束するまで重みを更新する.
+     *
+     * @param f 学習データの損失関数
+     * @param w 重みの初期値(結果の重みで上書きする)
+     * @return 結果
+     */
+    public Result minimize(Objective f, double[] w) {
+        return minimize(f, null, w);
+    }
+
+    /**
+     * 学習データの損失が収束するか、検証用データの損失が良くならなくなるまで重みを更新する.
+     *
+     * @param f       学習データの損失関数
+     * @param heldOut 検証用データの損失関数(nullなら使わない. patienceが0なら最後の損失を求めるだけ)
+     * @param w       重みの初期値(結果の重みで上書きする)
+     * @return 結果
+     */
+    public Result minimize(Objective f, Objective heldOut, double[] w) {
+        long start = System.nanoTime();
+        int n = w.length;
+        double[] g = new double[n];
+        double loss = f.value(w, g);
+        boolean watch = heldOut != null && patience > 0;
+        double best = watch ? heldOut.value(w, null) : Double.NaN;
+        double[] bestW = watch ? w.clone() : null;
+        int worse = 0;
+        reset(n);
+
+        Status status = Status.MAX_ITERATIONS;
+        int iter = 0;
+        if (maxNorm(g) <= gradTol) status = Status.CONVERGED;
+        while (status == Status.MAX_ITERATIONS && iter < maxIters) {
+            iter++;
+            double next = step(f, w, g, loss);
+            if (!(next < Double.POSITIVE_INFINITY)) {
+                status = Status.STALLED;
+                break;
+            }
+            double change = Math.abs(loss - next);
+            loss = next;
+            if (change <= tol * Math.max(1.0, Math.abs(loss)) || maxNorm(g) <= gradTol) {
+                status = Status.CONVERGED;
+            }
+            if (watch) {
+                double h = heldOut.value(w, null);
+                if (h < best - tol * Math.max(1.0, Math.abs(best))) {
+                    best = h;
+                    System.arraycopy(w, 0, bestW, 0, n);
+                    worse = 0;
+                } else if (++worse >= patience) {
+                    status = Status.EARLY_STOPPED;
+                }
+            }
+        }
+        if (status == Status.EARLY_STOPPED) {
+            System.arraycopy(bestW, 0, w, 0, n);
+            loss = f.value(w, null);
+        }
+        double heldOutLoss = heldOut == null ? Double.NaN : heldOut.value(w, null);
+        return new Result(status, iter, System.nanoTime() - start, loss, heldOutLoss);
+    }
+
+    // 繰り返しを始める前に状態を作る
+    abstract void reset(int n);
+
+    /**
+     * 重みを1回更新する.
+     *
+     * @param f    損失関数
+     * @param w    重み(更新する)
+     * @param g    wでの勾配(更新後の重みでの勾配に書き換える)
+     * @param loss wでの損失
+     * @return 更新後の損失(損失が下がる重みが見つからなければNaN)
+     */
+    abstract double step(Objective f, double[] w, double[] g, double loss);
+
+    private static double maxNorm(double[] a) {
+        double m = 0;
+        for (double v : a) m = Math.max(m, Math.abs(v));
+        return m;
+    }
+
+    private static double dot(double[] a, double[] b) {
+        double s = 0;
+        for (int i = 0; i < a.length; i++) s += a[i] * b[i];
+        return s;
+    }
+
+    /**
+     * 方向dに直線探索する. w + t * d の損失が loss + ARMIJO * t * g・d 以下になるまでtを半分にする.
+     * 見つかったらwとgを書き換えて損失を返し、見つからなければ何も変えずにNaNを返す.
+     */
+    static double lineSearch(Objective f, double[] w, double[] g, double loss, double[] d, double t,
+                             double[] wNew, double[] gNew) {
+        double slope = dot(g, d);
+        if (!(slope < 0)) return Double.NaN;
+        for (int k = 0; k < MAX_HALVINGS; k++, t *= 0.5) {
+            for (int i = 0; i < w.length; i++) wNew[i] = w[i] + t * d[i];
+            double next = f.value(wNew, gNew);
+            if (next <= loss + ARMIJO * t * slope) {
+                System.arraycopy(wNew, 0, w, 0, w.length);
+                System.arraycopy(gNew, 0, g, 0, g.length);
+                return next;
+            }
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * 勾配降下法.
+     */
+    private static class GradientDescent extends Minimizer {
+        private final Optimizer optimizer;
+
+        GradientDescent(Optimizer optimizer) {
+            this.optimizer = optimizer;
+        }
+
+        @Override
+        void reset(int n) {
+        }
+
+        @Override
+        double step(Objective f, double[] w, double[] g, double loss) {
+            optimizer.begin();
+            optimizer.update(0, 0, w.length, w, 0, g, 0, 1.0);
+            return f.value(w, g);
+        }
+    }
+
+    /**
+     * L-BFGS. 直近memory回分の重みの変化sと勾配の変化yから、2ループ再帰で探索方向を求める.
+     */
+    private static class Lbfgs extends Minimizer {
+        private final int memory;
+        private double[][] s, y;
+        private double[] rho, a, d, wNew, gNew;
+        // 覚えるかどうか決める前の変化(受け入れたら履歴の配列と入れ替える)
+        private double[] sNew, yNew;
+        // 覚えている変化の数と、次に書き込む位置
+        private int count, next;
+
+        Lbfgs(int memory) {
+            if (memory <= 0) throw new IllegalArgumentException("memory must be positive: " + memory);
+            this.memory = memory;
+        }
+
+        @Override
+        void reset(int n) {
+            s = new double[memory][n];
+            y = new double[memory][n];
+            rho = new double[memory];
+            a = new double[memory];
+            d = new double[n];
+            wNew = new double[n];
+            gNew = new double[n];
+            sNew = new double[n];
+            yNew = new double[n];
+            count = 0;
+            next = 0;
+        }
+
+        @Override
+        double step(Objective f, double[] w, double[] g, double loss) {
+            int n = w.length;
+            // d = -H・g (新しい変化から古い変化へ、古い変化から新しい変化へ2回たどる)
+            for (int i = 0; i < n; i++) d[i] = -g[i];
+            for (int k = 0, j = next; k < count; k++) {
+                j = (j + memory - 1) % memory;
+                a[j] = rho[j] * dot(s[j], d);
+                for (int i = 0; i < n; i++) d[i] -= a[j] * y[j][i];
+            }
+            double t = 1.0;
+            if (count > 0) {
+                // 初期の逆ヘッセ行列を s・y / y・y 倍の単位行列にする
+                int j = (next + memory - 1) % memory;
+                double gamma = 1.0 / (rho[j] * dot(y[j], y[j]));
+                for (int i = 0; i < n; i++) d[i] *= gamma;
+            } else {
+                // 最初は勾配の大きさで割ったステップから始める
+                t = 1.0 / Math.max(1.0, Math.sqrt(dot(g, g)));
+            }
+            for (int k = 0, j = (next + memory - count) % memory; k < count; k++, j = (j + 1) % memory) {
+                double b = rho[j] * dot(y[j], d);
+                for (int i = 0; i < n; i++) d[i] += (a[j] - b) * s[j][i];
+            }
+
+            // (履歴のいちばん古い変化はまだ使うかもしれないので、別の配列に計算する)
+            double[] sj = sNew, yj = yNew;
+            for (int i = 0; i < n; i++) {
+                sj[i] = -w[i];
+                yj[i] = -g[i];
+            }
+            double result = lineSearch(f, w, g, loss, d, t, wNew, gNew);
+            if (Double.isNaN(result)) return result;
+            for (int i = 0; i < n; i++) {
+                sj[i] += w[i];
+                yj[i] += g[i];
+            }
+            // 曲率が正のときだけ覚える(正でなければ近似が正定値でなくなる)
+            double sy = dot(sj, yj);
+            if (sy > 1e-12 * Math.sqrt(dot(sj, sj) * dot(yj, yj))) {
+                sNew = s[next];
+                yNew = y[next];
+                s[next] = sj;
+                y[next] = yj;
+                rho[next] = 1.0 / sy;
+                next = (next + 1) % memory;
+                count = Math.min(count + 1, memory);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * ニュートン法. ヘッセ行列Hで H・d = -g を解いて探索方向にする.
+     * Hが正定値でない(ソフトマックスのように重みが1つに決まらない)ときは、対角に小さな値を足して解く.
+     */
+    private static class Newton extends Minimizer {
+        private double[][] h;
+        private double[] wNew, gNew;
+
+        @Override
+        void reset(int n) {
+            h = new double[n][n];
+            wNew = new double[n];
+            gNew = new double[n];
+        }
+
+        @Override
+        double step(Objective f, double[] w, double[] g, double loss) {
+            if (!(f instanceof TwiceDifferentiable)) {
+                throw new IllegalArgumentException("newton needs a TwiceDifferentiable objective");
+            }
+            int n = w.length;
+            ((TwiceDifferentiable) f).hessian(w, h);
+            double trace = 0;
+            for (int i = 0; i < n; i++) trace += h[i][i];
+            RealVector rhs = new ArrayRealVector(g.length);
+            for (int i = 0; i < n; i++) rhs.setEntry(i, -g[i]);
+            // 対角の平均に対してごく小さい値から始め、分解できるまで10倍ずつ大きくする
+            double scale = Math.max(trace / n, Double.MIN_NORMAL);
+            for (double ridge = 1e-10 * scale; ridge <= 1e6 * scale; ridge *= 10) {
+                Array2DRowRealMatrix a = new Array2DRowRealMatrix(h);
+                for (int i = 0; i < n; i++) a.addToEntry(i, i, ridge);
+                try {
+                    double[] d = new CholeskyDecomposition(a).getSolver().solve(rhs).toArray();
+                    return lineSearch(f, w, g, loss, d, 1.0, wNew, gNew);
+                } catch (NonPositiveDefiniteMatrixException e) {
+                    // 対角に足す値を大きくしてやり直す
+                }
+            }
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * 最小化の結果.
+     */
+    public static class Result {
+        public final Status status;
+        // 繰り返した回数
+        public final int iterations;
+        // かかった時間(ナノ秒)
+        public final long nanos;
+        // 学習データの損失
+        public final double loss;
+        // 検証用データの損失(検証用データを渡さなければNaN)
+        public final double heldOutLoss;
+
+        Result(Status status, int iterations, long nanos, double loss, double heldOutLoss) {
+            this.status = status;
+            this.iterations = iterations;
+            this.nanos = nanos;
+            this.loss = loss;
+            this.heldOutLoss = heldOutLoss;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s iterations=%d time=%.3fms loss=%.6g%s", status, iterations, nanos / 1e6, loss,
+                    Double.isNaN(heldOutLoss) ? "" : String.format(" heldOutLoss=%.6g", heldOutLoss));
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package math.deeplearning.common;
+
+import java.io.*;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * MNISTのIDXファイル(gzip圧縮)を展開したキャッシュファイル.
+ * <p>
+ * 初回だけgzipを展開して同じディレクトリに無圧縮のキャッシュファイルを書き出し、
+ * 以降はキャッシュファイルを {@link FileChannel#map} で読み込む。
+ * ヘッダをページサイズにそろえているので、データはページ境界から行優先で並ぶ。
+ * (Java 8でも動くように、Bufferのメソッドは Buffer にキャストして呼び出す)
+ */
+public class MnistCache {
+    // キャッシュファイルの識別子
+    private static final int MAGIC = 0x4d4e4331;
+    // ヘッダのサイズ(データの先頭をページ境界にそろえる)
+    static final int HEADER_SIZE = 4096;
+    // キャッシュファイルの拡張子
+    private static final String SUFFIX = ".cache";
+
+    // データ部分(ヘッダを除く)
+    private final ByteBuffer data;
+    // データ数(画像数またはラベル数)
+    public final int count;
+    // 1データあたりのバイト数(画像はピクセル数、ラベルは1)
+    public final int dim;
+
+    private MnistCache(ByteBuffer data, int count, int dim) {
+        this.data = data;
+        this.count = count;
+        this.dim = dim;
+    }
+
+    /**
+     * キャッシュファイルを開く. なければIDXファイルを展開して作る.
+     *
+     * @param dirName  ディレクトリ
+     * @param fileName IDXファイル名(gzip圧縮)
+     * @return キャッシュ
+     */
+    public static MnistCache open(String dirName, String fileName) throws IOException {
+        try (FileChannel ch = FileChannel.open(prepare(dirName, fileName), StandardOpenOption.READ)) {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            buf.order(ByteOrder.BIG_ENDIAN);
+            int count = buf.getInt(8);
+            int dim = buf.getInt(12);
+            ((Buffer) buf).position(HEADER_SIZE);
+            return new MnistCache(buf.slice(), count, dim);
+        }
+    }
+
+    /**
+     * キャッシュファイルがなければIDXファイルを展開して作り、そのパスを返す. ファイルは開かない.
+     *
+     * @param dirName  ディレクトリ
+     * @param fileName IDXファイル名(gzip圧縮)
+     * @return キャッシュファイルのパス
+     */
+    public static Path prepare(String dirName, String fileName) throws IOException {
+        Path idx = Paths.get(dirName, fileName);
+        Path cache = Paths.get(dirName, fileName.replaceAll("\\.gz$", "") + SUFFIX);
+        if (!isValid(cache)) convert(idx, cache);
+        return cache;
+    }
+
+    /**
+     * 開いたキャッシュファイルのヘッダを読む.
+     *
+     * @param ch キャッシュファイル
+     * @return {データ数, 1データあたりのバイト数}
+     */
+    static int[] readHeader(FileChannel ch) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.BIG_ENDIAN);
+        while (header.hasRemaining()) {
+            if (ch.read(header, header.position()) < 0) throw new EOFException("truncated header");
+        }
+        if (header.getInt(0) != MAGIC) throw new IOException("not a cache file");
+        return new int[]{header.getInt(8), header.getInt(12)};
+    }
+
+    // キャッシュファイルのヘッダとサイズが正しいかどうか
+    private static boolean isValid(Path cache) throws IOException {
+        if (!Files.exists(cache)) return false;
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(cache)))) {
+            if (dis.readInt() != MAGIC) return false;
+            dis.readInt();
+            long count = dis.readInt();
+            long dim = dis.readInt();
+            return Files.size(cache) == HEADER_SIZE + count * dim;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    // IDXファイルを展開してキャッシュファイルを書き出す
+    private static void convert(Path idx, Path cache) throws IOException {
+        System.out.println("Converting " + idx + " to " + cache + " ...");
+        Path tmp = Paths.get(cache + ".tmp");
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(Files.newInputStream(idx)), 1 << 16));
+             FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            // IDX形式: マジックナンバーの下位1バイトが次元数、続いて各次元のサイズ
+            int idxMagic = dis.readInt();
+            int dims = idxMagic & 0xff;
+            int count = dis.readInt();
+            int dim = 1;
+            for (int i = 1; i < dims; i++) dim *= dis.readInt();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+            header.putInt(MAGIC).putInt(idxMagic).putInt(count).putInt(dim);
+            ((Buffer) header).clear();
+            while (header.hasRemaining()) ch.write(header);
+
+            byte[] chunk = new byte[1 << 20];
+            long remain = (long) count * dim;
+            while (remain > 0) {
+                int len = (int) Math.min(chunk.length, remain);
+                dis.readFully(chunk, 0, len);
+                ByteBuffer bb = ByteBuffer.wrap(chunk, 0, len);
+                while (bb.hasRemaining()) ch.write(bb);
+                remain -= len;
+            }
+        }
+        Files.move(tmp, cache, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * データ部分全体をコピーせずに返す.
+     *
+     * @return 読み込み専用のバッファ(長さcount * dim)
+     */
+    public ByteBuffer buffer() {
+        return data.asReadOnlyBuffer();
+    }
+
+    /**
+     * i番目のデータをコピーせずに返す.
+     *
+     * @param i データ番号
+     * @return 読み込み専用のバッファ(長さdim)
+     */
+    public ByteBuffer row(int i) {
+        ByteBuffer buf = data.asReadOnlyBuffer();
+        ((Buffer) buf).position(i * dim).limit(i * dim + dim);
+        return buf.slice();
+    }
+
+    /**
+     * i番目のデータのj番目の値を返す.
+     *
+     * @param i データ番号
+     * @param j データ内の位置
+     * @return 値(0～255)
+     */
+    public int get(int i, int j) {
+        return data.get(i * dim + j) & 0xff;
+    }
+
+    /**
+     * 全データを行列に読み込む.
+     *
+     * @param scale 値に掛ける係数(画像を0～1にするなら1/255)
+     * @return 行列(count x dim)
+     */
+    public Matrix toMatrix(double scale) {
+        Matrix rM = new Matrix(count, dim);
+        ByteBuffer buf = data.duplicate();
+        byte[] row = new byte[dim];
+        for (int i = 0; i < count; i++) {
+            buf.get(row);
+            int r = rM.index(i);
+            for (int j = 0; j < dim; j++) {
+                rM.data[r + j] = (row[j] & 0xff) * scale;
+            }
+        }
+        return rM;
+    }
+}
@@ -0,0 +1,400 @@
+package math.deeplearning.common;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static math.deeplearning.common.Util.*;
+
+/**
+ * 層を積み重ねて、出力層にソフトマックス関数と交差エントロピー誤差を使う分類用のネットワーク.
+ * <p>
+ * 重みはネットワークが持ち、学習や評価に使う行列は {@link #plan(int)} で作る {@link Plan} が持つ。
+ * 同じネットワークから行数の違うPlanをいくつ作ってもよい(重みは共有する)。
+ * <pre>
+ * Network net = new Network.Builder(784).dense(128).reLU().dense(10).build();
+ * Network.Plan plan = net.plan(512);
+ * plan.forward(x);
+ * plan.backward(t, null);
+ * plan.update(alpha / 512);
+ * </pre>
+ */
+public class Network {
+    // 層
+    private final Layer[] layers;
+    // 各層の入力の列数(最後は出力層の列数)
+    private final int[] cols;
+    // 各層の重み行列(重みを持たない層はnull)
+    private final Matrix[] layerWeights;
+    // 重み行列(重みを持つ層だけを入力側から順に並べたもの)
+    private final Matrix[] weights;
+
+    private Network(List<Layer> layerList, int inCols) {
+        layers = layerList.toArray(new Layer[0]);
+        cols = new int[layers.length + 1];
+        cols[0] = inCols;
+        layerWeights = new Matrix[layers.length];
+        List<Matrix> weightList = new ArrayList<>();
+        for (int k = 0; k < layers.length; k++) {
+            cols[k + 1] = layers[k].outCols(cols[k]);
+            layerWeights[k] = layers[k].initWeight(cols[k]);
+            if (layerWeights[k] != null) weightList.add(layerWeights[k]);
+        }
+        weights = weightList.toArray(new Matrix[0]);
+    }
+
+    /**
+     * 重み行列を入力側から順に返す. 配列の要素は学習中の重みそのもの.
+     *
+     * @return 重み行列
+     */
+    public Matrix[] weights() {
+        return weights.clone();
+    }
+
+    public int inCols() {
+        return cols[0];
+    }
+
+    public int outCols() {
+        return cols[layers.length];
+    }
+
+    /**
+     * 一度にrows行を計算する実行計画を作り、必要な行列を確保する.
+     *
+     * @param rows 行数(バッチサイズ)
+     * @return 実行計画
+     */
+    public Plan plan(int rows) {
+        return new Plan(rows);
+    }
+
+    /**
+     * ネットワークを組み立てる.
+     */
+    public static class Builder {
+        private final int inCols;
+        private final List<Layer> layers = new ArrayList<>();
+
+        /**
+         * @param inCols 入力の列数
+         */
+        public Builder(int inCols) {
+            this.inCols = inCols;
+        }
+
+        public Builder add(Layer layer) {
+            layers.add(layer);
+            return this;
+        }
+
+        public Builder dense(int outCols) {
+            return add(Layer.dense(outCols));
+        }
+
+        public Builder reLU() {
+            return add(Layer.reLU());
+        }
+
+        /**
+         * 重みを初期化してネットワークを作る. 重みは入力側の層から順に乱数で初期化する.
+         *
+         * @return ネットワーク
+         */
+        public Network build() {
+            if (layers.isEmpty()) throw new IllegalStateException("no layers");
+            return new Network(layers, inCols);
+        }
+    }
+
+    /**
+     * 決まった行数で順伝播と逆伝播を計算するための実行計画.
+     * <p>
+     * 作るときに計算の順序(各層の順伝播、出力層の誤差、各層の逆伝播)を決めて、
+     * 各層の出力と誤差の行列がどのステップからどのステップまで使われるか(生存区間)を調べる。
+     * 生存区間が重ならない行列は同じ配列を使い回し、要素ごとの計算の層は入力と同じ配列に出力を書き込む。
+     * そのため、層を増やしても確保する配列は生存区間が重なる分だけで済み、
+     * 学習ステップごとのヒープ割り当ては発生しない。
+     */
+    public class Plan {
+        // 行数
+        public final int rows;
+        // 各層の入力(acts[0]はforwardで受け取った行列)と出力層の出力
+        private final Matrix[] acts;
+        // 各層の出力側の誤差(grads[k]は層kの入力側の誤差, grads[0]は計算しない)
+        private final Matrix[] grads;
+        // 各層の重みの勾配
+        private final Matrix[] layerGrads;
+        // 重みの勾配(weights()と同じ順)
+        private final Matrix[] weightGrads;
+        // backwardに渡す重み行列
+        private final Matrix[] backwardWeights;
+        // 使い回す配列
+        private final double[][] buffers;
+        // 疎行列のまま先頭の層に渡した入力(直前のforwardが密行列ならnull)
+        private SparseMatrix sparseInput;
+        // 密度が高い疎行列の入力を変換する行列(最初に必要になったときに作る)
+        private Matrix denseInput;
+
+        private Plan(int rows) {
+            this.rows = rows;
+            int L = layers.length;
+            acts = new Matrix[L + 1];
+            grads = new Matrix[L + 1];
+            layerGrads = new Matrix[L];
+            weightGrads = new Matrix[weights.length];
+            backwardWeights = new Matrix[L];
+            for (int k = 0, p = 0; k < L; k++) {
+                if (layerWeights[k] == null) continue;
+                layerGrads[k] = new Matrix(layerWeights[k].rows, layerWeights[k].cols);
+                weightGrads[p++] = layerGrads[k];
+                backwardWeights[k] = layers[k].backwardWeight(layerWeights[k]);
+            }
+
+            // 計算の順序: 層kの順伝播がステップk, 出力層の誤差がステップL, 層kの逆伝播がステップ2L-k
+            Value[] act = new Value[L + 1];
+            Value[] grad = new Value[L + 1];
+            for (int k = 1; k <= L; k++) {
+                act[k] = new Value(cols[k], k - 1);
+                // 次の層の順伝播(出力層は誤差の計算)で使う
+                act[k].use(k);
+                // 次の層の逆伝播で入力として使う
+                if (k < L && layers[k].needsInput()) act[k].use(2 * L - k);
+                // この値を出力した層の逆伝播で出力として使う
+                if (layers[k - 1].needsOutput()) act[k].use(2 * L - k + 1);
+            }
+            for (int k = 1; k <= L; k++) {
+                // 層kの逆伝播(出力層は誤差の計算)で作り、層k-1の逆伝播で使う
+                grad[k] = new Value(cols[k], k == L ? L : 2 * L - k);
+                grad[k].use(2 * L - k + 1);
+            }
+            // 要素ごとの計算は、入力が以後使われなければ同じ配列に書き込む
+            for (int k = 1; k < L; k++) {
+                if (layers[k].inPlace() && act[k].end <= k) act[k + 1].join(act[k]);
+            }
+            if (act[L].end <= L) grad[L].join(act[L]);
+            for (int k = L - 1; k >= 1; k--) {
+                if (layers[k].inPlace()) grad[k].join(grad[k + 1]);
+            }
+
+            // 生存区間の始まりが早い順に、空いている配列のうち大きさが足りる最小のものを割り当てる
+            List<Value> groups = new ArrayList<>();
+            for (int k = 1; k <= L; k++) {
+                if (act[k].root() == act[k] && !groups.contains(act[k])) groups.add(act[k]);
+                if (grad[k].root() == grad[k] && !groups.contains(grad[k])) groups.add(grad[k]);
+            }
+            groups.sort((a, b) -> Integer.compare(a.start, b.start));
+            List<int[]> slots = new ArrayList<>(); // {大きさ, 使い終わるステップ}
+            for (Value v : groups) {
+                int size = rows * v.maxCols;
+                int best = -1;
+                for (int s = 0; s < slots.size(); s++) {
+                    int[] slot = slots.get(s);
+                    if (slot[1] >= v.start) continue;
+                    if (best < 0) {
+                        best = s;
+                        continue;
+                    }
+                    int[] b = slots.get(best);
+                    boolean fits = slot[0] >= size, bestFits = b[0] >= size;
+                    if (fits && (!bestFits || slot[0] < b[0]) || !fits && !bestFits && slot[0] > b[0]) best = s;
+                }
+                if (best < 0) {
+                    slots.add(new int[]{size, v.end});
+                    best = slots.size() - 1;
+                } else {
+                    int[] slot = slots.get(best);
+                    slot[0] = Math.max(slot[0], size);
+                    slot[1] = v.end;
+                }
+                v.slot = best;
+            }
+            buffers = new double[slots.size()][];
+            for (int s = 0; s < slots.size(); s++) buffers[s] = new double[slots.get(s)[0]];
+            for (int k = 1; k <= L; k++) {
+                acts[k] = new Matrix(buffers[act[k].root().slot], 0, cols[k], rows, cols[k]);
+                grads[k] = new Matrix(buffers[grad[k].root().slot], 0, cols[k], rows, cols[k]);
+            }
+        }
+
+        /**
+         * 順伝播を計算する.
+         *
+         * @param x 入力(rows x 入力の列数). backwardが終わるまで変更しないこと
+         * @return 出力層の出力(ソフトマックス関数を通す前の値). 次の計算で上書きされる
+         */
+        public Matrix forward(Matrix x) {
+            checkInput(x);
+            acts[0] = x;
+            sparseInput = null;
+            for (int k = 0; k < layers.length; k++) {
+                layers[k].forward(layerWeights[k], acts[k], acts[k + 1]);
+            }
+            return acts[layers.length];
+        }
+
+        /**
+         * 疎行列の入力で順伝播を計算する.
+         * <p>
+         * 0でない要素の割合がしきい値以下({@link SparseMatrix#isSparse})で先頭の層が疎行列を受け取れるなら、
+         * 先頭の層の積 [1 X]・W とbackwardの [1 X]^T・dY を0でない要素についてだけ計算する。
+         * そうでなければ密行列に変換して {@link #forward(Matrix)} と同じように計算する。
+         *
+         * @param x 入力(rows x 入力の列数). backwardが終わるまで変更しないこと
+         * @return 出力層の出力(ソフトマックス関数を通す前の値). 次の計算で上書きされる
+         */
+        public Matrix forward(SparseMatrix x) {
+            if (x.rows() != rows || x.cols != cols[0]) {
+                throw new IllegalArgumentException("input " + x.rows() + "x" + x.cols
+                        + " != " + rows + "x" + cols[0]);
+            }
+            if (!x.isSparse() || !layers[0].acceptsSparse()) {
+                if (denseInput == null) denseInput = new Matrix(rows, cols[0]);
+                return forward(x.toDense(denseInput));
+            }
+            sparseInput = x;
+            acts[0] = null;
+            layers[0].forward(layerWeights[0], x, acts[1]);
+            for (int k = 1; k < layers.length; k++) {
+                layers[k].forward(layerWeights[k], acts[k], acts[k + 1]);
+            }
+            return acts[layers.length];
+        }
+
+        /**
+         * 指定した重みで順伝播を計算する. 評価用データを重みのスナップショットで評価するときに使う.
+         * 行数がrowsより少ない入力も受け取る.
+         *
+         * @param ws 重み行列(weights()と同じ順)
+         * @param x  入力(rows行以下)
+         * @return 出力層の出力(x.rows行, ソフトマックス関数を通す前の値)
+         */
+        public Matrix forward(Matrix[] ws, Matrix x) {
+            if (x.rows > rows || x.cols != cols[0]) {
+                throw new IllegalArgumentException("input " + x.rows + "x" + x.cols
+                        + " does not fit " + rows + "x" + cols[0]);
+            }
+            Matrix in = x;
+            for (int k = 0, p = 0; k < layers.length; k++) {
+                Matrix out = x.rows == rows ? acts[k + 1] : acts[k + 1].rows(0, x.rows);
+                layers[k].forward(layerWeights[k] == null ? null : ws[p++], in, out);
+                in = out;
+            }
+            return in;
+        }
+
+        /**
+         * 直前のforwardの出力と正解ラベルから誤差を逆伝播し、重みの勾配を計算する. 重みは更新しない.
+         *
+         * @param t     正解ラベル(クラス番号)
+         * @param stats stats[0]に交差エントロピー誤差の合計、stats[1]に正解数を足し込む(nullなら足し込まない)
+         */
+        public void backward(int[] t, double[] stats) {
+            int L = layers.length;
+            softmaxCrossEntropy(acts[L], t, grads[L], stats);
+            for (int k = L - 1; k >= 0; k--) {
+                if (k == 0 && sparseInput != null) {
+                    layers[0].backward(sparseInput, grads[1], layerGrads[0]);
+                    break;
+                }
+                layers[k].backward(backwardWeights[k],
+                        layers[k].needsInput() ? acts[k] : null,
+                        layers[k].needsOutput() ? acts[k + 1] : null,
+                        grads[k + 1], k == 0 ? null : grads[k], layerGrads[k]);
+            }
+        }
+
+        /**
+         * 重みを W = W - rate * gW で更新する. 勾配は上書きされる.
+         *
+         * @param rate 勾配に掛ける係数(学習率 / バッチサイズ)
+         */
+        public void update(double rate) {
+            for (int p = 0; p < weights.length; p++) {
+                sub(weights[p], mult(weightGrads[p], rate, weightGrads[p]), weights[p]);
+            }
+        }
+
+        /**
+         * 重みを最適化手法で更新する. 勾配は上書きしない.
+         *
+         * @param optimizer 最適化手法(weights()の形で初期化したもの)
+         * @param scale     勾配に掛ける係数(1 / バッチサイズ)
+         */
+        public void update(Optimizer optimizer, double scale) {
+            optimizer.begin();
+            for (int p = 0; p < weights.length; p++) {
+                optimizer.update(p, weights[p], weightGrads[p], scale);
+            }
+        }
+
+        /**
+         * 重みの勾配を返す. 配列の要素はbackwardで書き込まれる行列そのもの.
+         *
+         * @return 重みの勾配(weights()と同じ順)
+         */
+        public Matrix[] grads() {
+            return weightGrads.clone();
+        }
+
+        /**
+         * 使い回す配列の数を返す.
+         *
+         * @return 配列の数
+         */
+        public int buffers() {
+            return buffers.length;
+        }
+
+        private void checkInput(Matrix x) {
+            if (x.rows != rows || x.cols != cols[0]) {
+                throw new IllegalArgumentException("input " + x.rows + "x" + x.cols
+                        + " != " + rows + "x" + cols[0]);
+            }
+        }
+
+        @Override
+        public String toString() {
+            long size = 0;
+            for (double[] b : buffers) size += b.length;
+            return "Plan[rows=" + rows + ", layers=" + layers.length + ", buffers=" + buffers.length
+                    + ", doubles=" + size + "]";
+        }
+    }
+
+    // 実行計画を作るときに使う、層の出力または誤差の行列
+    private static class Value {
+        // 同じ配列を使う値のうち代表のもの
+        private Value parent = this;
+        private int start;
+        private int end;
+        private int maxCols;
+        private int slot = -1;
+
+        Value(int cols, int start) {
+            this.maxCols = cols;
+            this.start = start;
+            this.end = start;
+        }
+
+        void use(int step) {
+            end = Math.max(end, step);
+        }
+
+        Value root() {
+            Value v = this;
+            while (v.parent != v) v = v.parent;
+            return v;
+        }
+
+        // otherと同じ配列を使い、生存区間をまとめる
+        void join(Value other) {
+            Value a = root(), b = other.root();
+            if (a == b) return;
+            b.parent = a;
+            a.start = Math.min(a.start, b.start);
+            a.end = Math.max(a.end, b.end);
+            a.maxCols = Math.max(a.maxCols, b.maxCols);
+        }
+    }
+}
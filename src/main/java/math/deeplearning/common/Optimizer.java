@@ -0,0 +1,502 @@
+package math.deeplearning.common;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.RealVector;
+
+/**
+ * 勾配から重みを更新する方法(最適化手法).
+ * <p>
+ * 重み1つごとの状態(モーメンタムの速度、勾配の2乗の移動平均など)は、パラメータ(重み行列)ごとに
+ * 要素数分のdouble配列で持つ。更新は重みと勾配と状態を1回走査するだけで、
+ * 勾配に掛ける係数(1 / データ数など)もその中で掛けるので、途中の行列は作らない。
+ * <pre>
+ * Optimizer opt = Optimizer.adam(0.01).init(W.rows * W.cols);
+ * opt.begin();
+ * opt.update(0, W, gW, 1.0 / M);
+ * </pre>
+ * 手法はシステムプロパティ math.deeplearning.optimizer (sgd, momentum, nesterov, rmsprop, adam, 既定sgd)で
+ * 選べる({@link #of})。
+ * <p>
+ * 状態とステップ数は {@link #state} で行列として取り出せるので、重みと一緒にチェックポイントに書き込み、
+ * 学習を再開するときに読み込んで続きから更新できる({@link Checkpoint.Writer#Writer(java.nio.file.Path, Matrix[], Optimizer)})。
+ */
+public abstract class Optimizer {
+    // 学習率
+    public final double alpha;
+    // 更新したステップ数
+    long steps;
+    // パラメータごとの要素数
+    private int[] sizes = new int[0];
+    // ステップ数をチェックポイントに書き込むための1x1の行列(beginで更新する)
+    private final Matrix stepsM = new Matrix(1, 1);
+    // 状態を参照する行列(stateで作る)
+    private Matrix[] state;
+
+    Optimizer(double alpha) {
+        this.alpha = alpha;
+    }
+
+    /**
+     * 確率的勾配降下法. W = W - alpha * g.
+     *
+     * @param alpha 学習率
+     * @return 最適化手法
+     */
+    public static Optimizer sgd(double alpha) {
+        return new Sgd(alpha);
+    }
+
+    /**
+     * モーメンタム. v = mu * v + alpha * g, W = W - v.
+     *
+     * @param alpha 学習率
+     * @param mu    速度の減衰率(0.9など)
+     * @return 最適化手法
+     */
+    public static Optimizer momentum(double alpha, double mu) {
+        return new Momentum(alpha, mu, false);
+    }
+
+    /**
+     * ネステロフの加速勾配法. v = mu * v + alpha * g, W = W - (mu * v + alpha * g).
+     *
+     * @param alpha 学習率
+     * @param mu    速度の減衰率(0.9など)
+     * @return 最適化手法
+     */
+    public static Optimizer nesterov(double alpha, double mu) {
+        return new Momentum(alpha, mu, true);
+    }
+
+    /**
+     * RMSProp. r = rho * r + (1 - rho) * g^2, W = W - alpha * g / (sqrt(r) + eps).
+     *
+     * @param alpha 学習率
+     * @param rho   移動平均の減衰率(0.9など)
+     * @param eps   0で割らないための値
+     * @return 最適化手法
+     */
+    public static Optimizer rmsProp(double alpha, double rho, double eps) {
+        return new RmsProp(alpha, rho, eps);
+    }
+
+    /**
+     * Adam. 勾配とその2乗の移動平均を、ステップ数による偏りを補正して使う.
+     *
+     * @param alpha 学習率
+     * @param beta1 勾配の移動平均の減衰率(0.9など)
+     * @param beta2 勾配の2乗の移動平均の減衰率(0.999など)
+     * @param eps   0で割らないための値
+     * @return 最適化手法
+     */
+    public static Optimizer adam(double alpha, double beta1, double beta2, double eps) {
+        return new Adam(alpha, beta1, beta2, eps);
+    }
+
+    public static Optimizer adam(double alpha) {
+        return adam(alpha, 0.9, 0.999, 1e-8);
+    }
+
+    /**
+     * 名前で最適化手法を作る. 減衰率などは一般的な値にする.
+     *
+     * @param name  sgd, momentum, nesterov, rmsprop, adam
+     * @param alpha 学習率
+     * @return 最適化手法
+     */
+    public static Optimizer of(String name, double alpha) {
+        switch (name.toLowerCase()) {
+            case "sgd":
+                return sgd(alpha);
+            case "momentum":
+                return momentum(alpha, 0.9);
+            case "nesterov":
+                return nesterov(alpha, 0.9);
+            case "rmsprop":
+                return rmsProp(alpha, 0.9, 1e-8);
+            case "adam":
+                return adam(alpha);
+            default:
+                throw new IllegalArgumentException("unknown optimizer: " + name);
+        }
+    }
+
+    /**
+     * システムプロパティ math.deeplearning.optimizer で指定した最適化手法を作る.
+     *
+     * @param alpha 学習率
+     * @return 最適化手法
+     */
+    public static Optimizer of(double alpha) {
+        return of(System.getProperty("math.deeplearning.optimizer", "sgd"), alpha);
+    }
+
+    /**
+     * パラメータごとの要素数を指定して状態を確保する. 状態はすべて0で始める.
+     *
+     * @param sizes パラメータごとの要素数
+     * @return this
+     */
+    public Optimizer init(int... sizes) {
+        this.sizes = sizes.clone();
+        this.steps = 0;
+        stepsM.data[0] = 0;
+        state = null;
+        allocate(this.sizes);
+        return this;
+    }
+
+    /**
+     * 重み行列の形に合わせて状態を確保する.
+     *
+     * @param weights 重み行列
+     * @return this
+     */
+    public Optimizer init(Matrix[] weights) {
+        int[] s = new int[weights.length];
+        for (int p = 0; p < s.length; p++) s[p] = weights[p].rows * weights[p].cols;
+        return init(s);
+    }
+
+    // パラメータごとの状態を確保する
+    abstract void allocate(int[] sizes);
+
+    // 状態の配列(状態がなければ空)
+    abstract double[][] arrays();
+
+    // 状態の種類(チェックポイントの状態が同じ手法のものか確かめるのに使う, 状態がなければ0)
+    abstract int stateKind();
+
+    /**
+     * 1ステップ分の更新を始める. ステップごとに、updateを呼ぶ前に1回だけ呼ぶ.
+     */
+    public void begin() {
+        steps++;
+        stepsM.data[0] = steps;
+    }
+
+    public long steps() {
+        return steps;
+    }
+
+    /**
+     * 状態を配列をコピーせずに参照する行列(1行)として返す. 最後の1x1の行列はステップ数.
+     * 状態を持たない手法(確率的勾配降下法)なら空の配列を返す.
+     * 行列に書き込んだ値を使うときは、書き込んだ後に {@link #restoreSteps} を呼ぶ.
+     *
+     * @return 状態の行列
+     */
+    public Matrix[] state() {
+        if (state == null) {
+            double[][] a = arrays();
+            state = new Matrix[a.length == 0 ? 0 : a.length + 1];
+            for (int k = 0; k < a.length; k++) state[k] = new Matrix(a[k], 0, a[k].length, 1, a[k].length);
+            if (a.length > 0) state[a.length] = stepsM;
+        }
+        return state;
+    }
+
+    /**
+     * {@link #state} の行列に書き込んだステップ数を戻す(Adamの偏りの補正もその続きから計算する).
+     */
+    public void restoreSteps() {
+        steps = (long) stepsM.data[0];
+    }
+
+    /**
+     * p番目のパラメータの状態の[start, end)の要素に対応する重みを更新する.
+     * 要素の範囲が重ならなければ、複数のスレッドから同時に呼び出してよい.
+     *
+     * @param p     パラメータの番号
+     * @param start 状態の先頭の要素
+     * @param end   状態の最後の要素の次
+     * @param w     重み(w[wo + i - start]が状態のi番目の要素に対応する)
+     * @param wo    重みの先頭の位置
+     * @param g     勾配(wと同じ並び)
+     * @param go    勾配の先頭の位置
+     * @param scale 勾配に掛ける係数(1 / データ数など)
+     */
+    public abstract void update(int p, int start, int end, double[] w, int wo, double[] g, int go, double scale);
+
+    /**
+     * 重み行列を更新する.
+     *
+     * @param p     パラメータの番号
+     * @param wM    重み行列
+     * @param gM    勾配(wMと同じ形)
+     * @param scale 勾配に掛ける係数
+     */
+    public void update(int p, Matrix wM, Matrix gM, double scale) {
+        Matrix.checkSameShape(wM, gM);
+        checkSize(p, wM.rows * wM.cols);
+        if (wM.isContiguous() && gM.isContiguous()) {
+            update(p, 0, wM.rows * wM.cols, wM.data, wM.offset, gM.data, gM.offset, scale);
+        } else {
+            for (int i = 0; i < wM.rows; i++) {
+                update(p, i * wM.cols, (i + 1) * wM.cols, wM.data, wM.index(i), gM.data, gM.index(i), scale);
+            }
+        }
+    }
+
+    /**
+     * 重みベクトルをその場で更新する.
+     *
+     * @param p     パラメータの番号
+     * @param wV    重みベクトル(ArrayRealVector)
+     * @param gV    勾配
+     * @param scale 勾配に掛ける係数
+     */
+    public void update(int p, RealVector wV, RealVector gV, double scale) {
+        if (!(wV instanceof ArrayRealVector)) throw new IllegalArgumentException("weights must be ArrayRealVector");
+        checkSize(p, wV.getDimension());
+        double[] g = gV instanceof ArrayRealVector ? ((ArrayRealVector) gV).getDataRef() : gV.toArray();
+        if (g.length != wV.getDimension()) throw new IllegalArgumentException("gradient size mismatch");
+        update(p, 0, g.length, ((ArrayRealVector) wV).getDataRef(), 0, g, 0, scale);
+    }
+
+    /**
+     * 重み行列をその場で更新する.
+     *
+     * @param p     パラメータの番号
+     * @param wM    重み行列(Array2DRowRealMatrix)
+     * @param gM    勾配(wMと同じ形)
+     * @param scale 勾配に掛ける係数
+     */
+    public void update(int p, RealMatrix wM, RealMatrix gM, double scale) {
+        if (!(wM instanceof Array2DRowRealMatrix)) throw new IllegalArgumentException("weights must be Array2DRowRealMatrix");
+        int rows = wM.getRowDimension(), cols = wM.getColumnDimension();
+        if (gM.getRowDimension() != rows || gM.getColumnDimension() != cols) {
+            throw new IllegalArgumentException("gradient shape mismatch");
+        }
+        checkSize(p, rows * cols);
+        double[][] w = ((Array2DRowRealMatrix) wM).getDataRef();
+        double[][] g = gM instanceof Array2DRowRealMatrix ? ((Array2DRowRealMatrix) gM).getDataRef() : gM.getData();
+        for (int i = 0; i < rows; i++) {
+            update(p, i * cols, (i + 1) * cols, w[i], 0, g[i], 0, scale);
+        }
+    }
+
+    private void checkSize(int p, int size) {
+        if (p < 0 || p >= sizes.length || sizes[p] != size) {
+            throw new IllegalArgumentException("parameter " + p + " of size " + size + " was not initialized");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName().toLowerCase() + "(alpha=" + alpha + ")";
+    }
+
+    /**
+     * 確率的勾配降下法(状態なし).
+     */
+    private static class Sgd extends Optimizer {
+        Sgd(double alpha) {
+            super(alpha);
+        }
+
+        @Override
+        void allocate(int[] sizes) {
+        }
+
+        @Override
+        double[][] arrays() {
+            return new double[0][];
+        }
+
+        @Override
+        int stateKind() {
+            return 0;
+        }
+
+        @Override
+        public void update(int p, int start, int end, double[] w, int wo, double[] g, int go, double scale) {
+            double rate = alpha * scale;
+            for (int i = 0, n = end - start; i < n; i++) {
+                w[wo + i] -= rate * g[go + i];
+            }
+        }
+    }
+
+    /**
+     * モーメンタムとネステロフの加速勾配法.
+     */
+    private static class Momentum extends Optimizer {
+        private final double mu;
+        private final boolean nesterov;
+        // 速度
+        private double[][] v;
+
+        Momentum(double alpha, double mu, boolean nesterov) {
+            super(alpha);
+            this.mu = mu;
+            this.nesterov = nesterov;
+        }
+
+        @Override
+        void allocate(int[] sizes) {
+            v = new double[sizes.length][];
+            for (int p = 0; p < sizes.length; p++) v[p] = new double[sizes[p]];
+        }
+
+        @Override
+        double[][] arrays() {
+            return v;
+        }
+
+        @Override
+        int stateKind() {
+            return nesterov ? 2 : 1;
+        }
+
+        @Override
+        public void update(int p, int start, int end, double[] w, int wo, double[] g, int go, double scale) {
+            double rate = alpha * scale;
+            double[] vp = v[p];
+            if (nesterov) {
+                for (int i = start, k = 0; i < end; i++, k++) {
+                    double step = rate * g[go + k];
+                    double vi = mu * vp[i] + step;
+                    vp[i] = vi;
+                    w[wo + k] -= mu * vi + step;
+                }
+            } else {
+                for (int i = start, k = 0; i < end; i++, k++) {
+                    double vi = mu * vp[i] + rate * g[go + k];
+                    vp[i] = vi;
+                    w[wo + k] -= vi;
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return (nesterov ? "nesterov" : "momentum") + "(alpha=" + alpha + ", mu=" + mu + ")";
+        }
+    }
+
+    /**
+     * RMSProp.
+     */
+    private static class RmsProp extends Optimizer {
+        private final double rho;
+        private final double eps;
+        // 勾配の2乗の移動平均
+        private double[][] r;
+
+        RmsProp(double alpha, double rho, double eps) {
+            super(alpha);
+            this.rho = rho;
+            this.eps = eps;
+        }
+
+        @Override
+        void allocate(int[] sizes) {
+            r = new double[sizes.length][];
+            for (int p = 0; p < sizes.length; p++) r[p] = new double[sizes[p]];
+        }
+
+        @Override
+        double[][] arrays() {
+            return r;
+        }
+
+        @Override
+        int stateKind() {
+            return 3;
+        }
+
+        @Override
+        public void update(int p, int start, int end, double[] w, int wo, double[] g, int go, double scale) {
+            double[] rp = r[p];
+            for (int i = start, k = 0; i < end; i++, k++) {
+                double gi = scale * g[go + k];
+                double ri = rho * rp[i] + (1 - rho) * gi * gi;
+                rp[i] = ri;
+                w[wo + k] -= alpha * gi / (Math.sqrt(ri) + eps);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "rmsprop(alpha=" + alpha + ", rho=" + rho + ")";
+        }
+    }
+
+    /**
+     * Adam.
+     */
+    private static class Adam extends Optimizer {
+        private final double beta1;
+        private final double beta2;
+        private final double eps;
+        // 勾配とその2乗の移動平均
+        private double[][] m;
+        private double[][] v;
+        // 偏りを補正した学習率とeps(ステップごとにbeginで計算する)
+        private double rate;
+        private double epsHat;
+
+        Adam(double alpha, double beta1, double beta2, double eps) {
+            super(alpha);
+            this.beta1 = beta1;
+            this.beta2 = beta2;
+            this.eps = eps;
+        }
+
+        @Override
+        void allocate(int[] sizes) {
+            m = new double[sizes.length][];
+            v = new double[sizes.length][];
+            for (int p = 0; p < sizes.length; p++) {
+                m[p] = new double[sizes[p]];
+                v[p] = new double[sizes[p]];
+            }
+        }
+
+        @Override
+        double[][] arrays() {
+            double[][] a = new double[m.length * 2][];
+            for (int p = 0; p < m.length; p++) {
+                a[p] = m[p];
+                a[m.length + p] = v[p];
+            }
+            return a;
+        }
+
+        @Override
+        int stateKind() {
+            return 4;
+        }
+
+        @Override
+        public void begin() {
+            super.begin();
+            // m / (1 - beta1^t) / (sqrt(v / (1 - beta2^t)) + eps) を、要素ごとの割り算を増やさずに計算する
+            double c2 = Math.sqrt(1 - Math.pow(beta2, steps));
+            rate = alpha * c2 / (1 - Math.pow(beta1, steps));
+            epsHat = eps * c2;
+        }
+
+        @Override
+        public void update(int p, int start, int end, double[] w, int wo, double[] g, int go, double scale) {
+            if (steps == 0) throw new IllegalStateException("begin() was not called");
+            double[] mp = m[p], vp = v[p];
+            for (int i = start, k = 0; i < end; i++, k++) {
+                double gi = scale * g[go + k];
+                double mi = beta1 * mp[i] + (1 - beta1) * gi;
+                double vi = beta2 * vp[i] + (1 - beta2) * gi * gi;
+                mp[i] = mi;
+                vp[i] = vi;
+                w[wo + k] -= rate * mi / (Math.sqrt(vi) + epsHat);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "adam(alpha=" + alpha + ", beta1=" + beta1 + ", beta2=" + beta2 + ")";
+        }
+    }
+}
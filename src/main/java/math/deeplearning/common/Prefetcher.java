@@ -0,0 +1,220 @@
+package math.deeplearning.common;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 次のミニバッチをバックグラウンドのスレッドで準備しておく.
+ * <p>
+ * 学習スレッドが行列積を計算している間に、別のスレッドがindexを選んで0でない画素値だけを正規化し、
+ * 使い回しの疎行列のバッファに読み込んでおく。バッファは準備済みのキュー(長さdepth)と
+ * 空きのキューの間を行き来するので、学習中に新しいバッファは確保しない。
+ * <p>
+ * 準備済みのバッチがなくて学習スレッドが待った回数を数えるので、
+ * 入力の準備が学習のボトルネックになっているかどうかがわかる。
+ */
+public class Prefetcher implements AutoCloseable {
+    // 準備しておくバッチ数の既定値(システムプロパティ math.deeplearning.prefetch で指定できる)
+    private static final int DEPTH = Integer.getInteger("math.deeplearning.prefetch", 2);
+    // バッチを準備するスレッド数の既定値(システムプロパティ math.deeplearning.prefetch.threads で指定できる)
+    private static final int PRODUCERS = Math.max(1, Integer.getInteger("math.deeplearning.prefetch.threads", 1));
+    // 準備済みのバッチを待つときに、準備スレッドが異常終了していないか確認する間隔
+    private static final long POLL_MILLIS = 100;
+
+    private final Dataset data;
+    private final Sampler sampler;
+    // 準備済みのバッチ
+    private final BlockingQueue<Batch> ready;
+    // 空きのバッチ
+    private final BlockingQueue<Batch> free;
+    private final Thread[] producers;
+    private volatile boolean closed;
+    // 準備スレッドで発生した例外
+    private volatile Throwable failure;
+
+    // 学習スレッドが受け取ったバッチ数
+    private long taken;
+    // 準備済みのバッチがなくて学習スレッドが待った回数と時間
+    private long starved;
+    private long starvedNanos;
+    // 準備済みのキューがいっぱいで準備スレッドが待った回数(学習が追いついていない)
+    private final AtomicLong producerWaits = new AtomicLong();
+
+    /**
+     * 準備しておくバッチ数とスレッド数をシステムプロパティの値にして作る.
+     *
+     * @param data      データセット
+     * @param sampler   indexを選ぶサンプラー
+     * @param batchSize バッチデータサイズ
+     */
+    public Prefetcher(Dataset data, Sampler sampler, int batchSize) {
+        this(data, sampler, batchSize, DEPTH, PRODUCERS);
+    }
+
+    /**
+     * バッファを確保して準備スレッドを起動する.
+     *
+     * @param data      データセット
+     * @param sampler   indexを選ぶサンプラー(準備スレッドの間で排他して使う)
+     * @param batchSize バッチデータサイズ
+     * @param depth     準備しておくバッチ数
+     * @param threads   バッチを準備するスレッド数
+     */
+    public Prefetcher(Dataset data, Sampler sampler, int batchSize, int depth, int threads) {
+        if (depth < 1 || threads < 1) {
+            throw new IllegalArgumentException("depth " + depth + " and threads " + threads + " must be positive");
+        }
+        this.data = data;
+        this.sampler = sampler;
+        // 準備済みのもの、準備中のもの、学習中のものの分だけバッファを用意する
+        int buffers = depth + threads + 1;
+        ready = new ArrayBlockingQueue<>(depth);
+        free = new ArrayBlockingQueue<>(buffers);
+        for (int i = 0; i < buffers; i++) {
+            free.add(new Batch(batchSize, data.cols));
+        }
+
+        producers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            producers[i] = new Thread(this::produce, "prefetch-" + i);
+            producers[i].setDaemon(true);
+            producers[i].start();
+        }
+    }
+
+    /**
+     * 準備しておくバッチ数の既定値を返す. 0なら準備せずに学習スレッドで読み込む.
+     *
+     * @return バッチ数(システムプロパティで0以下を指定したら0)
+     */
+    public static int depth() {
+        return Math.max(0, DEPTH);
+    }
+
+    // 空きのバッチに次のミニバッチを読み込んで準備済みのキューに入れる
+    private void produce() {
+        try {
+            while (!closed) {
+                Batch b = free.take();
+                synchronized (sampler) {
+                    sampler.next(b.index);
+                }
+                data.gather(b.index, b.x);
+                data.gatherLabels(b.index, b.t);
+                if (!ready.offer(b)) {
+                    producerWaits.incrementAndGet();
+                    ready.put(b);
+                }
+            }
+        } catch (InterruptedException e) {
+            // closeで止められた
+        } catch (Throwable e) {
+            failure = e;
+        }
+    }
+
+    /**
+     * 準備済みのバッチを受け取る. 使い終わったら {@link #release} で返す.
+     *
+     * @return バッチ
+     */
+    public Batch take() {
+        Batch b = ready.poll();
+        if (b == null) {
+            starved++;
+            long start = System.nanoTime();
+            try {
+                while ((b = ready.poll(POLL_MILLIS, TimeUnit.MILLISECONDS)) == null) {
+                    if (failure != null) throw new IllegalStateException("prefetch failed", failure);
+                    if (closed) throw new IllegalStateException("prefetcher is closed");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while waiting for a batch", e);
+            }
+            starvedNanos += System.nanoTime() - start;
+        }
+        taken++;
+        return b;
+    }
+
+    /**
+     * 使い終わったバッチを返す.
+     *
+     * @param b バッチ
+     */
+    public void release(Batch b) {
+        free.add(b);
+    }
+
+    public long taken() {
+        return taken;
+    }
+
+    /**
+     * 準備済みのバッチがなくて学習スレッドが待った回数を返す.
+     *
+     * @return 回数
+     */
+    public long starved() {
+        return starved;
+    }
+
+    /**
+     * 準備済みのバッチがなくて学習スレッドが待った時間の合計を返す.
+     *
+     * @return 時間(ナノ秒)
+     */
+    public long starvedNanos() {
+        return starvedNanos;
+    }
+
+    /**
+     * 準備済みのキューがいっぱいで準備スレッドが待った回数を返す.
+     *
+     * @return 回数
+     */
+    public long producerWaits() {
+        return producerWaits.get();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        for (Thread t : producers) t.interrupt();
+        for (Thread t : producers) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("prefetch: taken=%d starved=%d (%.1f ms) producerWaits=%d",
+                taken, starved, starvedNanos / 1e6, producerWaits());
+    }
+
+    /**
+     * ミニバッチのバッファ.
+     */
+    public static class Batch {
+        // 選んだindex
+        public final int[] index;
+        // 正規化した画素値(0でない画素値だけを読み込む)
+        public final SparseMatrix x;
+        // 正解ラベル
+        public final int[] t;
+
+        Batch(int batchSize, int cols) {
+            index = new int[batchSize];
+            x = new SparseMatrix(batchSize, cols, batchSize * cols / 4);
+            t = new int[batchSize];
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package math.deeplearning.common;
+
+/**
+ * ReLU関数を適用する層.
+ * <p>
+ * 入力が正のときだけ出力も正になるので、誤差を戻すときは入力の代わりに出力を見る。
+ * そのため入力は順伝播が終われば不要になり、出力を入力と同じ行列に書き込める。
+ */
+class ReLU extends Layer {
+    @Override
+    int outCols(int inCols) {
+        return inCols;
+    }
+
+    @Override
+    boolean inPlace() {
+        return true;
+    }
+
+    @Override
+    boolean needsInput() {
+        return false;
+    }
+
+    @Override
+    boolean needsOutput() {
+        return true;
+    }
+
+    @Override
+    void forward(Matrix wM, Matrix xM, Matrix yM) {
+        Util.reLU(xM, yM);
+    }
+
+    @Override
+    void backward(Matrix wM, Matrix xM, Matrix yM, Matrix dyM, Matrix dxM, Matrix gM) {
+        if (dxM == null) return;
+        for (int i = 0; i < yM.rows; i++) {
+            int y = yM.index(i), dy = dyM.index(i), dx = dxM.index(i);
+            for (int j = 0; j < yM.cols; j++) {
+                dxM.data[dx + j] = yM.data[y + j] > 0 ? dyM.data[dy + j] : 0.0;
+            }
+        }
+    }
+}
@@ -0,0 +1,395 @@
+package math.deeplearning.common;
+
+import java.util.Random;
+
+/**
+ * ミニバッチのindexを重複なしでランダムに選ぶ.
+ * <p>
+ * index配列の未使用部分からランダムに1つ選んで先頭側と入れ替える(Fisher-Yates)ので、
+ * 1つ選ぶのにかかる時間はデータ数によらない。すべて使い切ると次のエポックを始める。
+ * <p>
+ * クラスの比率を保って選ぶ {@link #stratified} と、重みに比例して選ぶ {@link #weighted}、
+ * ファイルから読み込むデータセットのためにチャンク単位で選ぶ {@link #chunked} もある。
+ * 乱数生成器は作成時に受け取ったものを使い回すので、シードを固定すれば同じ順序で選ばれる。
+ */
+public class Sampler {
+    // データのindex(先頭からpos個が今のエポックで使用済み)
+    private final int[] perm;
+    // 使用済みのindex数
+    private int pos;
+    // 始めたエポック数
+    private int epoch = 1;
+    // 乱数生成器
+    final Random rand;
+
+    public Sampler(int total) {
+        this(total, new Random());
+    }
+
+    public Sampler(int total, long seed) {
+        this(total, new Random(seed));
+    }
+
+    public Sampler(int total, Random rand) {
+        this(range(total), rand);
+    }
+
+    /**
+     * 指定したindexの中から選ぶサンプラーを作る.
+     *
+     * @param indexes 選ぶ対象のindex(コピーして使う)
+     * @param rand    乱数生成器
+     */
+    public Sampler(int[] indexes, Random rand) {
+        this.perm = indexes.clone();
+        this.rand = rand;
+    }
+
+    /**
+     * 次のミニバッチのindexを選ぶ. 残りがバッチサイズより少なければ次のエポックを始める.
+     *
+     * @param index indexを書き込む配列(長さがバッチサイズ)
+     * @return index
+     */
+    public int[] next(int[] index) {
+        if (index.length > perm.length) {
+            throw new IllegalArgumentException("batch size " + index.length + " > total " + perm.length);
+        }
+        if (perm.length - pos < index.length) newEpoch();
+        for (int i = 0; i < index.length; i++) {
+            index[i] = draw();
+        }
+        return index;
+    }
+
+    /**
+     * 次のindexを1つ選ぶ. すべて使い切っていれば次のエポックを始める.
+     *
+     * @return index
+     */
+    public int next() {
+        if (perm.length == 0) throw new IllegalStateException("no index to sample");
+        if (pos == perm.length) newEpoch();
+        return draw();
+    }
+
+    /**
+     * 今のエポックの番号(1から数える)を返す.
+     *
+     * @return エポック番号
+     */
+    public int epoch() {
+        return epoch;
+    }
+
+    private void newEpoch() {
+        pos = 0;
+        epoch++;
+    }
+
+    private int draw() {
+        int j = pos + rand.nextInt(perm.length - pos);
+        int tmp = perm[j];
+        perm[j] = perm[pos];
+        perm[pos++] = tmp;
+        return tmp;
+    }
+
+    /**
+     * 0～n-1のランダムな順列を作る.
+     *
+     * @param n    要素数
+     * @param rand 乱数生成器
+     * @return 順列
+     */
+    public static int[] permutation(int n, Random rand) {
+        int[] rA = range(n);
+        shuffle(rA, 0, n, rand);
+        return rA;
+    }
+
+    // aAのfromからtoの手前までをFisher-Yatesで並べ替える
+    static void shuffle(int[] aA, int from, int to, Random rand) {
+        for (int i = to - 1; i > from; i--) {
+            int j = from + rand.nextInt(i - from + 1);
+            int tmp = aA[i];
+            aA[i] = aA[j];
+            aA[j] = tmp;
+        }
+    }
+
+    private static int[] range(int n) {
+        int[] rA = new int[n];
+        for (int i = 0; i < n; i++) rA[i] = i;
+        return rA;
+    }
+
+    /**
+     * 各ミニバッチのクラスの比率が学習データ全体と同じになるように選ぶサンプラーを作る.
+     * <p>
+     * クラスごとに重複なしで選び、使い切ったクラスから次のエポックを始める。
+     *
+     * @param labels   正解ラベル(クラス番号)
+     * @param classNum クラス数
+     * @param rand     乱数生成器
+     * @return サンプラー
+     */
+    public static Sampler stratified(int[] labels, int classNum, Random rand) {
+        return new Stratified(labels, classNum, rand);
+    }
+
+    /**
+     * 重みに比例した確率で重複を許して選ぶサンプラーを作る.
+     * <p>
+     * エイリアス法を使うので、1つ選ぶのにかかる時間はデータ数によらない。
+     *
+     * @param weights 各データの重み(0以上)
+     * @param rand    乱数生成器
+     * @return サンプラー
+     */
+    public static Sampler weighted(double[] weights, Random rand) {
+        return new Weighted(weights, rand);
+    }
+
+    /**
+     * 連続した行(チャンク)の中から重複なしで選ぶサンプラーを作る.
+     * <p>
+     * エポックごとにチャンクの順序をシャッフルし、1つのチャンクを使い切ってから次のチャンクに進む。
+     * 同時に読み込む必要があるのは1チャンク分だけなので、{@link FileDataset} のように
+     * チャンクごとにファイルから読み込むデータセットで使う。
+     * バッチはチャンクやエポックの境目をまたいでもよい(端数を捨てない)。
+     *
+     * @param total     データ数
+     * @param chunkRows チャンクの行数
+     * @param rand      乱数生成器
+     * @return サンプラー
+     */
+    public static Sampler chunked(int total, int chunkRows, Random rand) {
+        return new Chunked(total, chunkRows, rand);
+    }
+
+    /**
+     * クラスの比率を保って選ぶサンプラー.
+     */
+    private static class Stratified extends Sampler {
+        // クラスごとのサンプラー
+        private final Sampler[] classes;
+        // 各クラスの比率
+        private final double[] ratio;
+        // 比率どおりに割り振れなかった端数(次のバッチに繰り越す)
+        private final double[] carry;
+        // 各クラスから選ぶ数
+        private final int[] quota;
+        private final int[] one = new int[1];
+        private final int total;
+
+        Stratified(int[] labels, int classNum, Random rand) {
+            super(new int[0], rand);
+            int[] counts = new int[classNum];
+            for (int t : labels) counts[t]++;
+            int[][] members = new int[classNum][];
+            for (int c = 0; c < classNum; c++) members[c] = new int[counts[c]];
+            int[] filled = new int[classNum];
+            for (int i = 0; i < labels.length; i++) {
+                members[labels[i]][filled[labels[i]]++] = i;
+            }
+
+            classes = new Sampler[classNum];
+            ratio = new double[classNum];
+            for (int c = 0; c < classNum; c++) {
+                classes[c] = new Sampler(members[c], rand);
+                ratio[c] = (double) counts[c] / labels.length;
+            }
+            carry = new double[classNum];
+            quota = new int[classNum];
+            total = labels.length;
+        }
+
+        @Override
+        public int[] next(int[] index) {
+            if (index.length > total) {
+                throw new IllegalArgumentException("batch size " + index.length + " > total " + total);
+            }
+            // 比率×バッチサイズの整数部分を割り振り、残りは端数の大きいクラスに1つずつ割り振る
+            int rest = index.length;
+            for (int c = 0; c < classes.length; c++) {
+                double q = ratio[c] * index.length + carry[c];
+                quota[c] = (int) Math.floor(q);
+                carry[c] = q - quota[c];
+                rest -= quota[c];
+            }
+            // 丸め誤差で割り振りすぎたときは端数の小さいクラスから減らす
+            for (; rest < 0; rest++) {
+                int min = -1;
+                for (int c = 0; c < classes.length; c++) {
+                    if (quota[c] > 0 && (min < 0 || carry[c] < carry[min])) min = c;
+                }
+                quota[min]--;
+                carry[min]++;
+            }
+            for (; rest > 0; rest--) {
+                int max = 0;
+                for (int c = 1; c < classes.length; c++) {
+                    if (carry[c] > carry[max]) max = c;
+                }
+                quota[max]++;
+                carry[max]--;
+            }
+
+            int k = 0;
+            for (int c = 0; c < classes.length; c++) {
+                for (int i = 0; i < quota[c]; i++) index[k++] = classes[c].next();
+            }
+            // クラスごとに並んでいるのでバッチ内で並べ替える
+            shuffle(index, 0, index.length, rand);
+            return index;
+        }
+
+        @Override
+        public int next() {
+            return next(one)[0];
+        }
+
+        @Override
+        public int epoch() {
+            int min = Integer.MAX_VALUE;
+            for (Sampler s : classes) {
+                if (s.perm.length > 0) min = Math.min(min, s.epoch());
+            }
+            return min;
+        }
+    }
+
+    /**
+     * 重みに比例した確率で選ぶサンプラー(エイリアス法).
+     */
+    private static class Weighted extends Sampler {
+        // 自分自身を選ぶ確率
+        private final double[] prob;
+        // 自分自身を選ばなかったときに選ぶindex
+        private final int[] alias;
+        // 選んだ数
+        private long drawn;
+
+        Weighted(double[] weights, Random rand) {
+            super(new int[0], rand);
+            int n = weights.length;
+            double sum = 0;
+            for (double w : weights) {
+                if (!(w >= 0) || Double.isInfinite(w)) {
+                    throw new IllegalArgumentException("invalid weight: " + w);
+                }
+                sum += w;
+            }
+            if (!(sum > 0)) throw new IllegalArgumentException("sum of weights must be positive");
+
+            prob = new double[n];
+            alias = new int[n];
+            // 平均を1にした重みを、1未満(small)と1以上(large)に分けて組み合わせる
+            double[] scaled = new double[n];
+            int[] small = new int[n];
+            int[] large = new int[n];
+            int ns = 0, nl = 0;
+            for (int i = 0; i < n; i++) {
+                scaled[i] = weights[i] * n / sum;
+                if (scaled[i] < 1) small[ns++] = i;
+                else large[nl++] = i;
+            }
+            while (ns > 0 && nl > 0) {
+                int s = small[--ns];
+                int l = large[--nl];
+                prob[s] = scaled[s];
+                alias[s] = l;
+                scaled[l] -= 1 - scaled[s];
+                if (scaled[l] < 1) small[ns++] = l;
+                else large[nl++] = l;
+            }
+            // 丸め誤差で残ったものは必ず自分自身を選ぶ
+            while (nl > 0) prob[large[--nl]] = 1;
+            while (ns > 0) prob[small[--ns]] = 1;
+        }
+
+        @Override
+        public int[] next(int[] index) {
+            for (int i = 0; i < index.length; i++) index[i] = next();
+            return index;
+        }
+
+        @Override
+        public int next() {
+            int i = rand.nextInt(prob.length);
+            drawn++;
+            return rand.nextDouble() < prob[i] ? i : alias[i];
+        }
+
+        @Override
+        public int epoch() {
+            // 重複を許すので、データ数だけ選んだら1エポックとみなす
+            return (int) (drawn / prob.length) + 1;
+        }
+    }
+
+    /**
+     * チャンク単位で選ぶサンプラー.
+     */
+    private static class Chunked extends Sampler {
+        private final int total;
+        private final int chunkRows;
+        // チャンクの順序
+        private final int[] order;
+        // 今のチャンクの行(先頭からpos個が使用済み)
+        private final int[] members;
+        private int pos;
+        private int size;
+        // 今のチャンクのorder上の位置
+        private int chunk;
+        private int epoch = 1;
+
+        Chunked(int total, int chunkRows, Random rand) {
+            super(new int[0], rand);
+            if (total <= 0 || chunkRows <= 0) {
+                throw new IllegalArgumentException("total " + total + " and chunk rows " + chunkRows + " must be positive");
+            }
+            this.total = total;
+            this.chunkRows = Math.min(chunkRows, total);
+            order = permutation((total + this.chunkRows - 1) / this.chunkRows, rand);
+            members = new int[this.chunkRows];
+            chunk = -1;
+            nextChunk();
+        }
+
+        // 次のチャンクに進む. すべて使い切っていれば次のエポックを始める
+        private void nextChunk() {
+            if (++chunk == order.length) {
+                shuffle(order, 0, order.length, rand);
+                chunk = 0;
+                epoch++;
+            }
+            int start = order[chunk] * chunkRows;
+            size = Math.min(chunkRows, total - start);
+            for (int i = 0; i < size; i++) members[i] = start + i;
+            pos = 0;
+        }
+
+        @Override
+        public int[] next(int[] index) {
+            for (int i = 0; i < index.length; i++) index[i] = next();
+            return index;
+        }
+
+        @Override
+        public int next() {
+            if (pos == size) nextChunk();
+            int j = pos + rand.nextInt(size - pos);
+            int tmp = members[j];
+            members[j] = members[pos];
+            members[pos++] = tmp;
+            return tmp;
+        }
+
+        @Override
+        public int epoch() {
+            return epoch;
+        }
+    }
+}
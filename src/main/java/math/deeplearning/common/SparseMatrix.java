@@ -0,0 +1,203 @@
+package math.deeplearning.common;
+
+import java.util.Arrays;
+
+/**
+ * 0でない要素だけを行ごとに格納する疎行列(CSR形式).
+ * <p>
+ * i行目の0でない要素は {@code values[rowStart[i]]} から {@code values[rowStart[i + 1] - 1]} までにあり、
+ * 列番号は同じ位置の {@code colIndex} に昇順で入っている。
+ * MNISTの画素のように大部分が0の入力では、1層目の積 [1 X]・W と [1 X]^T・dY を
+ * 0でない要素についてだけ計算できる({@link Gemm#multiplyBias(SparseMatrix, Matrix, Matrix)} など)。
+ * <p>
+ * 行は {@link #clear} してから {@link #add} と {@link #endRow} で先頭から順に追加する。
+ * 配列は足りなくなったときだけ大きくするので、同じ大きさのミニバッチを読み込み直すなら
+ * 2回目からはヒープ割り当ては発生しない。
+ * 0でない要素の割合が math.deeplearning.sparse.density (既定0.5)以下なら疎行列のまま計算し、
+ * それより多ければ密行列に変換して計算する({@link #isSparse})。
+ */
+public class SparseMatrix {
+    // これ以下の密度なら疎行列のまま積を計算する
+    static final double DENSITY_THRESHOLD = Double.parseDouble(
+            System.getProperty("math.deeplearning.sparse.density", "0.5"));
+
+    // 列数
+    public final int cols;
+    // 行数(追加し終わった行の数)
+    private int rows;
+    // 行ごとの先頭の位置(rows + 1要素)
+    private int[] rowStart;
+    // 0でない要素の列番号
+    private int[] colIndex;
+    // 0でない要素の値
+    private double[] values;
+    // 追加した要素の数(追加中の行を含む)
+    private int size;
+
+    /**
+     * 空の疎行列を作る.
+     *
+     * @param rows     行数の見込み
+     * @param cols     列数
+     * @param capacity 0でない要素の数の見込み
+     */
+    public SparseMatrix(int rows, int cols, int capacity) {
+        if (rows < 0 || cols < 0 || capacity < 0) {
+            throw new IllegalArgumentException("invalid shape: " + rows + "x" + cols + " capacity=" + capacity);
+        }
+        this.cols = cols;
+        rowStart = new int[rows + 1];
+        colIndex = new int[capacity];
+        values = new double[capacity];
+    }
+
+    /**
+     * 密行列の0でない要素から疎行列を作る.
+     *
+     * @param aM 密行列
+     * @return 疎行列
+     */
+    public static SparseMatrix of(Matrix aM) {
+        return of(aM, new SparseMatrix(aM.rows, aM.cols, 0));
+    }
+
+    /**
+     * 密行列の0でない要素をrMに読み込む.
+     *
+     * @param aM 密行列
+     * @param rM 読み込み先(列数がaMと同じもの)
+     * @return rM
+     */
+    public static SparseMatrix of(Matrix aM, SparseMatrix rM) {
+        checkCols(aM.cols, rM);
+        rM.clear();
+        for (int i = 0; i < aM.rows; i++) {
+            int a = aM.index(i);
+            for (int j = 0; j < aM.cols; j++) {
+                double v = aM.data[a + j];
+                if (v != 0.0) rM.add(j, v);
+            }
+            rM.endRow();
+        }
+        return rM;
+    }
+
+    static void checkCols(int cols, SparseMatrix rM) {
+        if (rM.cols != cols) throw new IllegalArgumentException("cols " + cols + " != " + rM.cols);
+    }
+
+    /**
+     * すべての行を消す. 確保した配列はそのまま使う.
+     */
+    public void clear() {
+        rows = 0;
+        size = 0;
+    }
+
+    /**
+     * 追加中の行に要素を加える. 列番号は行の中で昇順にすること.
+     *
+     * @param j 列番号
+     * @param v 値
+     */
+    public void add(int j, double v) {
+        if (size == values.length) {
+            int capacity = Math.max(16, size * 2);
+            colIndex = Arrays.copyOf(colIndex, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        colIndex[size] = j;
+        values[size] = v;
+        size++;
+    }
+
+    /**
+     * 追加中の行を終えて、次の行を始める.
+     */
+    public void endRow() {
+        if (rows + 2 > rowStart.length) rowStart = Arrays.copyOf(rowStart, rowStart.length * 2);
+        rowStart[++rows] = size;
+    }
+
+    public int rows() {
+        return rows;
+    }
+
+    /**
+     * 0でない要素の数を返す.
+     *
+     * @return 要素数
+     */
+    public int nonZeros() {
+        return rowStart[rows];
+    }
+
+    /**
+     * 0でない要素の割合を返す.
+     *
+     * @return 密度(0～1)
+     */
+    public double density() {
+        long size = (long) rows * cols;
+        return size == 0 ? 0.0 : (double) nonZeros() / size;
+    }
+
+    /**
+     * 疎行列のまま積を計算したほうが速いかどうか. 密度がしきい値以下ならtrue.
+     *
+     * @return 疎行列のまま計算するならtrue
+     */
+    public boolean isSparse() {
+        return density() <= DENSITY_THRESHOLD;
+    }
+
+    // i行目の先頭の位置
+    int start(int i) {
+        return rowStart[i];
+    }
+
+    // i行目の最後の次の位置
+    int end(int i) {
+        return rowStart[i + 1];
+    }
+
+    int[] colIndex() {
+        return colIndex;
+    }
+
+    double[] values() {
+        return values;
+    }
+
+    public double get(int i, int j) {
+        int p = Arrays.binarySearch(colIndex, rowStart[i], rowStart[i + 1], j);
+        return p < 0 ? 0.0 : values[p];
+    }
+
+    /**
+     * 密行列に書き込む.
+     *
+     * @param rM 書き込み先(rows x cols)
+     * @return rM
+     */
+    public Matrix toDense(Matrix rM) {
+        if (rM.rows != rows || rM.cols != cols) {
+            throw new IllegalArgumentException("shape mismatch: " + rows + "x" + cols + " vs " + rM.rows + "x" + rM.cols);
+        }
+        for (int i = 0; i < rows; i++) {
+            int r = rM.index(i);
+            Arrays.fill(rM.data, r, r + cols, 0.0);
+            for (int p = rowStart[i]; p < rowStart[i + 1]; p++) rM.data[r + colIndex[p]] = values[p];
+        }
+        return rM;
+    }
+
+    public Matrix toDense() {
+        return toDense(new Matrix(rows, cols));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SparseMatrix[%dx%d, nonZeros=%d, density=%.3f]", rows, cols, nonZeros(), density());
+    }
+}
@@ -0,0 +1,421 @@
+package math.deeplearning.common;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static math.deeplearning.common.Util.*;
+
+/**
+ * ネットワークをミニバッチで学習する.
+ * <p>
+ * 層の数や大きさは {@link Network} で決まり、学習の方法(作業領域を使い回す学習、
+ * ミニバッチを分割して並列に勾配を計算する学習、Hogwild)はどのネットワークでも同じものを使う。
+ * 学習中は一定回数ごとに {@link Evaluator} で評価し、チェックポイントファイルを指定していれば
+ * {@link Checkpoint.Writer} で重みを書き込む。
+ * 重みの更新方法はシステムプロパティ math.deeplearning.optimizer で指定する({@link Optimizer#of})。
+ */
+public class Trainer {
+    // 学習データと評価用データ
+    protected final Dataset train;
+    protected final Dataset test;
+    // 学習回数
+    protected final int iters;
+    // バッチデータサイズ
+    protected final int batchSize;
+    // 学習率
+    protected final double alpha;
+    // ネットワーク
+    protected final Network net;
+    // 最初の学習回数(チェックポイントから再開したときはその続き)
+    protected int startIter;
+
+    // 重みの更新方法(math.deeplearning.optimizer, 既定は確率的勾配降下法)
+    private final Optimizer optimizer;
+    // 処理ごとの時間と学習したステップ数
+    private final Metrics metrics;
+    // 重みを書き込むチェックポイントファイル(なければnull)
+    private Path checkpoint;
+
+    /**
+     * @param name      計測結果に表示する名前
+     * @param net       ネットワーク(重みは初期化済みのもの)
+     * @param train     学習データ
+     * @param test      評価用データ
+     * @param iters     学習回数
+     * @param batchSize バッチデータサイズ
+     * @param alpha     学習率
+     */
+    public Trainer(String name, Network net, Dataset train, Dataset test, int iters, int batchSize, double alpha) {
+        this.net = net;
+        this.train = train;
+        this.test = test;
+        this.iters = iters;
+        this.batchSize = batchSize;
+        this.alpha = alpha;
+        optimizer = Optimizer.of(alpha).init(net.weights());
+        metrics = new Metrics(name, batchSize);
+    }
+
+    /**
+     * システムプロパティで指定した方法で学習する.
+     * <ul>
+     * <li>math.deeplearning.checkpoint: 一定回数ごとに重みを書き込むファイル(ファイルがあれば続きから学習する)</li>
+     * <li>math.deeplearning.hogwild: 指定したらそのスレッド数で非同期に学習する</li>
+     * <li>math.deeplearning.workers: 2以上ならミニバッチを分割して並列に学習する</li>
+     * </ul>
+     * どれも指定しなければ作業領域を使い回して1スレッドで学習する.
+     */
+    public void learnAsConfigured() throws IOException {
+        String path = System.getProperty("math.deeplearning.checkpoint");
+        if (path != null) checkpoint(Paths.get(path));
+        int workers = Integer.getInteger("math.deeplearning.workers", 1);
+        int hogwild = Integer.getInteger("math.deeplearning.hogwild", 0);
+        if (hogwild > 0) {
+            learnHogwild(hogwild, true);
+        } else if (workers > 1) {
+            learnParallel(workers);
+        } else {
+            learnInPlace();
+        }
+    }
+
+    /**
+     * 作業領域を事前に確保し、学習ステップごとのヒープ割り当てなしで学習する.
+     */
+    public void learnInPlace() {
+        Workspace ws = new Workspace();
+        if (Prefetcher.depth() > 0) {
+            learnInPlace(ws);
+            return;
+        }
+        metrics.start();
+        try (Evaluator evaluator = newEvaluator();
+             Checkpoint.Writer checkpointer = newCheckpointer()) {
+            for (int i = startIter; i < iters; i++) {
+                ws.learnStep();
+
+                // 一定回数(または一定時間)学習するごとに、別スレッドで誤差と精度を表示
+                evaluator.step(i);
+                // 一定回数ごとに、別スレッドで重みを書き込む
+                checkpointer.step(i);
+            }
+        } finally {
+            metrics.close();
+        }
+    }
+
+    // 次のミニバッチを別スレッドで準備しながら学習する
+    private void learnInPlace(Workspace ws) {
+        metrics.start();
+        try (Prefetcher prefetcher = new Prefetcher(train, ws.sampler, batchSize);
+             Evaluator evaluator = newEvaluator();
+             Checkpoint.Writer checkpointer = newCheckpointer()) {
+            for (int i = startIter; i < iters; i++) {
+                // 準備済みのバッチを待った時間をサンプリングの時間とする
+                long start = System.nanoTime();
+                Prefetcher.Batch batch = prefetcher.take();
+                metrics.record(Metrics.Phase.SAMPLING, start);
+                ws.learnStep(batch.x, batch.t);
+                prefetcher.release(batch);
+
+                // 一定回数(または一定時間)学習するごとに、別スレッドで誤差と精度を表示
+                evaluator.step(i);
+                // 一定回数ごとに、別スレッドで重みを書き込む
+                checkpointer.step(i);
+            }
+            LogSink.log(prefetcher.toString());
+        } finally {
+            metrics.close();
+        }
+    }
+
+    /**
+     * ミニバッチをworkers個のシャードに分けて、並列に勾配を計算しながら学習する.
+     *
+     * @param workers ワーカー数
+     */
+    public void learnParallel(int workers) {
+        metrics.start();
+        try (DataParallel dp = new DataParallel(workers);
+             Evaluator evaluator = newEvaluator();
+             Checkpoint.Writer checkpointer = newCheckpointer()) {
+            ParallelWorkspace ws = new ParallelWorkspace(dp);
+            for (int i = startIter; i < iters; i++) {
+                ws.learnStep();
+
+                // 一定回数(または一定時間)学習するごとに、別スレッドで誤差と精度を表示
+                evaluator.step(i);
+                // 一定回数ごとに、別スレッドで重みを書き込む
+                checkpointer.step(i);
+            }
+        } finally {
+            metrics.close();
+        }
+    }
+
+    /**
+     * 各スレッドが自分のミニバッチを選んで、共有の重みをロックせずに更新しながら学習する(Hogwild).
+     * <p>
+     * 勾配は更新途中の重みで計算されることがあるので、同期して学習する場合とは結果が一致しない。
+     * 最適化手法の状態はスレッド間で共有できないので、最適化手法の指定によらず確率的勾配降下法で更新する。
+     *
+     * @param threads スレッド数
+     * @param striped trueならスレッドごとに重みを更新し始める行をずらす
+     */
+    public void learnHogwild(int threads, boolean striped) {
+        AtomicInteger counter = new AtomicInteger(startIter);
+        long start = System.nanoTime();
+        metrics.start();
+        try (DataParallel dp = new DataParallel(threads);
+             Evaluator evaluator = newEvaluator();
+             Checkpoint.Writer checkpointer = newCheckpointer()) {
+            dp.run(p -> {
+                Workspace ws = new Workspace();
+                double rate = alpha / batchSize;
+                Matrix[] weights = net.weights();
+                Matrix[] grads = ws.plan.grads();
+                // 重みを更新し始める行
+                int[] first = new int[weights.length];
+                for (int q = 0; q < weights.length; q++) {
+                    first[q] = striped ? DataParallel.start(weights[q].rows, threads, p) : 0;
+                }
+                for (int i = counter.getAndIncrement(); i < iters; i = counter.getAndIncrement()) {
+                    long t0 = System.nanoTime();
+                    ws.sampler.next(ws.index);
+                    sampling(train, ws.index, ws.x);
+                    samplingLabel(train, ws.index, ws.t);
+                    metrics.record(Metrics.Phase.SAMPLING, t0);
+                    ws.gradient(ws.x, ws.t);
+                    t0 = System.nanoTime();
+                    for (int q = 0; q < weights.length; q++) {
+                        DataParallel.updateRows(weights[q], grads[q], rate, first[q]);
+                    }
+                    metrics.record(Metrics.Phase.UPDATE, t0);
+                    metrics.step();
+
+                    // 一定回数(または一定時間)学習するごとに、別スレッドで誤差と精度を表示
+                    evaluator.step(i);
+                    checkpointer.step(i);
+                }
+            });
+        } finally {
+            metrics.close();
+        }
+        // チェックポイントから再開したときは、このメソッドで学習した回数だけ数える
+        double sec = (System.nanoTime() - start) / 1e9;
+        LogSink.log(String.format("hogwild: threads=%d striped=%b %.0f samples/sec",
+                threads, striped, (double) (iters - startIter) * batchSize / sec));
+        LogSink.flush();
+    }
+
+    /**
+     * 学習中に一定回数ごとに重みと最適化手法の状態を書き込むチェックポイントファイルを指定する.
+     * ファイルがすでにあれば、その重みと最適化手法の状態(速度や移動平均、Adamのステップ数)を読み込んで、
+     * 書き込んだときの学習回数の続きから学習する.
+     * 最適化手法の状態がファイルになければ(別の手法で書き込んだときも)、状態は0から始めてその旨を表示する.
+     *
+     * @param path チェックポイントファイル
+     */
+    public void checkpoint(Path path) throws IOException {
+        checkpoint = path;
+        if (Files.exists(path)) {
+            Checkpoint cp = Checkpoint.load(path);
+            cp.copyTo(weights());
+            startIter = cp.iteration + 1;
+            LogSink.log("resume from " + path + " " + cp);
+            if (!cp.restore(optimizer) && optimizer.state().length > 0) {
+                LogSink.log("resume: no " + optimizer + " state in " + path + ", restarting it from zero");
+            }
+        }
+    }
+
+    // 重み行列を入力側から順に返す
+    public Matrix[] weights() {
+        return net.weights();
+    }
+
+    // 評価用データでの精度を返す
+    public double accuracy() {
+        try (Evaluator evaluator = newEvaluator()) {
+            return evaluator.evaluate().accuracy;
+        }
+    }
+
+    // 一定回数ごとに別スレッドで重みと最適化手法の状態を書き込む(チェックポイントファイルを指定していなければ何もしない)
+    protected Checkpoint.Writer newCheckpointer() {
+        return new Checkpoint.Writer(checkpoint, weights(), optimizer);
+    }
+
+    // 評価用データを一定の行数ずつ順伝播して誤差と精度を計算する評価器を作る
+    protected Evaluator newEvaluator() {
+        int rows = Evaluator.defaultChunkRows();
+        Evaluator evaluator = new Evaluator(test, weights(), rows, net.plan(rows)::forward);
+        evaluator.setMetrics(metrics);
+        return evaluator;
+    }
+
+    /**
+     * 1ステップの学習に使う行列をまとめて確保しておく作業領域.
+     */
+    public class Workspace {
+        // ミニバッチのindex
+        public final int[] index;
+        final Sampler sampler = train.sampler();
+        // ミニバッチ(0でない画素値だけを読み込む)
+        final SparseMatrix x;
+        public final int[] t;
+        // 各層の出力と誤差、重みの勾配(生存区間が重ならない行列は同じ配列を使い回す)
+        final Network.Plan plan;
+
+        public Workspace() {
+            this(batchSize);
+        }
+
+        /**
+         * @param rows 1回に計算する行数
+         */
+        public Workspace(int rows) {
+            index = new int[rows];
+            x = new SparseMatrix(rows, train.cols, rows * train.cols / 4);
+            t = new int[rows];
+            plan = net.plan(rows);
+        }
+
+        /**
+         * ミニバッチを1つ学習する.
+         */
+        public void learnStep() {
+            // 学習データをサンプリング
+            long start = System.nanoTime();
+            sampler.next(index);
+            sampling(train, index, x);
+            samplingLabel(train, index, t);
+            metrics.record(Metrics.Phase.SAMPLING, start);
+            learnStep(x, t);
+        }
+
+        /**
+         * 読み込み済みのミニバッチを1つ学習する.
+         *
+         * @param x 画素値(rows x 入力の列数)
+         * @param t 正解ラベル
+         */
+        public void learnStep(Matrix x, int[] t) {
+            gradient(x, t);
+            update();
+        }
+
+        public void learnStep(SparseMatrix x, int[] t) {
+            gradient(x, t);
+            update();
+        }
+
+        private void update() {
+            // 勾配をバッチサイズで割り、最適化手法で各層の重みを更新
+            long start = System.nanoTime();
+            plan.update(optimizer, 1.0 / batchSize);
+            metrics.record(Metrics.Phase.UPDATE, start);
+            metrics.step();
+        }
+
+        /**
+         * 重みの勾配を計算する. 重みは更新しない.
+         *
+         * @param x 画素値
+         * @param t 正解ラベル
+         */
+        void gradient(Matrix x, int[] t) {
+            // 各層の出力値を計算
+            long start = System.nanoTime();
+            plan.forward(x);
+            backward(t, metrics.record(Metrics.Phase.FORWARD, start));
+        }
+
+        /**
+         * 疎行列のミニバッチで重みの勾配を計算する. 0でない画素値が少なければ1層目を疎行列のまま計算する.
+         *
+         * @param x 画素値
+         * @param t 正解ラベル
+         */
+        void gradient(SparseMatrix x, int[] t) {
+            long start = System.nanoTime();
+            plan.forward(x);
+            backward(t, metrics.record(Metrics.Phase.FORWARD, start));
+        }
+
+        private void backward(int[] t, long start) {
+            // 各層の誤差と勾配を計算(出力層はソフトマックス関数と正解ラベルとの差を1回の走査で計算する)
+            plan.backward(t, null);
+            metrics.record(Metrics.Phase.BACKWARD, start);
+        }
+    }
+
+    /**
+     * ミニバッチをシャードに分けて並列に学習する作業領域.
+     */
+    public class ParallelWorkspace {
+        private final DataParallel dp;
+        // ミニバッチのindex
+        final int[] index = new int[batchSize];
+        final Sampler sampler = train.sampler();
+        // シャードごとの作業領域
+        final Workspace[] shards;
+        // 重み行列
+        final Matrix[] weights = net.weights();
+        // 重み行列ごとの、シャードごとの勾配
+        final Matrix[][] grads;
+
+        public ParallelWorkspace(DataParallel dp) {
+            this.dp = dp;
+            shards = new Workspace[dp.workers];
+            grads = new Matrix[weights.length][dp.workers];
+            for (int p = 0; p < dp.workers; p++) {
+                int s = DataParallel.start(batchSize, dp.workers, p);
+                int e = DataParallel.start(batchSize, dp.workers, p + 1);
+                shards[p] = new Workspace(e - s);
+                Matrix[] g = shards[p].plan.grads();
+                for (int q = 0; q < weights.length; q++) grads[q][p] = g[q];
+            }
+        }
+
+        /**
+         * ミニバッチを1つ学習する.
+         */
+        public void learnStep() {
+            learnStep(sampler.next(index));
+        }
+
+        /**
+         * 選んだindexのミニバッチを1つ学習する.
+         *
+         * @param index ミニバッチのindex(長さがバッチサイズ)
+         */
+        public void learnStep(int[] index) {
+            // 各シャードが担当する行を読み込んで勾配を計算する
+            // (各シャードの処理時間はシャードの合計として記録される)
+            dp.run(p -> {
+                Workspace ws = shards[p];
+                long start = System.nanoTime();
+                System.arraycopy(index, DataParallel.start(batchSize, dp.workers, p), ws.index, 0, ws.index.length);
+                sampling(train, ws.index, ws.x);
+                samplingLabel(train, ws.index, ws.t);
+                metrics.record(Metrics.Phase.SAMPLING, start);
+                ws.gradient(ws.x, ws.t);
+            });
+            // 勾配を要素の範囲ごとに分担して足し合わせ、最適化手法で重みを更新
+            long start = System.nanoTime();
+            double scale = 1.0 / batchSize;
+            optimizer.begin();
+            dp.run(p -> {
+                for (int q = 0; q < weights.length; q++) {
+                    DataParallel.reduceStripe(grads[q], weights[q], optimizer, q, scale, p, dp.workers);
+                }
+            });
+            metrics.record(Metrics.Phase.UPDATE, start);
+            metrics.step();
+        }
+    }
+}
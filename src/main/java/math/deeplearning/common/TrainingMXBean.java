@@ -0,0 +1,40 @@
+package math.deeplearning.common;
+
+/**
+ * JMXで公開する学習の統計.
+ * <p>
+ * 「直近」の値は {@link Metrics} が最後に集計した区間(既定では10秒)のもの。
+ */
+public interface TrainingMXBean {
+    // 学習したステップ数とデータ数(開始からの合計)
+    long getSteps();
+
+    long getSamples();
+
+    // 直近の1秒あたりの学習データ数
+    double getSamplesPerSecond();
+
+    // 直近の1ステップあたりの各処理の時間(マイクロ秒)
+    double getSamplingMicros();
+
+    double getForwardMicros();
+
+    double getBackwardMicros();
+
+    double getUpdateMicros();
+
+    double getEvaluationMicros();
+
+    // 直近の1ステップあたりのヒープ割り当て(バイト, 全スレッドの合計)
+    double getAllocatedBytesPerStep();
+
+    // GCにかかった時間と回数(開始からの合計)
+    long getGcMillis();
+
+    long getGcCount();
+
+    // 最後の評価の誤差と精度(まだ評価していなければNaN)
+    double getLastLoss();
+
+    double getLastAccuracy();
+}
@@ -1,10 +1,11 @@
 package math.deeplearning.common;
 
+import org.apache.commons.math3.exception.DimensionMismatchException;
 import org.apache.commons.math3.linear.*;
 import java.io.*;
 import java.net.*;
 import java.util.*;
-import java.util.zip.GZIPInputStream;
+import java.util.function.Consumer;
 
 public class Util {
     // #########################
@@ -25,13 +26,34 @@ public class Util {
     public static final String MNIST_TEST_LABEL_FILE_NAME = "t10k-labels-idx1-ubyte.gz";
     private static final String MNIST_DIR_NAME = "./dataset/mnist";
 
+    // shuffle, randIndex, initW, newRandomで使い回す乱数生成器(setSeedで再現性のある結果にできる)
+    private static final Random RAND = new Random();
+
+    // 要素ごとの計算と総和の実装(JDK 17以降ではVector APIの実装になることがある)
+    private static final Kernels KERNELS = Kernels.INSTANCE;
+
     // #########################
     // # Math Functions
     // #########################
+    // 結果を書き込む行列rMを受け取る関数は、rMにaMを渡すとin-placeで計算する
     public static RealMatrix add(RealMatrix aM, RealMatrix bM) {
         return aM.add(bM);
     }
 
+    public static RealMatrix add(RealMatrix aM, RealMatrix bM, RealMatrix rM) {
+        MatrixUtils.checkAdditionCompatible(aM, bM);
+        MatrixUtils.checkAdditionCompatible(aM, rM);
+        double[][] aA2 = dataRef(aM);
+        double[][] bA2 = dataRef(bM);
+        double[][] rA2 = dataRef(rM);
+        for (int i = 0; i < aA2.length; i++) {
+            for (int j = 0; j < aA2[i].length; j++) {
+                rA2[i][j] = aA2[i][j] + bA2[i][j];
+            }
+        }
+        return writeBack(rA2, rM);
+    }
+
     public static RealMatrix add(RealMatrix aM, double b) {
         return aM.scalarAdd(b);
     }
@@ -44,6 +66,20 @@ public class Util {
         return aM.subtract(bM);
     }
 
+    public static RealMatrix sub(RealMatrix aM, RealMatrix bM, RealMatrix rM) {
+        MatrixUtils.checkSubtractionCompatible(aM, bM);
+        MatrixUtils.checkSubtractionCompatible(aM, rM);
+        double[][] aA2 = dataRef(aM);
+        double[][] bA2 = dataRef(bM);
+        double[][] rA2 = dataRef(rM);
+        for (int i = 0; i < aA2.length; i++) {
+            for (int j = 0; j < aA2[i].length; j++) {
+                rA2[i][j] = aA2[i][j] - bA2[i][j];
+            }
+        }
+        return writeBack(rA2, rM);
+    }
+
     public static RealVector sub(RealVector aV, RealVector bV) {
         return aV.subtract(bV);
     }
@@ -52,16 +88,30 @@ public class Util {
         return aM.scalarMultiply(b);
     }
 
+    public static RealMatrix mult(RealMatrix aM, double b, RealMatrix rM) {
+        MatrixUtils.checkAdditionCompatible(aM, rM);
+        double[][] aA2 = dataRef(aM);
+        double[][] rA2 = dataRef(rM);
+        for (int i = 0; i < aA2.length; i++) {
+            KERNELS.scale(aA2[i], 0, b, rA2[i], 0, aA2[i].length);
+        }
+        return writeBack(rA2, rM);
+    }
+
     public static RealMatrix mult(RealMatrix aM, RealMatrix bM) {
-        double[][] aA2 = aM.getData();
-        double[][] bA2 = bM.getData();
-        double[][] retA2 = new double[aA2.length][aA2[0].length];
+        return mult(aM, bM, newMatrix(aM));
+    }
+
+    public static RealMatrix mult(RealMatrix aM, RealMatrix bM, RealMatrix rM) {
+        MatrixUtils.checkAdditionCompatible(aM, bM);
+        MatrixUtils.checkAdditionCompatible(aM, rM);
+        double[][] aA2 = dataRef(aM);
+        double[][] bA2 = dataRef(bM);
+        double[][] rA2 = dataRef(rM);
         for (int i = 0; i < aA2.length; i++) {
-            for (int j = 0; j < aA2[i].length; j++) {
-                retA2[i][j] = aA2[i][j] * bA2[i][j];
-            }
+            KERNELS.mult(aA2[i], 0, bA2[i], 0, rA2[i], 0, aA2[i].length);
         }
-        return MatrixUtils.createRealMatrix(retA2);
+        return writeBack(rA2, rM);
     }
 
     public static RealVector mult(RealVector aV, double b) {
@@ -72,33 +122,75 @@ public class Util {
         return aM.scalarMultiply(1 / b);
     }
 
+    public static RealMatrix div(RealMatrix aM, double b, RealMatrix rM) {
+        return mult(aM, 1 / b, rM);
+    }
+
     public static RealVector div(RealVector aV, double b) {
         return aV.mapMultiply(1 / b);
     }
 
     public static RealMatrix dot(RealMatrix aM, RealMatrix bM) {
-        return aM.multiply(bM);
+        // 小さい行列はそのまま計算し、大きい行列はGemmで計算する
+        if (!Gemm.isLarge(aM.getRowDimension(), bM.getColumnDimension(), aM.getColumnDimension())) {
+            return aM.multiply(bM);
+        }
+        return dot(Matrix.of(aM), Matrix.of(bM)).toRealMatrix();
     }
 
     public static RealVector dot(RealMatrix aM, RealVector bV) {
         return aM.operate(bV);
     }
 
-    public static RealMatrix pow(RealMatrix aM, double b) {
-        double[][] pA2 = aM.getData();
-        for (int i = 0; i < pA2.length; i++) {
-            for (int j = 0; j < pA2[i].length; j++) {
-                pA2[i][j] = Math.pow(pA2[i][j], b);
+    // trans(aM)・bM を転置行列を作らずに計算する
+    public static RealMatrix transDot(RealMatrix aM, RealMatrix bM) {
+        if (aM.getRowDimension() != bM.getRowDimension()) {
+            throw new DimensionMismatchException(bM.getRowDimension(), aM.getRowDimension());
+        }
+        if (Gemm.isLarge(aM.getColumnDimension(), bM.getColumnDimension(), aM.getRowDimension())) {
+            return transDot(Matrix.of(aM), Matrix.of(bM)).toRealMatrix();
+        }
+        double[][] aA2 = dataRef(aM);
+        double[][] bA2 = dataRef(bM);
+        double[][] rA2 = new double[aM.getColumnDimension()][bM.getColumnDimension()];
+        for (int p = 0; p < aA2.length; p++) {
+            for (int i = 0; i < aA2[p].length; i++) {
+                double apI = aA2[p][i];
+                for (int j = 0; j < bA2[p].length; j++) {
+                    rA2[i][j] += apI * bA2[p][j];
+                }
             }
         }
-        return MatrixUtils.createRealMatrix(pA2);
+        return new Array2DRowRealMatrix(rA2, false);
+    }
+
+    // trans(aM)・bV を転置行列を作らずに計算する
+    public static RealVector transDot(RealMatrix aM, RealVector bV) {
+        return aM.preMultiply(bV);
+    }
+
+    // aM・trans(bM) を転置行列を作らずに計算する
+    public static RealMatrix dotTrans(RealMatrix aM, RealMatrix bM) {
+        return dotTrans(Matrix.of(aM), Matrix.of(bM)).toRealMatrix();
+    }
+
+    public static RealMatrix pow(RealMatrix aM, double b) {
+        return pow(aM, b, newMatrix(aM));
+    }
+
+    public static RealMatrix pow(RealMatrix aM, double b, RealMatrix rM) {
+        MatrixUtils.checkAdditionCompatible(aM, rM);
+        double[][] aA2 = dataRef(aM);
+        double[][] rA2 = dataRef(rM);
+        for (int i = 0; i < aA2.length; i++) {
+            KERNELS.pow(aA2[i], 0, b, rA2[i], 0, aA2[i].length);
+        }
+        return writeBack(rA2, rM);
     }
 
     public static RealVector pow(RealVector aV, double b) {
         double[] pA = aV.toArray();
-        for (int i = 0; i < pA.length; i++) {
-            pA[i] = Math.pow(pA[i], b);
-        }
+        KERNELS.pow(pA, 0, b, pA, 0, pA.length);
         return MatrixUtils.createRealVector(pA);
     }
 
@@ -108,28 +200,26 @@ public class Util {
 
     public static double mean(RealVector aV) {
         double[] aA = aV.toArray();
-        double sum = 0.0;
-        for (double val : aA) {
-            sum += val;
-        }
-        return sum / aA.length;
+        return KERNELS.sum(aA, 0, aA.length) / aA.length;
     }
 
     public static RealMatrix sigmoid(RealMatrix aM) {
-        double[][] aA2 = aM.getData();
+        return sigmoid(aM, newMatrix(aM));
+    }
+
+    public static RealMatrix sigmoid(RealMatrix aM, RealMatrix rM) {
+        MatrixUtils.checkAdditionCompatible(aM, rM);
+        double[][] aA2 = dataRef(aM);
+        double[][] rA2 = dataRef(rM);
         for (int i = 0; i < aA2.length; i++) {
-            for (int j = 0; j < aA2[i].length; j++) {
-                aA2[i][j] = sigmoid(aA2[i][j]);
-            }
+            KERNELS.sigmoid(aA2[i], 0, rA2[i], 0, aA2[i].length);
         }
-        return MatrixUtils.createRealMatrix(aA2);
+        return writeBack(rA2, rM);
     }
 
     public static RealVector sigmoid(RealVector aV) {
         double[] aA = aV.toArray();
-        for (int i = 0; i < aA.length; i++) {
-            aA[i] = sigmoid(aA[i]);
-        }
+        KERNELS.sigmoid(aA, 0, aA, 0, aA.length);
         return MatrixUtils.createRealVector(aA);
     }
 
@@ -137,62 +227,76 @@ public class Util {
         return 1 / (1 + Math.exp(-a));
     }
 
+    // 最大値を引いてから指数を取るので、大きな値を渡してもオーバーフローしない
     public static RealVector softmax(RealVector aV) {
         double[] aA = aV.toArray();
-        double sum = 0.0;
-        for (int i = 0; i < aA.length; i++) {
-            aA[i] = Math.exp(aA[i]);
-            sum += aA[i];
-        }
-        for (int i = 0; i < aA.length; i++) {
-            aA[i] /= sum;
-        }
+        KERNELS.softmax(aA, 0, aA, 0, aA.length);
         return MatrixUtils.createRealVector(aA);
     }
 
     public static RealMatrix softmax(RealMatrix aM) {
-        double[][] aA2 = aM.getData();
+        return softmax(aM, newMatrix(aM));
+    }
+
+    public static RealMatrix softmax(RealMatrix aM, RealMatrix rM) {
+        MatrixUtils.checkAdditionCompatible(aM, rM);
+        double[][] aA2 = dataRef(aM);
+        double[][] rA2 = dataRef(rM);
         for (int i = 0; i < aA2.length; i++) {
-            double sum = 0.0;
-            for (int j = 0; j < aA2[i].length; j++) {
-                aA2[i][j] = Math.exp(aA2[i][j]);
-                sum += aA2[i][j];
-            }
-            for (int j = 0; j < aA2[i].length; j++) {
-                aA2[i][j] /= sum;
-            }
+            KERNELS.softmax(aA2[i], 0, rA2[i], 0, aA2[i].length);
         }
-        return MatrixUtils.createRealMatrix(aA2);
+        return writeBack(rA2, rM);
+    }
+
+    // softmax(uM) - oneHotEncode(t, クラス数) をgMに書き込み、交差エントロピー誤差と精度を1回の走査で計算する
+    // (詳細は softmaxCrossEntropy(Matrix, int[], Matrix, double[]) を参照)
+    public static RealMatrix softmaxCrossEntropy(RealMatrix uM, int[] t, RealMatrix gM, double[] stats) {
+        if (uM.getRowDimension() != t.length) {
+            throw new DimensionMismatchException(t.length, uM.getRowDimension());
+        }
+        if (gM != null) MatrixUtils.checkAdditionCompatible(uM, gM);
+        double[][] uA2 = dataRef(uM);
+        double[][] gA2 = gM == null ? null : dataRef(gM);
+        for (int i = 0; i < uA2.length; i++) {
+            softmaxCrossEntropyRow(uA2[i], 0, t[i], gA2 == null ? null : gA2[i], 0, uA2[i].length, stats);
+        }
+        return gM == null ? null : writeBack(gA2, gM);
     }
 
     public static RealMatrix reLU(RealMatrix aM) {
-        double[][] aA2 = aM.getData();
+        return reLU(aM, newMatrix(aM));
+    }
+
+    public static RealMatrix reLU(RealMatrix aM, RealMatrix rM) {
+        MatrixUtils.checkAdditionCompatible(aM, rM);
+        double[][] aA2 = dataRef(aM);
+        double[][] rA2 = dataRef(rM);
         for (int i = 0; i < aA2.length; i++) {
-            for (int j = 0; j < aA2[i].length; j++) {
-                if (aA2[i][j] <= 0) aA2[i][j] = 0.0;
-            }
+            KERNELS.reLU(aA2[i], 0, rA2[i], 0, aA2[i].length);
         }
-        return MatrixUtils.createRealMatrix(aA2);
+        return writeBack(rA2, rM);
     }
 
     public static RealMatrix step(RealMatrix aM) {
-        double[][] aA2 = aM.getData();
+        return step(aM, newMatrix(aM));
+    }
+
+    public static RealMatrix step(RealMatrix aM, RealMatrix rM) {
+        MatrixUtils.checkAdditionCompatible(aM, rM);
+        double[][] aA2 = dataRef(aM);
+        double[][] rA2 = dataRef(rM);
         for (int i = 0; i < aA2.length; i++) {
-            for (int j = 0; j < aA2[i].length; j++) {
-                aA2[i][j] = (aA2[i][j] <= 0) ? 0.0 : 1.0;
-            }
+            KERNELS.step(aA2[i], 0, rA2[i], 0, aA2[i].length);
         }
-        return MatrixUtils.createRealMatrix(aA2);
+        return writeBack(rA2, rM);
     }
 
     public static double crossEntropy(RealMatrix tM, RealMatrix pM) {
-        double[][] tA2 = tM.getData();
-        double[][] pA2 = pM.getData();
+        double[][] tA2 = dataRef(tM);
+        double[][] pA2 = dataRef(pM);
         double ce = 0.0;
         for (int i = 0; i < tA2.length; i++) {
-            for (int j = 0; j < tA2[i].length; j++) {
-                ce -= tA2[i][j] * Math.log(pA2[i][j]);
-            }
+            ce -= KERNELS.crossEntropy(tA2[i], 0, pA2[i], 0, tA2[i].length);
         }
         return ce / tA2.length;
     }
@@ -200,11 +304,356 @@ public class Util {
     public static double crossEntropy(RealVector tV, RealVector pV) {
         double[] tA = tV.toArray();
         double[] pA = pV.toArray();
+        return -KERNELS.binaryCrossEntropy(tA, 0, pA, 0, tA.length) / tA.length;
+    }
+
+    // 結果を書き込む行列を作る
+    private static RealMatrix newMatrix(RealMatrix aM) {
+        return new Array2DRowRealMatrix(aM.getRowDimension(), aM.getColumnDimension());
+    }
+
+    // 行列の要素配列を返す(Array2DRowRealMatrix以外はコピーを返す)
+    private static double[][] dataRef(RealMatrix aM) {
+        if (aM instanceof Array2DRowRealMatrix) {
+            return ((Array2DRowRealMatrix) aM).getDataRef();
+        }
+        return aM.getData();
+    }
+
+    // dataRefで取得した要素配列への書き込みを行列に反映する
+    private static RealMatrix writeBack(double[][] rA2, RealMatrix rM) {
+        if (!(rM instanceof Array2DRowRealMatrix)) {
+            rM.setSubMatrix(rA2, 0, 0);
+        }
+        return rM;
+    }
+
+    // #########################
+    // # Matrix Functions
+    // #########################
+    // 結果を書き込む行列rMを受け取る関数は、rMにaMを渡すとin-placeで計算する
+    public static Matrix add(Matrix aM, Matrix bM) {
+        return add(aM, bM, new Matrix(aM.rows, aM.cols));
+    }
+
+    public static Matrix add(Matrix aM, Matrix bM, Matrix rM) {
+        Matrix.checkSameShape(aM, bM);
+        Matrix.checkSameShape(aM, rM);
+        for (int i = 0; i < aM.rows; i++) {
+            int a = aM.index(i), b = bM.index(i), r = rM.index(i);
+            for (int j = 0; j < aM.cols; j++) {
+                rM.data[r + j] = aM.data[a + j] + bM.data[b + j];
+            }
+        }
+        return rM;
+    }
+
+    public static Matrix add(Matrix aM, double b) {
+        return add(aM, b, new Matrix(aM.rows, aM.cols));
+    }
+
+    public static Matrix add(Matrix aM, double b, Matrix rM) {
+        Matrix.checkSameShape(aM, rM);
+        for (int i = 0; i < aM.rows; i++) {
+            int a = aM.index(i), r = rM.index(i);
+            for (int j = 0; j < aM.cols; j++) {
+                rM.data[r + j] = aM.data[a + j] + b;
+            }
+        }
+        return rM;
+    }
+
+    public static Matrix sub(Matrix aM, Matrix bM) {
+        return sub(aM, bM, new Matrix(aM.rows, aM.cols));
+    }
+
+    public static Matrix sub(Matrix aM, Matrix bM, Matrix rM) {
+        Matrix.checkSameShape(aM, bM);
+        Matrix.checkSameShape(aM, rM);
+        for (int i = 0; i < aM.rows; i++) {
+            int a = aM.index(i), b = bM.index(i), r = rM.index(i);
+            for (int j = 0; j < aM.cols; j++) {
+                rM.data[r + j] = aM.data[a + j] - bM.data[b + j];
+            }
+        }
+        return rM;
+    }
+
+    public static Matrix mult(Matrix aM, double b) {
+        return mult(aM, b, new Matrix(aM.rows, aM.cols));
+    }
+
+    public static Matrix mult(Matrix aM, double b, Matrix rM) {
+        Matrix.checkSameShape(aM, rM);
+        for (int i = 0; i < aM.rows; i++) {
+            int a = aM.index(i), r = rM.index(i);
+            KERNELS.scale(aM.data, a, b, rM.data, r, aM.cols);
+        }
+        return rM;
+    }
+
+    public static Matrix mult(Matrix aM, Matrix bM) {
+        return mult(aM, bM, new Matrix(aM.rows, aM.cols));
+    }
+
+    public static Matrix mult(Matrix aM, Matrix bM, Matrix rM) {
+        Matrix.checkSameShape(aM, bM);
+        Matrix.checkSameShape(aM, rM);
+        for (int i = 0; i < aM.rows; i++) {
+            int a = aM.index(i), b = bM.index(i), r = rM.index(i);
+            KERNELS.mult(aM.data, a, bM.data, b, rM.data, r, aM.cols);
+        }
+        return rM;
+    }
+
+    public static Matrix div(Matrix aM, double b) {
+        return mult(aM, 1 / b);
+    }
+
+    public static Matrix div(Matrix aM, double b, Matrix rM) {
+        return mult(aM, 1 / b, rM);
+    }
+
+    public static Matrix dot(Matrix aM, Matrix bM) {
+        return Gemm.multiply(aM, bM, new Matrix(aM.rows, bM.cols));
+    }
+
+    public static Matrix dot(Matrix aM, Matrix bM, Matrix rM) {
+        return Gemm.multiply(aM, bM, rM);
+    }
+
+    // addBiasCol(aM)・wM をダミー変数1の列を付加せずに計算する(wMの先頭行がバイアス)
+    public static Matrix dotBias(Matrix aM, Matrix wM) {
+        return Gemm.multiplyBias(aM, wM, new Matrix(aM.rows, wM.cols));
+    }
+
+    public static Matrix dotBias(Matrix aM, Matrix wM, Matrix rM) {
+        return Gemm.multiplyBias(aM, wM, rM);
+    }
+
+    // trans(addBiasCol(aM))・bM をダミー変数1の列を付加せずに計算する
+    public static Matrix transDotBias(Matrix aM, Matrix bM) {
+        return Gemm.multiplyTransABias(aM, bM, new Matrix(aM.cols + 1, bM.cols));
+    }
+
+    public static Matrix transDotBias(Matrix aM, Matrix bM, Matrix rM) {
+        return Gemm.multiplyTransABias(aM, bM, rM);
+    }
+
+    // trans(aM)・bM を転置行列を作らずに計算する
+    public static Matrix transDot(Matrix aM, Matrix bM) {
+        return Gemm.multiplyTransA(aM, bM, new Matrix(aM.cols, bM.cols));
+    }
+
+    public static Matrix transDot(Matrix aM, Matrix bM, Matrix rM) {
+        return Gemm.multiplyTransA(aM, bM, rM);
+    }
+
+    // aM・trans(bM) を転置行列を作らずに計算する
+    public static Matrix dotTrans(Matrix aM, Matrix bM) {
+        return Gemm.multiplyTransB(aM, bM, new Matrix(aM.rows, bM.rows));
+    }
+
+    public static Matrix dotTrans(Matrix aM, Matrix bM, Matrix rM) {
+        return Gemm.multiplyTransB(aM, bM, rM);
+    }
+
+    // 疎行列aMとの積. 0でない要素が多いときは密行列にしてから計算する
+    public static Matrix dot(SparseMatrix aM, Matrix bM) {
+        return dot(aM, bM, new Matrix(aM.rows(), bM.cols));
+    }
+
+    public static Matrix dot(SparseMatrix aM, Matrix bM, Matrix rM) {
+        if (!aM.isSparse()) return Gemm.multiply(aM.toDense(), bM, rM);
+        return Gemm.multiply(aM, bM, rM);
+    }
+
+    public static Matrix dotBias(SparseMatrix aM, Matrix wM) {
+        return dotBias(aM, wM, new Matrix(aM.rows(), wM.cols));
+    }
+
+    public static Matrix dotBias(SparseMatrix aM, Matrix wM, Matrix rM) {
+        if (!aM.isSparse()) return Gemm.multiplyBias(aM.toDense(), wM, rM);
+        return Gemm.multiplyBias(aM, wM, rM);
+    }
+
+    public static Matrix transDotBias(SparseMatrix aM, Matrix bM) {
+        return transDotBias(aM, bM, new Matrix(aM.cols + 1, bM.cols));
+    }
+
+    public static Matrix transDotBias(SparseMatrix aM, Matrix bM, Matrix rM) {
+        if (!aM.isSparse()) return Gemm.multiplyTransABias(aM.toDense(), bM, rM);
+        return Gemm.multiplyTransABias(aM, bM, rM);
+    }
+
+    public static Matrix transDot(SparseMatrix aM, Matrix bM) {
+        return transDot(aM, bM, new Matrix(aM.cols, bM.cols));
+    }
+
+    public static Matrix transDot(SparseMatrix aM, Matrix bM, Matrix rM) {
+        if (!aM.isSparse()) return Gemm.multiplyTransA(aM.toDense(), bM, rM);
+        return Gemm.multiplyTransA(aM, bM, rM);
+    }
+
+    public static Matrix pow(Matrix aM, double b) {
+        return pow(aM, b, new Matrix(aM.rows, aM.cols));
+    }
+
+    public static Matrix pow(Matrix aM, double b, Matrix rM) {
+        Matrix.checkSameShape(aM, rM);
+        for (int i = 0; i < aM.rows; i++) {
+            int a = aM.index(i), r = rM.index(i);
+            KERNELS.pow(aM.data, a, b, rM.data, r, aM.cols);
+        }
+        return rM;
+    }
+
+    public static Matrix trans(Matrix aM) {
+        Matrix rM = new Matrix(aM.cols, aM.rows);
+        for (int i = 0; i < aM.rows; i++) {
+            int a = aM.index(i);
+            for (int j = 0; j < aM.cols; j++) {
+                rM.data[j * rM.stride + i] = aM.data[a + j];
+            }
+        }
+        return rM;
+    }
+
+    public static Matrix sigmoid(Matrix aM) {
+        return sigmoid(aM, new Matrix(aM.rows, aM.cols));
+    }
+
+    public static Matrix sigmoid(Matrix aM, Matrix rM) {
+        Matrix.checkSameShape(aM, rM);
+        for (int i = 0; i < aM.rows; i++) {
+            int a = aM.index(i), r = rM.index(i);
+            KERNELS.sigmoid(aM.data, a, rM.data, r, aM.cols);
+        }
+        return rM;
+    }
+
+    public static Matrix softmax(Matrix aM) {
+        return softmax(aM, new Matrix(aM.rows, aM.cols));
+    }
+
+    public static Matrix softmax(Matrix aM, Matrix rM) {
+        Matrix.checkSameShape(aM, rM);
+        for (int i = 0; i < aM.rows; i++) {
+            KERNELS.softmax(aM.data, aM.index(i), rM.data, rM.index(i), aM.cols);
+        }
+        return rM;
+    }
+
+    public static Matrix reLU(Matrix aM) {
+        return reLU(aM, new Matrix(aM.rows, aM.cols));
+    }
+
+    public static Matrix reLU(Matrix aM, Matrix rM) {
+        Matrix.checkSameShape(aM, rM);
+        for (int i = 0; i < aM.rows; i++) {
+            int a = aM.index(i), r = rM.index(i);
+            KERNELS.reLU(aM.data, a, rM.data, r, aM.cols);
+        }
+        return rM;
+    }
+
+    public static Matrix step(Matrix aM) {
+        return step(aM, new Matrix(aM.rows, aM.cols));
+    }
+
+    public static Matrix step(Matrix aM, Matrix rM) {
+        Matrix.checkSameShape(aM, rM);
+        for (int i = 0; i < aM.rows; i++) {
+            int a = aM.index(i), r = rM.index(i);
+            KERNELS.step(aM.data, a, rM.data, r, aM.cols);
+        }
+        return rM;
+    }
+
+    // aM - oneHotEncode(t) を計算する
+    public static Matrix subOneHot(Matrix aM, int[] t, Matrix rM) {
+        if (aM != rM) aM.copyTo(rM);
+        for (int i = 0; i < t.length; i++) {
+            rM.data[rM.index(i) + t[i]] -= 1.0;
+        }
+        return rM;
+    }
+
+    /**
+     * softmax(uM) - oneHotEncode(t) をgMに書き込み、交差エントロピー誤差と精度を1回の走査で計算する.
+     * <p>
+     * 行ごとに最大値を引いて log(Σexp(u)) を計算するので、値が大きくてもオーバーフローせず、
+     * 予測確率が0に丸められても誤差が無限大にならない。正解ラベルはクラス番号で受け取るので
+     * one-hot形式の行列は作らない。
+     *
+     * @param uM    出力層の入力(ソフトマックス関数を通す前の値)
+     * @param t     正解ラベル(クラス番号)
+     * @param gM    誤差 yp - yt を書き込む行列(uMを渡すとin-place、nullなら書き込まない)
+     * @param stats stats[0]に誤差の合計、stats[1]に正解数を足し込む(nullなら足し込まない)
+     * @return gM
+     */
+    public static Matrix softmaxCrossEntropy(Matrix uM, int[] t, Matrix gM, double[] stats) {
+        if (uM.rows != t.length) {
+            throw new IllegalArgumentException("labels " + t.length + " != rows " + uM.rows);
+        }
+        if (gM != null) Matrix.checkSameShape(uM, gM);
+        for (int i = 0; i < uM.rows; i++) {
+            softmaxCrossEntropyRow(uM.data, uM.index(i), t[i],
+                    gM == null ? null : gM.data, gM == null ? 0 : gM.index(i), uM.cols, stats);
+        }
+        return gM;
+    }
+
+    // 1行分のsoftmaxCrossEntropyを計算する
+    private static void softmaxCrossEntropyRow(double[] u, int up, int t, double[] g, int gp, int n, double[] stats) {
+        // 最大値とその位置(予測したクラス)
+        int argmax = 0;
+        double max = u[up];
+        for (int j = 1; j < n; j++) {
+            if (u[up + j] > max) {
+                argmax = j;
+                max = u[up + j];
+            }
+        }
+        // gにuを渡すと上書きされるので、先に正解クラスの値を読んでおく
+        double ut = u[up + t];
         double sum = 0.0;
-        for (int i = 0; i < tA.length; i++) {
-            sum -= tA[i] * Math.log(pA[i]) + (1 - tA[i]) * Math.log(1 - pA[i]);
+        if (g != null) {
+            for (int j = 0; j < n; j++) {
+                double e = Math.exp(u[up + j] - max);
+                g[gp + j] = e;
+                sum += e;
+            }
+        } else {
+            for (int j = 0; j < n; j++) sum += Math.exp(u[up + j] - max);
         }
-        return sum / tA.length;
+        if (stats != null) {
+            // -log(softmax(u)[t]) = log(Σexp(u - max)) + max - u[t]
+            stats[0] += Math.log(sum) + max - ut;
+            if (argmax == t) stats[1]++;
+        }
+        if (g != null) {
+            double inv = 1.0 / sum;
+            for (int j = 0; j < n; j++) g[gp + j] *= inv;
+            g[gp + t] -= 1.0;
+        }
+    }
+
+    public static double crossEntropy(int[] t, Matrix pM) {
+        double ce = 0.0;
+        for (int i = 0; i < t.length; i++) {
+            ce -= Math.log(pM.data[pM.index(i) + t[i]]);
+        }
+        return ce / t.length;
+    }
+
+    public static double crossEntropy(Matrix tM, Matrix pM) {
+        Matrix.checkSameShape(tM, pM);
+        double ce = 0.0;
+        for (int i = 0; i < tM.rows; i++) {
+            ce -= KERNELS.crossEntropy(tM.data, tM.index(i), pM.data, pM.index(i), tM.cols);
+        }
+        return ce / tM.rows;
     }
 
     // #########################
@@ -232,24 +681,30 @@ public class Util {
     }
 
     public static RealMatrix loadBoston() throws IOException {
-        download(BOSTON_BASE_URL, BOSTON_DIR_NAME, BOSTON_FILE_NAME);
+        List<double[]> rows = new ArrayList<>(506);
+        scanBoston(rows::add);
+        return MatrixUtils.createRealMatrix(rows.toArray(new double[0][]));
+    }
 
-        BufferedReader br = new BufferedReader(new FileReader(new File(BOSTON_DIR_NAME + "/" + BOSTON_FILE_NAME)));
-        for (int i = 0; i < 22; i++) br.readLine();
+    // The Boston Housing Datasetを先頭から1行(14列)ずつ読み込んでconsumerに渡す(全体をメモリに置かない)
+    public static void scanBoston(Consumer<double[]> consumer) throws IOException {
+        download(BOSTON_BASE_URL, BOSTON_DIR_NAME, BOSTON_FILE_NAME);
 
-        double[][] valA2 = new double[506][14];
-        String line;
-        int i = 0;
-        while ((line = br.readLine()) != null && !"".equals(line)) {
-            line = line.trim().replaceAll(" +", " ");
-            line += " " + br.readLine().trim().replaceAll(" +", " ");
-            String[] valA = line.split(" ");
-            for (int j = 0; j < valA.length; j++) {
-                valA2[i][j] = Double.parseDouble(valA[j]);
+        try (BufferedReader br = new BufferedReader(new FileReader(new File(BOSTON_DIR_NAME + "/" + BOSTON_FILE_NAME)))) {
+            for (int i = 0; i < 22; i++) br.readLine();
+
+            String line;
+            while ((line = br.readLine()) != null && !"".equals(line)) {
+                line = line.trim().replaceAll(" +", " ");
+                line += " " + br.readLine().trim().replaceAll(" +", " ");
+                String[] valA = line.split(" ");
+                double[] row = new double[14];
+                for (int j = 0; j < valA.length; j++) {
+                    row[j] = Double.parseDouble(valA[j]);
+                }
+                consumer.accept(row);
             }
-            i++;
         }
-        return MatrixUtils.createRealMatrix(valA2);
     }
 
     public static RealMatrix loadIris() throws IOException {
@@ -282,49 +737,88 @@ public class Util {
     }
 
     public static RealMatrix loadMnistImage(String fileName) throws IOException {
-        download(MNIST_BASE_URL, MNIST_DIR_NAME, fileName);
-
-        DataInputStream dis = new DataInputStream(new GZIPInputStream(new FileInputStream(MNIST_DIR_NAME + "/" + fileName)));
-        dis.readInt();
-        int numImg = dis.readInt();
-        int numDim = dis.readInt() * dis.readInt();
+        return loadMnistImage(openMnist(fileName));
+    }
 
-        double[][] imgA2 = new double[numImg][numDim];
-        for (int i = 0; i < numImg; i++) {
-            for (int j = 0; j < numDim; j++) {
-                imgA2[i][j] = (double) dis.readUnsignedByte();
+    // 開いたキャッシュファイルの画像を行列に読み込む
+    public static RealMatrix loadMnistImage(MnistCache cache) {
+        double[][] imgA2 = new double[cache.count][cache.dim];
+        for (int i = 0; i < cache.count; i++) {
+            for (int j = 0; j < cache.dim; j++) {
+                imgA2[i][j] = cache.get(i, j);
             }
         }
-        return MatrixUtils.createRealMatrix(imgA2);
+        return new Array2DRowRealMatrix(imgA2, false);
     }
 
     public static RealVector loadMnistLabel(String fileName) throws IOException {
-        download(MNIST_BASE_URL, MNIST_DIR_NAME, fileName);
+        MnistCache cache = openMnist(fileName);
+        double[] labelA = new double[cache.count];
+        for (int i = 0; i < cache.count; i++) {
+            labelA[i] = cache.get(i, 0);
+        }
+        return new ArrayRealVector(labelA, false);
+    }
+
+    // MNISTの画像とラベルを、画素値を1バイトのまま保持するデータセットとして読み込む
+    public static ByteDataset loadMnist(String imageFileName, String labelFileName) throws IOException {
+        return ByteDataset.of(openMnist(imageFileName), openMnist(labelFileName), 10, 1.0 / 255);
+    }
 
-        DataInputStream dis = new DataInputStream(new GZIPInputStream(new FileInputStream(MNIST_DIR_NAME + "/" + fileName)));
-        dis.readInt();
-        int numLabel = dis.readInt();
+    // MNISTのキャッシュファイルを開く(初回はダウンロードしてgzipを展開する)
+    public static MnistCache openMnist(String fileName) throws IOException {
+        download(MNIST_BASE_URL, MNIST_DIR_NAME, fileName);
+        return MnistCache.open(MNIST_DIR_NAME, fileName);
+    }
 
-        double[] labelA = new double[numLabel];
-        for (int i = 0; i < numLabel; i++) {
-            labelA[i] = dis.readUnsignedByte();
-        }
-        return MatrixUtils.createRealVector(labelA);
+    // MNISTの画像とラベルのデータセットを開く. システムプロパティ math.deeplearning.stream に行数を指定したら、
+    // メモリマップせずにその行数(チャンク)ずつファイルから読み込む(ヒープの使用量がデータ数によらない)
+    public static Dataset mnistDataset(String imageFileName, String labelFileName) throws IOException {
+        int chunkRows = Integer.getInteger("math.deeplearning.stream", 0);
+        if (chunkRows <= 0) return loadMnist(imageFileName, labelFileName);
+        download(MNIST_BASE_URL, MNIST_DIR_NAME, imageFileName);
+        download(MNIST_BASE_URL, MNIST_DIR_NAME, labelFileName);
+        return FileDataset.open(MnistCache.prepare(MNIST_DIR_NAME, imageFileName),
+                MnistCache.prepare(MNIST_DIR_NAME, labelFileName), 10, 1.0 / 255, chunkRows);
     }
 
 
     // #########################
     // # Other Utility Functions
     // #########################
+    // shuffle, randIndex, initWで使う乱数のシードを設定する
+    public static void setSeed(long seed) {
+        RAND.setSeed(seed);
+    }
+
+    // シードをRANDから取った乱数生成器を作る(setSeedすればサンプラーなどの乱数も再現できる)
+    public static Random newRandom() {
+        return new Random(RAND.nextLong());
+    }
+
     public static RealMatrix addBiasCol(RealMatrix aM) {
-        double[][] aA2 = new double[aM.getRowDimension()][aM.getColumnDimension() + 1];
-        for (int i = 0; i < aM.getRowDimension(); i++) {
-            aA2[i][0] = 1.0;
-            for (int j = 0; j < aM.getColumnDimension(); j++) {
-                aA2[i][j + 1] = aM.getEntry(i, j);
-            }
+        double[][] aA2 = dataRef(aM);
+        double[][] rA2 = new double[aM.getRowDimension()][aM.getColumnDimension() + 1];
+        for (int i = 0; i < rA2.length; i++) {
+            rA2[i][0] = 1.0;
+            System.arraycopy(aA2[i], 0, rA2[i], 1, aA2[i].length);
+        }
+        return new Array2DRowRealMatrix(rA2, false);
+    }
+
+    public static Matrix addBiasCol(Matrix aM) {
+        Matrix rM = new Matrix(aM.rows, aM.cols + 1);
+        for (int i = 0; i < aM.rows; i++) {
+            int r = rM.index(i);
+            rM.data[r] = 1.0;
+            System.arraycopy(aM.data, aM.index(i), rM.data, r + 1, aM.cols);
         }
-        return MatrixUtils.createRealMatrix(aA2);
+        return rM;
+    }
+
+    // 先頭行(バイアス)を除いたビューを返す(コピーしない)
+    public static Matrix removeBias(Matrix aM) {
+        return aM.rows(1, aM.rows);
     }
 
     public static RealMatrix removeBias(RealMatrix aM) {
@@ -361,6 +855,15 @@ public class Util {
         return aV.getSubVector(start, end - start + 1);
     }
 
+    // クラス番号を並べたベクトルをint配列に変換する
+    public static int[] toLabels(RealVector aV) {
+        int[] rA = new int[aV.getDimension()];
+        for (int i = 0; i < rA.length; i++) {
+            rA[i] = (int) aV.getEntry(i);
+        }
+        return rA;
+    }
+
     public static RealMatrix oneHotEncode(RealVector aV, int classNum) {
         double[] aA = aV.toArray();
         RealMatrix aM = MatrixUtils.createRealMatrix(aV.getDimension(), classNum);
@@ -387,36 +890,32 @@ public class Util {
         }
     }
 
+    // 行の順序をランダムに並べ替える(Fisher-Yates)
     public static RealMatrix shuffle(RealMatrix aM) {
-        double[][] aA2 = aM.getData();
-        RealMatrix retM = MatrixUtils.createRealMatrix(aM.getRowDimension(), aM.getColumnDimension());
-
-        List<Integer> indexes = new ArrayList<>();
-        for (int i = 0; i < aM.getRowDimension(); i++) {
-            indexes.add(i);
-        }
-
-        Random rand = new Random();
-        for (int i = 0; i < aM.getRowDimension(); i++) {
-            int index = rand.nextInt(indexes.size());
-            retM.setRow(indexes.get(index), aA2[i]);
-            indexes.remove(index);
+        double[][] aA2 = dataRef(aM);
+        int[] perm = Sampler.permutation(aA2.length, RAND);
+        double[][] rA2 = new double[aA2.length][];
+        for (int i = 0; i < aA2.length; i++) {
+            rA2[i] = aA2[perm[i]].clone();
         }
-        return retM;
+        return new Array2DRowRealMatrix(rA2, false);
     }
 
+    // indexesから重複なしでsize個選び、選んだものはindexesから取り除く
+    // (末尾の要素と入れ替えてから取り除くので、1つ選ぶのにかかる時間はデータ数によらない)
     public static List<Integer> randIndex(List<Integer> indexes, int total, int size) {
         if (indexes.size() < size) {
             indexes.clear();
             for (int i = 0; i < total; i++) indexes.add(i);
         }
 
-        Random rand = new Random();
-        List<Integer> list = new ArrayList<>();
+        List<Integer> list = new ArrayList<>(size);
         for (int i = 0; i < size; i++) {
-            int index = rand.nextInt(indexes.size());
+            int index = RAND.nextInt(indexes.size());
+            int last = indexes.size() - 1;
             list.add(indexes.get(index));
-            indexes.remove(index);
+            indexes.set(index, indexes.get(last));
+            indexes.remove(last);
         }
         return list;
     }
@@ -429,6 +928,70 @@ public class Util {
         return rM;
     }
 
+    public static Matrix sampling(Matrix aM, List<Integer> index) {
+        Matrix rM = new Matrix(index.size(), aM.cols);
+        for (int i = 0; i < index.size(); i++) {
+            System.arraycopy(aM.data, aM.index(index.get(i)), rM.data, rM.index(i), aM.cols);
+        }
+        return rM;
+    }
+
+    public static Matrix sampling(Matrix aM, int[] index, Matrix rM) {
+        if (rM.rows != index.length || rM.cols != aM.cols) {
+            throw new IllegalArgumentException("shape mismatch: " + index.length + "x" + aM.cols
+                    + " vs " + rM.rows + "x" + rM.cols);
+        }
+        for (int i = 0; i < index.length; i++) {
+            System.arraycopy(aM.data, aM.index(index[i]), rM.data, rM.index(i), aM.cols);
+        }
+        return rM;
+    }
+
+    public static Matrix sampling(Dataset ds, List<Integer> index) {
+        int[] indexA = new int[index.size()];
+        for (int i = 0; i < indexA.length; i++) indexA[i] = index.get(i);
+        return ds.gather(indexA, new Matrix(indexA.length, ds.cols));
+    }
+
+    // 選んだ行の画素値を正規化してrMに読み込む
+    public static Matrix sampling(Dataset ds, int[] index, Matrix rM) {
+        return ds.gather(index, rM);
+    }
+
+    public static SparseMatrix sampling(Matrix aM, int[] index, SparseMatrix rM) {
+        SparseMatrix.checkCols(aM.cols, rM);
+        rM.clear();
+        for (int i : index) {
+            int a = aM.index(i);
+            for (int j = 0; j < aM.cols; j++) {
+                if (aM.data[a + j] != 0.0) rM.add(j, aM.data[a + j]);
+            }
+            rM.endRow();
+        }
+        return rM;
+    }
+
+    // 選んだ行の0でない画素値だけを疎行列に読み込む
+    public static SparseMatrix samplingSparse(Dataset ds, List<Integer> index) {
+        int[] indexA = new int[index.size()];
+        for (int i = 0; i < indexA.length; i++) indexA[i] = index.get(i);
+        return ds.gather(indexA, new SparseMatrix(indexA.length, ds.cols, indexA.length * ds.cols / 4));
+    }
+
+    public static SparseMatrix sampling(Dataset ds, int[] index, SparseMatrix rM) {
+        return ds.gather(index, rM);
+    }
+
+    public static int[] samplingLabel(Dataset ds, List<Integer> index) {
+        int[] t = new int[index.size()];
+        for (int i = 0; i < t.length; i++) t[i] = ds.label(index.get(i));
+        return t;
+    }
+
+    public static int[] samplingLabel(Dataset ds, int[] index, int[] t) {
+        return ds.gatherLabels(index, t);
+    }
+
     public static double calcAccuracy(RealVector tV, RealVector pV) {
         double[] tA = tV.toArray();
         double[] pA = pV.toArray();
@@ -444,8 +1007,8 @@ public class Util {
     }
 
     public static double calcAccuracy(RealMatrix tM, RealMatrix pM) {
-        double[][] tA2 = tM.getData();
-        double[][] pA2 = pM.getData();
+        double[][] tA2 = dataRef(tM);
+        double[][] pA2 = dataRef(pM);
         double ans = 0;
         for (int i = 0; i < tA2.length; i++) {
             int maxIndex = 0;
@@ -463,12 +1026,50 @@ public class Util {
         return ans / tA2.length;
     }
 
+    public static double calcAccuracy(Matrix tM, Matrix pM) {
+        Matrix.checkSameShape(tM, pM);
+        double ans = 0;
+        for (int i = 0; i < tM.rows; i++) {
+            int t = tM.index(i), p = pM.index(i);
+            int maxIndex = 0;
+            double max = 0.0;
+            for (int j = 0; j < tM.cols; j++) {
+                if (pM.data[p + j] > max) {
+                    maxIndex = j;
+                    max = pM.data[p + j];
+                }
+            }
+            if (tM.data[t + maxIndex] == 1.0) {
+                ans++;
+            }
+        }
+        return ans / tM.rows;
+    }
+
+    public static double calcAccuracy(int[] t, Matrix pM) {
+        double ans = 0;
+        for (int i = 0; i < t.length; i++) {
+            int p = pM.index(i);
+            int maxIndex = 0;
+            double max = 0.0;
+            for (int j = 0; j < pM.cols; j++) {
+                if (pM.data[p + j] > max) {
+                    maxIndex = j;
+                    max = pM.data[p + j];
+                }
+            }
+            if (maxIndex == t[i]) {
+                ans++;
+            }
+        }
+        return ans / t.length;
+    }
+
     public static RealMatrix initW(int inDim, int outDim) {
         double[][] wA2 = new double[inDim][outDim];
-        Random rand = new Random();
         for (int i = 0; i < wA2.length; i++) {
             for (int j = 0; j < wA2[i].length; j++) {
-                wA2[i][j] = rand.nextGaussian() / Math.sqrt(inDim / 2);
+                wA2[i][j] = RAND.nextGaussian() / Math.sqrt(inDim / 2);
             }
         }
 
@@ -0,0 +1,244 @@
+package math.deeplearning.common;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link Kernels} のVector API(jdk.incubator.vector)による実装.
+ * <p>
+ * CPUが一度に計算できる長さ(SPECIES_PREFERRED)のベクトルで計算し、端数の要素はスカラーで計算する。
+ * マルチリリースjarの META-INF/versions/17 に入り、JDK 17以降で
+ * --add-modules jdk.incubator.vector を付けたときだけ {@link Kernels#INSTANCE} に選ばれる。
+ * 積和は融合積和(fma)で計算し、総和はベクトルの要素ごとに足してから最後に足し合わせるので、
+ * スカラーの実装とは丸め誤差の分だけ結果が違う。
+ */
+final class VectorKernels extends Kernels {
+    private static final VectorSpecies<Double> S = DoubleVector.SPECIES_PREFERRED;
+    private static final int L = S.length();
+
+    VectorKernels() {
+        // ベクトルの長さが1ならスカラーの実装と変わらないので使わない
+        if (L < 2) throw new UnsupportedOperationException("no SIMD: " + S);
+    }
+
+    @Override
+    String name() {
+        return "vector(" + L + " x double)";
+    }
+
+    @Override
+    void sigmoid(double[] a, int ap, double[] r, int rp, int n) {
+        DoubleVector one = DoubleVector.broadcast(S, 1.0);
+        int j = 0;
+        for (int end = S.loopBound(n); j < end; j += L) {
+            DoubleVector e = DoubleVector.fromArray(S, a, ap + j).neg().lanewise(VectorOperators.EXP);
+            one.div(e.add(1.0)).intoArray(r, rp + j);
+        }
+        for (; j < n; j++) r[rp + j] = 1 / (1 + Math.exp(-a[ap + j]));
+    }
+
+    @Override
+    void reLU(double[] a, int ap, double[] r, int rp, int n) {
+        int j = 0;
+        for (int end = S.loopBound(n); j < end; j += L) {
+            DoubleVector v = DoubleVector.fromArray(S, a, ap + j);
+            // (スカラーと同じく、0以下(-0.0を含む)を0にし、NaNはそのまま残す)
+            v.blend(0.0, v.compare(VectorOperators.LE, 0.0)).intoArray(r, rp + j);
+        }
+        for (; j < n; j++) {
+            double val = a[ap + j];
+            r[rp + j] = (val <= 0) ? 0.0 : val;
+        }
+    }
+
+    @Override
+    void step(double[] a, int ap, double[] r, int rp, int n) {
+        DoubleVector one = DoubleVector.broadcast(S, 1.0);
+        int j = 0;
+        for (int end = S.loopBound(n); j < end; j += L) {
+            VectorMask<Double> le = DoubleVector.fromArray(S, a, ap + j).compare(VectorOperators.LE, 0.0);
+            one.blend(0.0, le).intoArray(r, rp + j);
+        }
+        for (; j < n; j++) r[rp + j] = (a[ap + j] <= 0) ? 0.0 : 1.0;
+    }
+
+    @Override
+    void mult(double[] a, int ap, double[] b, int bp, double[] r, int rp, int n) {
+        int j = 0;
+        for (int end = S.loopBound(n); j < end; j += L) {
+            DoubleVector.fromArray(S, a, ap + j).mul(DoubleVector.fromArray(S, b, bp + j)).intoArray(r, rp + j);
+        }
+        for (; j < n; j++) r[rp + j] = a[ap + j] * b[bp + j];
+    }
+
+    @Override
+    void scale(double[] a, int ap, double s, double[] r, int rp, int n) {
+        int j = 0;
+        for (int end = S.loopBound(n); j < end; j += L) {
+            DoubleVector.fromArray(S, a, ap + j).mul(s).intoArray(r, rp + j);
+        }
+        for (; j < n; j++) r[rp + j] = a[ap + j] * s;
+    }
+
+    @Override
+    void pow(double[] a, int ap, double e, double[] r, int rp, int n) {
+        // 2乗(誤差の計算でいちばん多い)は掛け算にする(Math.pow(x, 2)と同じ値になる)
+        if (e == 2.0) {
+            mult(a, ap, a, ap, r, rp, n);
+            return;
+        }
+        int j = 0;
+        for (int end = S.loopBound(n); j < end; j += L) {
+            DoubleVector.fromArray(S, a, ap + j).lanewise(VectorOperators.POW, e).intoArray(r, rp + j);
+        }
+        for (; j < n; j++) r[rp + j] = Math.pow(a[ap + j], e);
+    }
+
+    @Override
+    void softmax(double[] a, int ap, double[] r, int rp, int n) {
+        int end = S.loopBound(n);
+        double max = Double.NEGATIVE_INFINITY;
+        int j = 0;
+        if (end > 0) {
+            DoubleVector m = DoubleVector.broadcast(S, Double.NEGATIVE_INFINITY);
+            for (; j < end; j += L) m = m.max(DoubleVector.fromArray(S, a, ap + j));
+            max = m.reduceLanes(VectorOperators.MAX);
+        }
+        for (; j < n; j++) max = Math.max(max, a[ap + j]);
+
+        DoubleVector acc = DoubleVector.zero(S);
+        for (j = 0; j < end; j += L) {
+            DoubleVector e = DoubleVector.fromArray(S, a, ap + j).sub(max).lanewise(VectorOperators.EXP);
+            e.intoArray(r, rp + j);
+            acc = acc.add(e);
+        }
+        double sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; j < n; j++) {
+            r[rp + j] = Math.exp(a[ap + j] - max);
+            sum += r[rp + j];
+        }
+        scale(r, rp, 1.0 / sum, r, rp, n);
+    }
+
+    @Override
+    double sum(double[] a, int ap, int n) {
+        DoubleVector acc = DoubleVector.zero(S);
+        int j = 0;
+        for (int end = S.loopBound(n); j < end; j += L) acc = acc.add(DoubleVector.fromArray(S, a, ap + j));
+        double sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; j < n; j++) sum += a[ap + j];
+        return sum;
+    }
+
+    @Override
+    double crossEntropy(double[] t, int tp, double[] p, int pp, int n) {
+        DoubleVector acc = DoubleVector.zero(S);
+        int j = 0;
+        for (int end = S.loopBound(n); j < end; j += L) {
+            DoubleVector tv = DoubleVector.fromArray(S, t, tp + j);
+            VectorMask<Double> nz = tv.compare(VectorOperators.NE, 0.0);
+            // tが0の要素はlog(p)を計算しない(pが0でもNaNにしない)
+            if (!nz.anyTrue()) continue;
+            DoubleVector lp = DoubleVector.fromArray(S, p, pp + j).lanewise(VectorOperators.LOG, nz);
+            acc = acc.add(tv.mul(lp), nz);
+        }
+        double sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; j < n; j++) {
+            if (t[tp + j] != 0.0) sum += t[tp + j] * Math.log(p[pp + j]);
+        }
+        return sum;
+    }
+
+    @Override
+    double binaryCrossEntropy(double[] t, int tp, double[] p, int pp, int n) {
+        DoubleVector acc = DoubleVector.zero(S);
+        int j = 0;
+        for (int end = S.loopBound(n); j < end; j += L) {
+            DoubleVector tv = DoubleVector.fromArray(S, t, tp + j);
+            DoubleVector pv = DoubleVector.fromArray(S, p, pp + j);
+            DoubleVector lp = pv.lanewise(VectorOperators.LOG);
+            DoubleVector lq = pv.neg().add(1.0).lanewise(VectorOperators.LOG);
+            acc = acc.add(tv.mul(lp)).add(tv.neg().add(1.0).mul(lq));
+        }
+        double sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; j < n; j++) {
+            double tj = t[tp + j], pj = p[pp + j];
+            sum += tj * Math.log(pj) + (1 - tj) * Math.log(1 - pj);
+        }
+        return sum;
+    }
+
+    @Override
+    void axpy(double v, double[] b, int bp, double[] c, int cp, int n) {
+        DoubleVector vv = DoubleVector.broadcast(S, v);
+        int j = 0;
+        for (int end = S.loopBound(n); j < end; j += L) {
+            DoubleVector bv = DoubleVector.fromArray(S, b, bp + j);
+            bv.fma(vv, DoubleVector.fromArray(S, c, cp + j)).intoArray(c, cp + j);
+        }
+        for (; j < n; j++) c[cp + j] += v * b[bp + j];
+    }
+
+    @Override
+    void axpy4(double v0, double v1, double v2, double v3, double[] b, int bp,
+               double[] c, int c0, int c1, int c2, int c3, int n) {
+        DoubleVector w0 = DoubleVector.broadcast(S, v0), w1 = DoubleVector.broadcast(S, v1);
+        DoubleVector w2 = DoubleVector.broadcast(S, v2), w3 = DoubleVector.broadcast(S, v3);
+        int j = 0;
+        for (int end = S.loopBound(n); j < end; j += L) {
+            DoubleVector bv = DoubleVector.fromArray(S, b, bp + j);
+            bv.fma(w0, DoubleVector.fromArray(S, c, c0 + j)).intoArray(c, c0 + j);
+            bv.fma(w1, DoubleVector.fromArray(S, c, c1 + j)).intoArray(c, c1 + j);
+            bv.fma(w2, DoubleVector.fromArray(S, c, c2 + j)).intoArray(c, c2 + j);
+            bv.fma(w3, DoubleVector.fromArray(S, c, c3 + j)).intoArray(c, c3 + j);
+        }
+        for (; j < n; j++) {
+            double bj = b[bp + j];
+            c[c0 + j] += v0 * bj;
+            c[c1 + j] += v1 * bj;
+            c[c2 + j] += v2 * bj;
+            c[c3 + j] += v3 * bj;
+        }
+    }
+
+    @Override
+    double dot(double[] a, int ap, double[] b, int bp, int n) {
+        DoubleVector acc = DoubleVector.zero(S);
+        int p = 0;
+        for (int end = S.loopBound(n); p < end; p += L) {
+            acc = DoubleVector.fromArray(S, a, ap + p).fma(DoubleVector.fromArray(S, b, bp + p), acc);
+        }
+        double s0 = acc.reduceLanes(VectorOperators.ADD);
+        for (; p < n; p++) s0 += a[ap + p] * b[bp + p];
+        return s0;
+    }
+
+    @Override
+    void dot4(double[] a, int a0, int a1, int a2, int a3, double[] b, int bp,
+              double[] c, int c0, int c1, int c2, int c3, int n) {
+        DoubleVector s0 = DoubleVector.zero(S), s1 = s0, s2 = s0, s3 = s0;
+        int p = 0;
+        for (int end = S.loopBound(n); p < end; p += L) {
+            DoubleVector bv = DoubleVector.fromArray(S, b, bp + p);
+            s0 = DoubleVector.fromArray(S, a, a0 + p).fma(bv, s0);
+            s1 = DoubleVector.fromArray(S, a, a1 + p).fma(bv, s1);
+            s2 = DoubleVector.fromArray(S, a, a2 + p).fma(bv, s2);
+            s3 = DoubleVector.fromArray(S, a, a3 + p).fma(bv, s3);
+        }
+        double r0 = s0.reduceLanes(VectorOperators.ADD), r1 = s1.reduceLanes(VectorOperators.ADD);
+        double r2 = s2.reduceLanes(VectorOperators.ADD), r3 = s3.reduceLanes(VectorOperators.ADD);
+        for (; p < n; p++) {
+            double bv = b[bp + p];
+            r0 += a[a0 + p] * bv;
+            r1 += a[a1 + p] * bv;
+            r2 += a[a2 + p] * bv;
+            r3 += a[a3 + p] * bv;
+        }
+        c[c0] = r0;
+        c[c1] = r1;
+        c[c2] = r2;
+        c[c3] = r3;
+    }
+}